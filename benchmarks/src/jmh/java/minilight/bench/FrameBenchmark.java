@@ -0,0 +1,55 @@
+package minilight.bench;
+
+import java.util.concurrent.TimeUnit;
+import minilight.datastructures.Image;
+import minilight.rendering.RayTracer;
+import minilight.scene.Camera;
+import minilight.scene.Scene;
+import minilight.utils.ModelReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * One full single-threaded Camera.getFrame() pass, one path per pixel.
+ * @author Tom Eklöf
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FrameBenchmark
+{
+
+  @Param(
+  {
+    "cornellbox.txt", "smits-complex.txt"
+  })
+  public String model;
+  private Scene _scene;
+  private Camera _camera;
+  private RayTracer _raytracer;
+  private Image _image;
+
+  @Setup
+  public void setup()
+  {
+    Scenes s = new Scenes(model);
+    ModelReader m = s.getModel();
+    _scene = s.getScene();
+    _camera = s.getCamera();
+    _raytracer = new RayTracer(_scene);
+    _image = new Image(m.getPictureWidth(), m.getPictureHeight());
+  }
+
+  @Benchmark
+  public Image getFrame()
+  {
+    _camera.getFrame(_scene, _image, _raytracer);
+    return _image;
+  }
+}
@@ -0,0 +1,54 @@
+package minilight.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import minilight.datastructures.Image;
+import minilight.scene.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Tone mapping, gamma encoding and quantizing a whole image, which happens
+ * on every save.
+ * @author Tom Eklöf
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ImageBenchmark
+{
+
+  @Param(
+  {
+    "280x280", "1920x1080", "3840x2160"
+  })
+  public String size;
+  private Image _image;
+
+  @Setup
+  public void setup()
+  {
+    int x = size.indexOf('x');
+    int w = Integer.parseInt(size.substring(0, x));
+    int h = Integer.parseInt(size.substring(x + 1));
+    _image = new Image(w, h);
+
+    Random r = new Random(42);
+    for (int y = 0; y < h; ++y)
+      for (int i = 0; i < w; ++i)
+        _image.addToPixel(i, y, new Vector(r.nextFloat(), r.nextFloat(),
+            r.nextFloat()).mul(r.nextFloat() * 4f));
+  }
+
+  @Benchmark
+  public byte[] getImageBytes()
+  {
+    return _image.getImageBytes(200f);
+  }
+}
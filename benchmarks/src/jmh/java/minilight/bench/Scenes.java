@@ -0,0 +1,49 @@
+package minilight.bench;
+
+import java.io.File;
+import minilight.datastructures.GeometryMemory;
+import minilight.scene.Camera;
+import minilight.scene.Scene;
+import minilight.scene.Triangle;
+import minilight.scene.TriangleStore;
+import minilight.utils.ModelReader;
+
+/**
+ * Loads the bundled models for the benchmarks. The models directory is
+ * passed in by the build as the minilight.models system property.
+ * @author Tom Eklöf
+ */
+public class Scenes
+{
+
+  private final ModelReader _model;
+  private final Camera _camera;
+  private final Scene _scene;
+
+  public Scenes(String modelName)
+  {
+    File dir = new File(System.getProperty("minilight.models", "models"));
+    _model = new ModelReader(new File(dir, modelName).getPath());
+    _camera = new Camera(_model.getCameraPosition(),
+        _model.getCameraDirection(), _model.getCameraAngle());
+    _scene = new Scene(Triangle.makeTriangles(_model.getModelVectors(),
+        new TriangleStore(GeometryMemory.HEAP)),
+        _camera.getCameraPosition(), _model.getSkyEmissivity(),
+        _model.getGroundReflectivity());
+  }
+
+  public ModelReader getModel()
+  {
+    return _model;
+  }
+
+  public Camera getCamera()
+  {
+    return _camera;
+  }
+
+  public Scene getScene()
+  {
+    return _scene;
+  }
+}
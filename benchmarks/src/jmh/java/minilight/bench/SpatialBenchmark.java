@@ -0,0 +1,72 @@
+package minilight.bench;
+
+import java.util.concurrent.TimeUnit;
+import minilight.scene.Camera;
+import minilight.scene.Scene;
+import minilight.scene.Vector;
+import minilight.utils.ModelReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Octree traversal (Spatial.getIntersection() through
+ * Scene.getIntersection()) for the primary rays of each bundled model, in
+ * pixel order.
+ * @author Tom Eklöf
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SpatialBenchmark
+{
+
+  @Param(
+  {
+    "cornellbox.txt", "cornellbox-m.txt", "cornellbox-e.txt",
+    "smits-complex.txt", "smits-large.txt"
+  })
+  public String model;
+  private Scene _scene;
+  private Vector _origin;
+  private Vector[] _directions;
+  private int _next = 0;
+
+  @Setup
+  public void setup()
+  {
+    Scenes s = new Scenes(model);
+    _scene = s.getScene();
+    Camera c = s.getCamera();
+    ModelReader m = s.getModel();
+    _origin = c.getCameraPosition();
+
+    int w = m.getPictureWidth(), h = m.getPictureHeight();
+    float halfAngle = (float) Math.tan(c.getViewAngle() * 0.5f);
+    _directions = new Vector[w * h];
+    for (int y = 0; y < h; ++y)
+      for (int x = 0; x < w; ++x)
+      {
+        float xf = ((x + 0.5f) * 2f / w) - 1f;
+        float yf = ((y + 0.5f) * 2f / h) - 1f;
+        Vector offset = c.getRight().mul(xf).add(
+            c.getUp().mul(yf).mul((float) h / (float) w));
+        _directions[x + y * w] = c.getViewDirection().add(offset.mul(
+            halfAngle)).unitize();
+      }
+  }
+
+  @Benchmark
+  public Object[] getIntersection()
+  {
+    int i = _next++;
+    if (_next == _directions.length)
+      _next = 0;
+    return _scene.getIntersection(_origin, _directions[i], null);
+  }
+}
@@ -0,0 +1,48 @@
+package minilight.bench;
+
+import java.util.concurrent.TimeUnit;
+import minilight.datastructures.GeometryMemory;
+import minilight.scene.SurfacePoint;
+import minilight.scene.Triangle;
+import minilight.scene.TriangleStore;
+import minilight.scene.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Sampling a bounce direction off a diffuse surface.
+ * @author Tom Eklöf
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SurfacePointBenchmark
+{
+
+  private SurfacePoint _point;
+  private Vector _inDirection;
+
+  @Setup
+  public void setup()
+  {
+    // reflectivity 1 so the ray is never absorbed
+    Triangle t = new TriangleStore(GeometryMemory.HEAP).add(new Vector[]
+        {
+          new Vector(0f, 0f, 0f), new Vector(1f, 0f, 0f),
+          new Vector(0f, 1f, 0f), Vector.ONE, Vector.ZERO
+        });
+    _point = new SurfacePoint(t, new Vector(0.25f, 0.25f, 0f));
+    _inDirection = new Vector(0.3f, 0.2f, 1f).unitize();
+  }
+
+  @Benchmark
+  public Object[] getNextDirection()
+  {
+    return _point.getNextDirection(_inDirection);
+  }
+}
@@ -0,0 +1,57 @@
+package minilight.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import minilight.datastructures.GeometryMemory;
+import minilight.scene.Triangle;
+import minilight.scene.TriangleStore;
+import minilight.scene.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Triangle.getIntersection() for a fixed set of rays from around a
+ * triangle, roughly half of which hit it.
+ * @author Tom Eklöf
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TriangleBenchmark
+{
+
+  private static final int NUM_RAYS = 1024;
+  private Triangle _triangle;
+  private Vector[] _origins = new Vector[NUM_RAYS];
+  private Vector[] _directions = new Vector[NUM_RAYS];
+  private int _next = 0;
+
+  @Setup
+  public void setup()
+  {
+    _triangle = new TriangleStore(GeometryMemory.HEAP).add(new Vector[]
+        {
+          new Vector(0f, 0f, 0f), new Vector(1f, 0f, 0f),
+          new Vector(0f, 1f, 0f), new Vector(0.5f, 0.5f, 0.5f), Vector.ZERO
+        });
+    Random r = new Random(42);
+    for (int i = 0; i < NUM_RAYS; ++i)
+    {
+      _origins[i] = new Vector(r.nextFloat(), r.nextFloat(), 1f);
+      _directions[i] = new Vector(r.nextFloat() - 0.5f, r.nextFloat() - 0.5f,
+          -1f).unitize();
+    }
+  }
+
+  @Benchmark
+  public float getIntersection()
+  {
+    int i = _next++ & (NUM_RAYS - 1);
+    return _triangle.getIntersection(_origins[i], _directions[i]);
+  }
+}
@@ -0,0 +1,62 @@
+package minilight.bench;
+
+import java.util.concurrent.TimeUnit;
+import minilight.scene.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The Vector operations the ray tracer spends most of its time in. Every
+ * one of them allocates, which the gc profiler shows as bytes per op.
+ * @author Tom Eklöf
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VectorBenchmark
+{
+
+  private Vector _a = new Vector(0.3f, -1.2f, 2.5f);
+  private Vector _b = new Vector(-0.7f, 0.4f, 1.1f);
+
+  @Benchmark
+  public Vector add()
+  {
+    return _a.add(_b);
+  }
+
+  @Benchmark
+  public Vector mulScalar()
+  {
+    return _a.mul(0.5f);
+  }
+
+  @Benchmark
+  public float dot()
+  {
+    return _a.dot(_b);
+  }
+
+  @Benchmark
+  public Vector cross()
+  {
+    return _a.cross(_b);
+  }
+
+  @Benchmark
+  public Vector unitize()
+  {
+    return _a.unitize();
+  }
+
+  @Benchmark
+  public Vector madd()
+  {
+    // the ray position calculation: origin + direction * distance
+    return _a.add(_b.mul(1.5f));
+  }
+}
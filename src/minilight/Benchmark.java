@@ -0,0 +1,222 @@
+package minilight;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import minilight.datastructures.Image;
+import minilight.rendering.FrameRenderer;
+import minilight.scene.Camera;
+import minilight.scene.Scene;
+import minilight.scene.Triangle;
+import minilight.utils.Counters;
+import minilight.utils.LatencyHistogram;
+import minilight.utils.MagicNumbers;
+import minilight.utils.ModelReader;
+
+/**
+ * The --benchmark mode: renders each model for a warm-up period and then a
+ * measurement period, with 1, 2, 4... up to MagicNumbers.NUM_THREADS
+ * threads, and reports parse and build times, samples and rays per second
+ * and how well rendering scales with the number of threads as JSON. Nothing
+ * is saved, and every thread count starts from an empty image.
+ * @author Tom Eklöf
+ */
+public class Benchmark
+{
+
+  public static void run(List<String> modelFiles)
+  {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"java\": ").append(quote(System.getProperty(
+        "java.version"))).append(",\n");
+    json.append("  \"vm\": ").append(quote(System.getProperty("java.vm.name")
+                                           + " "
+                                           + System.getProperty(
+        "java.vm.version"))).append(",\n");
+    json.append("  \"os\": ").append(quote(System.getProperty("os.name") + " "
+                                           + System.getProperty("os.arch"))).
+        append(",\n");
+    json.append("  \"processors\": ").append(Runtime.getRuntime().
+        availableProcessors()).append(",\n");
+    json.append("  \"seed\": ").append(MagicNumbers.RANDOM_SEED).append(",\n");
+    json.append("  \"tileSize\": ").append(MagicNumbers.TILE_SIZE).append(
+        ",\n");
+    json.append("  \"warmupSeconds\": ").append(MagicNumbers.BENCHMARK_WARMUP).
+        append(",\n");
+    json.append("  \"measureSeconds\": ").append(
+        MagicNumbers.BENCHMARK_MEASURE).append(",\n");
+    json.append("  \"models\": [");
+    for (int m = 0; m < modelFiles.size(); ++m)
+    {
+      json.append(m == 0 ? "\n" : ",\n");
+      benchmarkModel(modelFiles.get(m), json);
+    }
+    json.append("\n  ]\n}\n");
+
+    if (MagicNumbers.BENCHMARK_REPORT == null)
+    {
+      System.out.print(json);
+      return;
+    }
+    try
+    {
+      Writer w = new OutputStreamWriter(new FileOutputStream(
+          MagicNumbers.BENCHMARK_REPORT), "UTF-8");
+      try
+      {
+        w.write(json.toString());
+      }
+      finally
+      {
+        w.close();
+      }
+      System.out.println("Benchmark results written to "
+                         + MagicNumbers.BENCHMARK_REPORT);
+    }
+    catch (IOException ex)
+    {
+      System.out.println("Error writing benchmark report (" + ex.getMessage()
+                         + ")");
+      System.exit(2);
+    }
+  }
+
+  private static void benchmarkModel(String modelFile, StringBuilder json)
+  {
+    long startTime = System.nanoTime();
+    try
+    {
+      MagicNumbers.mr = new ModelReader(modelFile);
+    }
+    catch (IllegalStateException e)
+    {
+      System.out.println("Error reading model file (" + e + ")");
+      System.exit(2);
+    }
+    List<Triangle> triangles = MagicNumbers.getTriangles();
+    long parseTime = System.nanoTime() - startTime;
+
+    startTime = System.nanoTime();
+    Camera c = new Camera(MagicNumbers.getCameraPosition(),
+        MagicNumbers.getCameraDirection(),
+        MagicNumbers.getCameraAngle());
+    Scene s = new Scene(triangles, c.getCameraPosition(),
+        MagicNumbers.getSkyEmissivity(), MagicNumbers.getGroundReflectivity());
+    long buildTime = System.nanoTime() - startTime;
+
+    int width = MagicNumbers.getPictureWidth();
+    int height = MagicNumbers.getPictureHeight();
+    json.append("    {\n");
+    json.append("      \"model\": ").append(quote(modelFile)).append(",\n");
+    json.append("      \"triangles\": ").append(triangles.size()).append(
+        ",\n");
+    json.append("      \"width\": ").append(width).append(",\n");
+    json.append("      \"height\": ").append(height).append(",\n");
+    json.append("      \"parseMillis\": ").append(format(parseTime / 1e6)).
+        append(",\n");
+    json.append("      \"buildMillis\": ").append(format(buildTime / 1e6)).
+        append(",\n");
+    json.append("      \"runs\": [");
+
+    double baseRate = 0;
+    List<Integer> threadCounts = threadCounts(MagicNumbers.NUM_THREADS);
+    for (int t = 0; t < threadCounts.size(); ++t)
+    {
+      int numThreads = threadCounts.get(t);
+      FrameRenderer renderer = new FrameRenderer(s, c, new Image(width,
+          height), numThreads, MagicNumbers.TILE_SIZE);
+
+      int frameNo = 0;
+      long end = System.nanoTime() + MagicNumbers.BENCHMARK_WARMUP * 1000000000L;
+      while (System.nanoTime() < end)
+        renderer.renderFrame(frameNo++);
+
+      Counters before = renderer.getCounters();
+      LatencyHistogram.FRAMES.reset();
+      int frames = 0;
+      startTime = System.nanoTime();
+      end = startTime + MagicNumbers.BENCHMARK_MEASURE * 1000000000L;
+      do
+      {
+        renderer.renderFrame(frameNo++);
+        ++frames;
+      }
+      while (System.nanoTime() < end);
+      double seconds = (System.nanoTime() - startTime) / 1e9;
+      renderer.shutdown();
+
+      Counters after = renderer.getCounters();
+      long primary = after.getPrimaryRays() - before.getPrimaryRays();
+      long bounce = after.getBounceRays() - before.getBounceRays();
+      long shadow = after.getShadowRays() - before.getShadowRays();
+      double rate = (primary + bounce + shadow) / seconds;
+      if (t == 0)
+        baseRate = rate; // always the single-threaded run
+      System.out.format("%s, %d threads: %d frames in %.2f s, %.3f M rays/s%n",
+          modelFile, numThreads, frames, seconds, rate / 1e6);
+
+      json.append(t == 0 ? "\n" : ",\n");
+      json.append("        {\n");
+      json.append("          \"threads\": ").append(numThreads).append(",\n");
+      json.append("          \"frames\": ").append(frames).append(",\n");
+      json.append("          \"seconds\": ").append(format(seconds)).append(
+          ",\n");
+      json.append("          \"samplesPerSecond\": ").append(format(
+          (double) frames * width * height / seconds)).append(",\n");
+      json.append("          \"primaryRaysPerSecond\": ").append(format(
+          primary / seconds)).append(",\n");
+      json.append("          \"bounceRaysPerSecond\": ").append(format(bounce
+                                                                       / seconds)).
+          append(",\n");
+      json.append("          \"shadowRaysPerSecond\": ").append(format(shadow
+                                                                       / seconds)).
+          append(",\n");
+      json.append("          \"raysPerSecond\": ").append(format(rate)).append(
+          ",\n");
+      json.append("          \"frameMillisP50\": ").append(format(
+          LatencyHistogram.FRAMES.getValueAtPercentile(50) / 1e6)).append(
+          ",\n");
+      json.append("          \"frameMillisP99\": ").append(format(
+          LatencyHistogram.FRAMES.getValueAtPercentile(99) / 1e6)).append(
+          ",\n");
+      json.append("          \"frameMillisMax\": ").append(format(
+          LatencyHistogram.FRAMES.getMax() / 1e6)).append(",\n");
+      json.append("          \"speedup\": ").append(format(rate / baseRate)).
+          append(",\n");
+      // 1 would mean perfect scaling
+      json.append("          \"efficiency\": ").append(format(rate
+                                                              / (baseRate
+                                                                 * numThreads))).
+          append("\n");
+      json.append("        }");
+    }
+    json.append("\n      ]\n    }");
+  }
+
+  /**
+   * 1, 2, 4... and max itself.
+   */
+  private static List<Integer> threadCounts(int max)
+  {
+    List<Integer> counts = new ArrayList<Integer>();
+    for (int n = 1; n < max; n *= 2)
+      counts.add(n);
+    counts.add(Math.max(1, max));
+    return counts;
+  }
+
+  private static String format(double d)
+  {
+    return String.format(Locale.ROOT, "%.3f", d);
+  }
+
+  private static String quote(String s)
+  {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+}
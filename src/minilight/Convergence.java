@@ -0,0 +1,201 @@
+package minilight;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
+import minilight.datastructures.Checkpoint;
+import minilight.datastructures.Denoiser;
+import minilight.datastructures.Features;
+import minilight.datastructures.Image;
+import minilight.rendering.FrameRenderer;
+import minilight.scene.Camera;
+import minilight.scene.Scene;
+import minilight.utils.MagicNumbers;
+import minilight.utils.ModelReader;
+
+/**
+ * The --convergence mode: measures how fast renders approach the right
+ * answer, not just how many samples they take.<br/><br/>
+ *
+ * Every model is compared against a reference rendered with
+ * --refsamples samples per pixel and a different seed, kept in the
+ * --references directory as a checkpoint file (minilight.Tonemap makes it
+ * viewable) and only rendered again if it's missing or the scene changed.
+ * References are always rendered without --cache, --guide and
+ * --wavefront, so they hold for any options. The model is then rendered
+ * with the current options for its number of iterations (or --override),
+ * and after 1, 2, 4, 8... and the last frame the RMSE and relative MSE of
+ * the untone-mapped image (denoised, with --denoise) are written as a CSV
+ * line, along with the render time so far. Comparing takes place off the
+ * clock.
+ * @author Tom Eklöf
+ */
+public class Convergence
+{
+
+  private static final String CSV_HEADER =
+                              "model,threads,tile_size,seed,frames,samples,"
+                              + "seconds,rmse,relmse";
+  // so the reference's noise doesn't correlate with the measured render's
+  private static final long REFERENCE_SEED_OFFSET = 0x5eed5eed5eedL;
+
+  public static void run(List<String> modelFiles)
+  {
+    PrintWriter csv = null;
+    try
+    {
+      csv = new PrintWriter(new OutputStreamWriter(new FileOutputStream(
+          MagicNumbers.CONVERGENCE_REPORT), "UTF-8"));
+    }
+    catch (IOException ex)
+    {
+      System.out.println("Error opening convergence report (" + ex.getMessage()
+                         + ")");
+      System.exit(2);
+    }
+    csv.println(CSV_HEADER);
+    for (String modelFile : modelFiles)
+      measure(modelFile, csv);
+    csv.close();
+    if (csv.checkError())
+    {
+      System.out.println("Error writing convergence report");
+      System.exit(2);
+    }
+    System.out.println("Convergence results written to "
+                       + MagicNumbers.CONVERGENCE_REPORT);
+  }
+
+  private static void measure(String modelFile, PrintWriter csv)
+  {
+    try
+    {
+      MagicNumbers.mr = new ModelReader(modelFile);
+    }
+    catch (IllegalStateException e)
+    {
+      System.out.println("Error reading model file (" + e + ")");
+      System.exit(2);
+    }
+    if (MagicNumbers.ITERATION_OVERRIDE > 0)
+      MagicNumbers.mr.setNumIterations(MagicNumbers.ITERATION_OVERRIDE);
+    Camera c = new Camera(MagicNumbers.getCameraPosition(),
+        MagicNumbers.getCameraDirection(),
+        MagicNumbers.getCameraAngle());
+    Scene s = new Scene(MagicNumbers.getTriangles(), c.getCameraPosition(),
+        MagicNumbers.getSkyEmissivity(), MagicNumbers.getGroundReflectivity());
+    int width = MagicNumbers.getPictureWidth();
+    int height = MagicNumbers.getPictureHeight();
+
+    Image reference = getReference(modelFile, s, c, width, height);
+
+    Image img = new Image(width, height);
+    if (MagicNumbers.DENOISE)
+      img.setFeatures(new Features(width, height));
+    FrameRenderer renderer = new FrameRenderer(s, c, img,
+        MagicNumbers.NUM_THREADS, MagicNumbers.TILE_SIZE);
+    int iterations = MagicNumbers.getNumIterations();
+    long renderTime = 0;
+    for (int frameNo = 0, nextReport = 1; frameNo < iterations;)
+    {
+      long startTime = System.nanoTime();
+      renderer.renderFrame(frameNo++);
+      renderTime += System.nanoTime() - startTime;
+
+      if (frameNo == nextReport || frameNo == iterations)
+      {
+        double[] errors = Denoiser.denoise(img).getErrors(reference);
+        csv.println(String.format(Locale.ROOT,
+            "%s,%d,%d,%d,%d,%d,%.4f,%.6g,%.6g", modelFile,
+            MagicNumbers.NUM_THREADS, MagicNumbers.TILE_SIZE,
+            MagicNumbers.RANDOM_SEED, frameNo, (long) frameNo * width * height,
+            renderTime / 1e9, Math.sqrt(errors[0]), errors[1]));
+        csv.flush();
+        System.out.format(Locale.ROOT,
+            "%s: %d frames, %.2f s, RMSE %.5g, relMSE %.5g%n", modelFile,
+            frameNo, renderTime / 1e9, Math.sqrt(errors[0]), errors[1]);
+        nextReport *= 2;
+      }
+    }
+    renderer.shutdown();
+  }
+
+  /**
+   * Reads the reference image of the model, or renders and saves it if
+   * there isn't one for this scene with enough samples.
+   */
+  private static Image getReference(String modelFile, Scene s, Camera c,
+                                    int width, int height)
+  {
+    long sceneHash = Checkpoint.sceneHash(s, c);
+    File file = new File(MagicNumbers.REFERENCE_DIR, new File(modelFile).
+        getName() + ".reference");
+    if (file.exists())
+      try
+      {
+        Checkpoint ref = Checkpoint.read(file.getPath());
+        if (ref.getSceneHash() == sceneHash
+            && ref.getFrames() >= MagicNumbers.REFERENCE_SAMPLES)
+        {
+          System.out.println("Using reference " + file + " ("
+                             + ref.getFrames() + " samples per pixel)");
+          return ref.getImage();
+        }
+        System.out.println("Reference " + file + " is out of date");
+      }
+      catch (IOException ex)
+      {
+        System.out.println("Error reading reference (" + ex.getMessage()
+                           + "), rendering it again");
+      }
+
+    System.out.println("Rendering reference " + file + " with "
+                       + MagicNumbers.REFERENCE_SAMPLES
+                       + " samples per pixel...");
+    long seed = MagicNumbers.RANDOM_SEED;
+    MagicNumbers.RANDOM_SEED = seed + REFERENCE_SEED_OFFSET;
+    // plain path tracing, so the reference doesn't share the bias of a
+    // --cache or --guide render and fits every option set it's reused for
+    int cacheDepth = MagicNumbers.CACHE_DEPTH;
+    boolean guiding = MagicNumbers.GUIDING;
+    boolean wavefront = MagicNumbers.WAVEFRONT;
+    MagicNumbers.CACHE_DEPTH = -1;
+    MagicNumbers.GUIDING = false;
+    MagicNumbers.WAVEFRONT = false;
+    Image img = new Image(width, height);
+    FrameRenderer renderer = new FrameRenderer(s, c, img,
+        Runtime.getRuntime().availableProcessors(), MagicNumbers.TILE_SIZE);
+    long startTime = System.currentTimeMillis();
+    for (int frameNo = 0; frameNo < MagicNumbers.REFERENCE_SAMPLES;)
+    {
+      renderer.renderFrame(frameNo++);
+      System.out.format("Reference iteration: %d of %d. Time elapsed: %d\r",
+          frameNo, MagicNumbers.REFERENCE_SAMPLES,
+          (System.currentTimeMillis() - startTime) / 1000);
+      System.out.flush();
+    }
+    System.out.println();
+    renderer.shutdown();
+    MagicNumbers.CACHE_DEPTH = cacheDepth;
+    MagicNumbers.GUIDING = guiding;
+    MagicNumbers.WAVEFRONT = wavefront;
+
+    try
+    {
+      file.getAbsoluteFile().getParentFile().mkdirs();
+      new Checkpoint(img, MagicNumbers.RANDOM_SEED,
+          MagicNumbers.REFERENCE_SAMPLES, sceneHash).write(file.getPath());
+    }
+    catch (IOException ex)
+    {
+      System.out.println("Error writing reference (" + ex.getMessage() + ")");
+      System.exit(2);
+    }
+    MagicNumbers.RANDOM_SEED = seed;
+    return img;
+  }
+}
@@ -1,157 +1,450 @@
 package minilight;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.Locale;
+import java.util.Random;
+import minilight.datastructures.Checkpoint;
+import minilight.datastructures.Features;
 import minilight.datastructures.Image;
+import minilight.datastructures.SharedFilm;
+import minilight.rendering.FrameRenderer;
 import minilight.rendering.RayTracer;
-import minilight.rendering.SeparateImageRenderer;
+import minilight.rendering.TileCoordinator;
+import minilight.rendering.TileWorker;
 import minilight.scene.Camera;
 import minilight.scene.Scene;
+import minilight.utils.Counters;
+import minilight.utils.ImageSaver;
+import minilight.utils.LatencyHistogram;
 import minilight.utils.MagicNumbers;
+import minilight.utils.PreviewStream;
+import minilight.utils.RenderStats;
 
-class ThreadCreator
+/**
+ *
+ * @author Tom Eklöf
+ */
+public class Main
 {
 
-  private ExecutorService es;
+  private static final int OCTREE_SAMPLE_PATHS = 4096;
 
-  public void startWorkers(int iterations, Scene scn, Camera cam)
+  public static void main(String[] args)
   {
-    es = Executors.newFixedThreadPool(MagicNumbers.NUM_THREADS);
-    ArrayList<Future<Image>> results = new ArrayList<Future<Image>>();
 
-    int iterDivider = iterations / MagicNumbers.NUM_THREADS;
-    int remainder = iterations % MagicNumbers.NUM_THREADS;
+    long startTime = System.currentTimeMillis();
+    long lastSaveTime = startTime;
 
-    for (int i = 0; i < MagicNumbers.NUM_THREADS; ++i)
+    // Initializes some "constants" like camera position, image size and so on.
+    MagicNumbers.initMagicNumbers(args);
+    if (MagicNumbers.BENCHMARK)
+    {
+      Benchmark.run(MagicNumbers.MODEL_FILENAMES);
+      return;
+    }
+    if (MagicNumbers.CONVERGENCE_REPORT != null)
     {
-      if (i == MagicNumbers.NUM_THREADS - 1)
-        // last thread has to take care of the remainder
-        iterDivider += remainder;
-      results.add(es.submit(new SeparateImageRenderer(iterDivider, scn,
-          cam,
-          MagicNumbers.getPictureWidth(),
-          MagicNumbers.getPictureHeight())));
+      Convergence.run(MagicNumbers.MODEL_FILENAMES);
+      return;
     }
-    es.shutdown();
-    ArrayList<Image> images =
-                     new ArrayList<Image>(MagicNumbers.NUM_THREADS);
 
-    for (Future<Image> f : results)
+    Camera c = new Camera(MagicNumbers.getCameraPosition(),
+        MagicNumbers.getCameraDirection(),
+        MagicNumbers.getCameraAngle());
+    Scene s = new Scene(MagicNumbers.getTriangles(), c.getCameraPosition(),
+        MagicNumbers.getSkyEmissivity(), MagicNumbers.getGroundReflectivity());
+    long sceneHash = Checkpoint.sceneHash(s, c);
+    if (MagicNumbers.OCTREE_REPORT)
+      printOctreeStats(s, c);
+    if (MagicNumbers.SHARED_FILM != null)
+    {
+      renderShared(s, c, sceneHash, startTime);
+      return;
+    }
+    if (MagicNumbers.COORDINATOR_PORT > 0)
+    {
+      coordinate(s, c, sceneHash, startTime);
+      return;
+    }
+    if (MagicNumbers.WORKER_HOST != null)
+    {
+      work(s, c, sceneHash, startTime);
+      return;
+    }
+
+    Image i = null;
+    int startFrame = 0;
+    if (MagicNumbers.RESUME
+        && new File(MagicNumbers.CHECKPOINT_FILENAME).exists())
+    {
+      Checkpoint cp = null;
       try
       {
-        images.add(f.get());
+        cp = Checkpoint.read(MagicNumbers.CHECKPOINT_FILENAME);
       }
-      catch (InterruptedException ex)
+      catch (IOException ex)
       {
-        System.out.println("Retrieving results from a thread failed (ie) ("
-                           + ex.getMessage() + ")");
-        ex.printStackTrace(System.out);
+        System.out.println("Error reading checkpoint file (" + ex.getMessage()
+                           + ")");
         System.exit(2);
       }
-      catch (ExecutionException ex)
+      if (cp.getSceneHash() != sceneHash
+          || cp.getImage().getWidth() != MagicNumbers.getPictureWidth()
+          || cp.getImage().getHeight() != MagicNumbers.getPictureHeight())
       {
-        System.out.println("Retrieving results from a thread failed (ee) ("
-                           + ex.getMessage() + ")");
-        ex.printStackTrace(System.out);
+        System.out.println("Checkpoint " + MagicNumbers.CHECKPOINT_FILENAME
+                           + " was made from a different scene or image size");
         System.exit(2);
       }
+      // continue the sample sequence of the interrupted render
+      MagicNumbers.RANDOM_SEED = cp.getSeed();
+      MagicNumbers.reseedRandom();
+      i = cp.getImage();
+      startFrame = (int) cp.getFrames();
+      System.out.println("Resuming from frame " + startFrame
+                         + " (random seed " + MagicNumbers.RANDOM_SEED + ")");
+    }
+    else
+      i = new Image(MagicNumbers.getPictureWidth(),
+          MagicNumbers.getPictureHeight());
 
-    Image img = Image.addImages(images);
-    try
+    if (MagicNumbers.DENOISE)
+      // not kept in checkpoints: a resumed render starts collecting anew
+      i.setFeatures(new Features(i.getWidth(), i.getHeight()));
+
+    int iterations = MagicNumbers.getNumIterations();
+
+    if (MagicNumbers.PARALLEL)
+      System.out.println("Starting multi-threaded renderer with "
+                         + MagicNumbers.NUM_THREADS + " threads...");
+    else
+      System.out.println("Starting single-threaded renderer...");
+
+    if (MagicNumbers.COUNTERS)
     {
-      // FIXME: save image DURING rendering too, not just when finished
-      img.saveImage(MagicNumbers.IMAGE_FILENAME, iterations, false);
+      RenderStats.register();
+      if (MagicNumbers.STATS_PERIOD > 0)
+        RenderStats.startLogging(MagicNumbers.STATS_PERIOD);
     }
-    catch (IOException ex)
+    long renderStartTime = System.nanoTime();
+    FrameRenderer renderer = newRenderer(s, c, i, MagicNumbers.NUM_THREADS);
+    ImageSaver saver = new ImageSaver();
+    PreviewStream preview = MagicNumbers.PREVIEW_TARGET == null ? null
+                            : new PreviewStream(MagicNumbers.PREVIEW_TARGET,
+        MagicNumbers.PREVIEW_FPS, MagicNumbers.TILE_SIZE);
+    if (MagicNumbers.COARSE_BUDGET > 0 && startFrame == 0)
+      renderCoarse(renderer, saver, preview);
+    for (int frameNo = startFrame; frameNo < iterations;)
     {
-      System.out.println("Error saving image file (" + ex.getMessage() + ")");
+      renderer.renderFrame(frameNo++);
+      if (preview != null)
+        preview.offer(i, frameNo, false);
+      // carriage return: the next line overwrites this one
+      System.out.format("Iteration: %d of %d. Time elapsed: %d\r", frameNo,
+          iterations, (System.currentTimeMillis() - startTime)
+                      / 1000);
+      System.out.flush();
+      if (frameNo < iterations
+          && (frameNo == startFrame + 1
+              || (System.currentTimeMillis() - lastSaveTime > MagicNumbers.SAVE_PERIOD
+                                                              * 1000)))
+      {
+        // encoded in the background, rendering carries on meanwhile
+        Image snapshot = i.snapshot();
+        saver.save(output(snapshot), MagicNumbers.IMAGE_FILENAME,
+            MagicNumbers.SAVE_AS_PNG);
+        if (MagicNumbers.CHECKPOINT_FILENAME != null)
+          saver.checkpoint(new Checkpoint(snapshot, MagicNumbers.RANDOM_SEED,
+              frameNo, sceneHash), MagicNumbers.CHECKPOINT_FILENAME);
+        lastSaveTime = System.currentTimeMillis();
+      }
+    }
+    renderer.shutdown();
+    System.out.println();
+    if (MagicNumbers.COUNTERS)
+      System.out.println(RenderStats.format(renderer.getCounters(),
+          new Counters(), (System.nanoTime() - renderStartTime) / 1e9));
+    if (renderer.getPathGuide() != null)
+    {
+      int[] size = renderer.getPathGuide().getSize();
+      System.out.println("Path guide: " + size[0] + " regions, " + size[1]
+                         + " direction nodes, "
+                         + renderer.getPathGuide().getUpdates() + " updates");
+    }
+    if (renderer.getRadianceCache() != null)
+      System.out.format(Locale.ROOT, "Radiance cache: %d cells of %.4g%n",
+          renderer.getRadianceCache().getCells(),
+          renderer.getRadianceCache().getCellSize());
+    if (preview != null)
+    {
+      preview.offer(i, iterations, true);
+      preview.close();
     }
-  }
-}
-
-/**
- *
- * @author Tom Eklöf
- */
-public class Main
-{
 
-  public static void main(String[] args)
-  {
+    // save at the end of rendering too
+    saver.save(output(i), MagicNumbers.IMAGE_FILENAME,
+        MagicNumbers.SAVE_AS_PNG);
+    if (MagicNumbers.CHECKPOINT_FILENAME != null)
+      saver.checkpoint(new Checkpoint(i, MagicNumbers.RANDOM_SEED,
+          Math.max(iterations, startFrame), sceneHash),
+          MagicNumbers.CHECKPOINT_FILENAME);
+    saver.close();
+    System.out.println(LatencyHistogram.report());
 
-    long startTime = System.currentTimeMillis();
-    long lastSaveTime = startTime;
+    System.out.println("Rendering took "
+                       + (System.currentTimeMillis() - startTime) / 1000
+                       + " seconds");
 
-    // Initializes some "constants" like camera position, image size and so on.
-    MagicNumbers.initMagicNumbers(args);
+  }
 
-    Image i = null;
-    if (!MagicNumbers.PARALLEL)
-      i = new Image(MagicNumbers.getPictureWidth(),
-          MagicNumbers.getPictureHeight());
-    Camera c = new Camera(MagicNumbers.getCameraPosition(),
-        MagicNumbers.getCameraDirection(),
-        MagicNumbers.getCameraAngle());
-    Scene s = new Scene(MagicNumbers.getModelVectors(), c.getCameraPosition(),
-        MagicNumbers.getSkyEmissivity(), MagicNumbers.getGroundReflectivity());
+  /**
+   * The --sharedfilm mode: claims frames from the shared film until they are
+   * all handed out, rendering each into an image of its own and adding that
+   * to the film. The images saved every save period and at the end show
+   * what all the processes have added so far, so the last process to finish
+   * saves the whole render.
+   */
+  private static void renderShared(Scene s, Camera c, long sceneHash,
+                                   long startTime)
+  {
+    int width = MagicNumbers.getPictureWidth();
+    int height = MagicNumbers.getPictureHeight();
+    SharedFilm film = null;
+    try
+    {
+      film = SharedFilm.open(MagicNumbers.SHARED_FILM, width, height,
+          MagicNumbers.RANDOM_SEED, sceneHash);
+    }
+    catch (IOException ex)
+    {
+      System.out.println("Error opening shared film (" + ex.getMessage()
+                         + ")");
+      System.exit(2);
+    }
+    MagicNumbers.RANDOM_SEED = film.getSeed();
+    MagicNumbers.reseedRandom();
+    System.out.println("Joining shared film with " + film.getFrames()
+                       + " frames done (random seed "
+                       + MagicNumbers.RANDOM_SEED + ")");
 
+    Image frame = new Image(width, height);
+    FrameRenderer renderer = newRenderer(s, c, frame,
+        MagicNumbers.NUM_THREADS);
+    ImageSaver saver = new ImageSaver();
     int iterations = MagicNumbers.getNumIterations();
-
-    if (MagicNumbers.PARALLEL)
+    long renderStartTime = System.nanoTime();
+    long lastSaveTime = startTime;
+    int rendered = 0;
+    for (int frameNo; (frameNo = film.claimFrame()) < iterations;)
     {
+      renderer.renderFrame(frameNo);
+      film.add(frame);
+      ++rendered;
+      System.out.format("Iteration: %d of %d, %d here. Time elapsed: %d\r",
+          film.getFrames(), iterations, rendered, (System.currentTimeMillis()
+                                                   - startTime) / 1000);
+      System.out.flush();
+      if (System.currentTimeMillis() - lastSaveTime > MagicNumbers.SAVE_PERIOD
+                                                      * 1000)
+      {
+        saver.save(output(film.snapshot()), MagicNumbers.IMAGE_FILENAME,
+            MagicNumbers.SAVE_AS_PNG);
+        lastSaveTime = System.currentTimeMillis();
+      }
+    }
+    renderer.shutdown();
+    System.out.println();
+    if (MagicNumbers.COUNTERS)
+      System.out.println(RenderStats.format(renderer.getCounters(),
+          new Counters(), (System.nanoTime() - renderStartTime) / 1e9));
 
-      System.out.println("Starting multi-threaded renderer with "
-                         + MagicNumbers.NUM_THREADS + " threads...");
-      ThreadCreator t = new ThreadCreator();
-      t.startWorkers(iterations, s, c);
+    saver.save(output(film.snapshot()), MagicNumbers.IMAGE_FILENAME,
+        MagicNumbers.SAVE_AS_PNG);
+    saver.close();
+    System.out.println(LatencyHistogram.report());
+    System.out.println("Rendered " + rendered + " frames, the film has "
+                       + film.getFrames() + " of " + iterations);
+    System.out.println("Rendering took "
+                       + (System.currentTimeMillis() - startTime) / 1000
+                       + " seconds");
+  }
 
+  /**
+   * The --coordinator mode: renders nothing itself, but leases tiles to
+   * --worker processes and saves the image they fill in, every save period
+   * and when all the tiles are back.
+   */
+  private static void coordinate(Scene s, Camera c, long sceneHash,
+                                 long startTime)
+  {
+    Image i = new Image(MagicNumbers.getPictureWidth(),
+        MagicNumbers.getPictureHeight());
+    int iterations = MagicNumbers.getNumIterations();
+    TileCoordinator coordinator = new TileCoordinator(newRenderer(s, c, i, 1),
+        iterations, MagicNumbers.LEASE_FRAMES, MagicNumbers.LEASE_TIME * 1000L,
+        MagicNumbers.RANDOM_SEED, sceneHash);
+    try
+    {
+      coordinator.listen(MagicNumbers.COORDINATOR_PORT);
     }
-    else
+    catch (IOException ex)
     {
-      RayTracer rt = new RayTracer(s);
-      System.out.println("Starting single-threaded renderer...");
-      final String ESC = "\033[";
-      for (int frameNo = 0; frameNo <= iterations; ++frameNo)
+      System.out.println("Error opening coordinator port (" + ex.getMessage()
+                         + ")");
+      System.exit(2);
+    }
+
+    ImageSaver saver = new ImageSaver();
+    long lastSaveTime = startTime;
+    try
+    {
+      while (!coordinator.awaitDone(1000))
       {
-        c.getFrame(s, i, rt);
-        System.out.format("Iteration: %d of %d. Time elapsed: %d", frameNo,
-            iterations, (System.currentTimeMillis() - startTime)
-                        / 1000);
-        System.out.print(ESC + "1G");  // XXX: fix this ugly hack. Might not work on all platforms.
+        System.out.format("Leases: %d of %d done, %d workers. "
+                          + "Time elapsed: %d\r", coordinator.getDoneUnits(),
+            coordinator.getNumUnits(), coordinator.getWorkers(),
+            (System.currentTimeMillis() - startTime) / 1000);
         System.out.flush();
-        if ((frameNo == 1
-             || (System.currentTimeMillis() - lastSaveTime > MagicNumbers.SAVE_PERIOD
-                                                             * 1000)))
+        if (coordinator.getDoneUnits() > 0 && System.currentTimeMillis()
+                                              - lastSaveTime
+                                              > MagicNumbers.SAVE_PERIOD * 1000)
         {
-          try
-          {
-            i.saveImage(MagicNumbers.IMAGE_FILENAME, frameNo-1, false);
-          }
-          catch (IOException ex)
-          {
-            System.out.println("Error saving image file (" + ex.getMessage()
-                               + ")");
-          }
+          saver.save(output(coordinator.snapshot()),
+              MagicNumbers.IMAGE_FILENAME, MagicNumbers.SAVE_AS_PNG);
           lastSaveTime = System.currentTimeMillis();
         }
       }
-      try
-      {
-        // save at the end of rendering too
-        i.saveImage(MagicNumbers.IMAGE_FILENAME, iterations, false);
-      }
-      catch (IOException ex)
-      {
-        System.out.println("Error saving image file (" + ex.getMessage() + ")");
-      }
     }
+    catch (InterruptedException ex)
+    {
+      System.out.println("Interrupted while waiting for the workers");
+      Thread.currentThread().interrupt();
+    }
+    coordinator.close();
+    System.out.println();
+
+    saver.save(output(coordinator.snapshot()), MagicNumbers.IMAGE_FILENAME,
+        MagicNumbers.SAVE_AS_PNG);
+    saver.close();
+    System.out.println(LatencyHistogram.report());
     System.out.println("Rendering took "
                        + (System.currentTimeMillis() - startTime) / 1000
                        + " seconds");
+  }
 
+  /**
+   * The --worker mode: renders tiles for the coordinator until it has no
+   * more, and saves nothing.
+   */
+  private static void work(Scene s, Camera c, long sceneHash, long startTime)
+  {
+    Image i = new Image(MagicNumbers.getPictureWidth(),
+        MagicNumbers.getPictureHeight());
+    FrameRenderer renderer = newRenderer(s, c, i, MagicNumbers.NUM_THREADS);
+    TileWorker worker = new TileWorker(renderer, sceneHash);
+    long renderStartTime = System.nanoTime();
+    try
+    {
+      worker.run(MagicNumbers.WORKER_HOST, MagicNumbers.WORKER_PORT,
+          MagicNumbers.NUM_THREADS);
+    }
+    catch (IOException ex)
+    {
+      System.out.println("Error working for the coordinator ("
+                         + ex.getMessage() + ")");
+      System.exit(2);
+    }
+    renderer.shutdown();
+    if (MagicNumbers.COUNTERS)
+      System.out.println(RenderStats.format(renderer.getCounters(),
+          new Counters(), (System.nanoTime() - renderStartTime) / 1e9));
+    System.out.println(LatencyHistogram.report());
+    System.out.println("Rendered " + worker.getUnits() + " leases in "
+                       + (System.currentTimeMillis() - startTime) / 1000
+                       + " seconds");
+  }
+
+  /**
+   * A renderer of the --crop window, or of the whole image.
+   */
+  private static FrameRenderer newRenderer(Scene s, Camera c, Image img,
+                                           int numThreads)
+  {
+    int[] crop = MagicNumbers.CROP != null ? MagicNumbers.CROP : new int[]
+        {
+          0, 0, img.getWidth(), img.getHeight()
+        };
+    return new FrameRenderer(s, c, img, numThreads, MagicNumbers.TILE_SIZE,
+        crop[0], crop[1], crop[2], crop[3]);
+  }
+
+  /**
+   * Renders previews with blocks of the tile size, then half that and so on,
+   * saving and streaming each one, for as long as the next level (four times
+   * the samples of the last) still fits in --coarse milliseconds. The
+   * coarsest level is always rendered. The previews don't go into the image
+   * being rendered: their samples are spread over whole blocks and would
+   * blur it.
+   */
+  private static void renderCoarse(FrameRenderer renderer, ImageSaver saver,
+                                   PreviewStream preview)
+  {
+    Image img = renderer.getImage();
+    long budget = MagicNumbers.COARSE_BUDGET * 1000000L;
+    long startTime = System.nanoTime();
+    for (int block = MagicNumbers.TILE_SIZE; block > 1; block /= 2)
+    {
+      long levelStart = System.nanoTime();
+      Image coarse = new Image(img.getWidth(), img.getHeight());
+      renderer.renderCoarse(block, coarse);
+      if (preview != null)
+        preview.offer(coarse, 0, false);
+      saver.save(output(coarse), MagicNumbers.IMAGE_FILENAME,
+          MagicNumbers.SAVE_AS_PNG);
+      long now = System.nanoTime();
+      System.out.format("Preview: %dx%d blocks after %d ms%n", block, block,
+          (now - startTime) / 1000000);
+      if (now - startTime + 4 * (now - levelStart) > budget)
+        break;
+    }
+  }
+
+  /**
+   * The part of the image to save: the --crop window unless the full size
+   * image is wanted.
+   */
+  private static Image output(Image img)
+  {
+    int[] crop = MagicNumbers.CROP;
+    if (crop == null || MagicNumbers.CROP_FULL_SIZE)
+      return img;
+    return img.crop(crop[0], crop[1], crop[2], crop[3]);
+  }
+
+  /**
+   * Prints the statistics of the octree and traces paths through randomly
+   * picked pixels to see how many nodes and triangles a ray costs.
+   */
+  private static void printOctreeStats(Scene s, Camera c)
+  {
+    System.out.print(s.getOctree().getStats());
+    Counters counters = new Counters();
+    RayTracer rt = new RayTracer(s, counters);
+    int width = MagicNumbers.getPictureWidth();
+    int height = MagicNumbers.getPictureHeight();
+    Image scratch = new Image(width, height);
+    Random r = new Random(MagicNumbers.RANDOM_SEED);
+    for (int i = 0; i < OCTREE_SAMPLE_PATHS; ++i)
+    {
+      int x = r.nextInt(width), y = r.nextInt(height);
+      c.getTile(s, scratch, rt, x, y, x + 1, y + 1);
+    }
+    System.out.format(Locale.ROOT,
+        "%n  %d sample paths: %.2f rays/path, %.1f nodes/ray, "
+        + "%.1f triangles/ray%n", OCTREE_SAMPLE_PATHS,
+        (double) counters.getRays() / OCTREE_SAMPLE_PATHS,
+        (double) counters.getNodesVisited() / counters.getRays(),
+        (double) counters.getTrianglesTested() / counters.getRays());
   }
 }
@@ -0,0 +1,134 @@
+package minilight;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import minilight.datastructures.CheckpointReader;
+import minilight.datastructures.Image;
+import static java.util.Arrays.asList;
+
+/**
+ * Combines renders of the same scene made with different seeds, for
+ * instance on different machines, into one image. Each render is a
+ * checkpoint file (--checkpoint) holding the raw radiance sums and sample
+ * counts, so adding them up gives the image a single render with all of
+ * their frames would have made, which no averaging of tone-mapped images
+ * can. The files are read a block of pixels at a time, in parallel, so
+ * there can be more of them than fit in memory.<br/><br/>
+ *
+ * java -cp MiniLight.jar minilight.Merge [options] part1 part2 ...
+ * @author Tom Eklöf
+ */
+public class Merge
+{
+
+  public static void main(String[] args)
+  {
+    OptionParser parsa = new OptionParser();
+
+    OptionSpec<String> imageOpt = parsa.accepts("image",
+        "Name of the tone-mapped image file").
+        withRequiredArg().ofType(String.class).defaultsTo("merged.ppm");
+
+    OptionSpec<String> hdrOpt = parsa.accepts("hdr",
+        "Also save the untone-mapped image as a PFM file").
+        withRequiredArg().ofType(String.class);
+
+    OptionSpec<Float> luminanceOpt = parsa.accepts("luminance",
+        "Display luminance to tone map for").
+        withRequiredArg().ofType(Float.class).defaultsTo(200f);
+
+    OptionSpec<Void> pngOpt = parsa.accepts("png",
+        "Save the image as PNG instead of PPM");
+
+    OptionSpec<Void> helpOpt = parsa.acceptsAll(asList("h", "help"),
+        "Prints usage information");
+
+    OptionSet opts = null;
+    try
+    {
+      opts = parsa.parse(args);
+    }
+    catch (OptionException e)
+    {
+      System.out.println("Invalid options: " + e.getMessage());
+      System.exit(2);
+    }
+
+    if (opts.has(helpOpt) || opts.nonOptionArguments().isEmpty())
+    {
+      try
+      {
+        System.out.println("Usage: minilight.Merge [options] checkpoint...\n");
+        parsa.printHelpOn(System.out);
+      }
+      catch (IOException ex)
+      {
+        System.out.println("Error printing help text: " + ex);
+      }
+      System.exit(opts.has(helpOpt) ? 0 : 2);
+    }
+
+    long startTime = System.currentTimeMillis();
+    List<CheckpointReader> parts = new ArrayList<CheckpointReader>();
+    Image img = null;
+    long frames = 0;
+    try
+    {
+      for (String fileName : opts.nonOptionArguments())
+      {
+        CheckpointReader part = new CheckpointReader(fileName);
+        parts.add(part);
+        frames += part.getFrames();
+        System.out.println(fileName + ": " + part.getFrames()
+                           + " frames, random seed " + part.getSeed());
+      }
+      img = CheckpointReader.merge(parts);
+    }
+    catch (IOException ex)
+    {
+      System.out.println("Error merging renders (" + ex.getMessage() + ")");
+      System.exit(2);
+    }
+    finally
+    {
+      for (CheckpointReader part : parts)
+        try
+        {
+          part.close();
+        }
+        catch (IOException ex)
+        {
+          // only read from
+        }
+    }
+    System.out.format(Locale.ROOT, "Merged %d renders, %d frames, %dx%d "
+                                   + "pixels in %d ms%n", parts.size(), frames,
+        img.getWidth(), img.getHeight(), System.currentTimeMillis()
+                                         - startTime);
+
+    String imageFile = imageOpt.value(opts);
+    boolean asPNG = opts.has(pngOpt) || imageFile.toLowerCase().endsWith(
+        ".png");
+    try
+    {
+      img.saveImage(imageFile, asPNG, luminanceOpt.value(opts));
+      System.out.println("Wrote " + imageFile);
+      if (opts.has(hdrOpt))
+      {
+        img.savePFM(opts.valueOf(hdrOpt));
+        System.out.println("Wrote " + opts.valueOf(hdrOpt));
+      }
+    }
+    catch (IOException ex)
+    {
+      System.out.println("Error saving image file (" + ex.getMessage() + ")");
+      System.exit(1);
+    }
+  }
+}
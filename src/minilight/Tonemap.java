@@ -0,0 +1,172 @@
+package minilight;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import minilight.datastructures.Checkpoint;
+import minilight.datastructures.Image;
+
+/**
+ * Makes displayable images out of a finished or running render without
+ * rendering anything: reads a PFM file saved with --hdr (or a checkpoint
+ * file) and runs the tone mapping, gamma encoding and quantization again,
+ * possibly for several display luminances at once.<br/><br/>
+ *
+ * java -cp MiniLight.jar minilight.Tonemap [options] file.pfm
+ * @author Tom Eklöf
+ */
+public class Tonemap
+{
+
+  public static void main(String[] args)
+  {
+    OptionParser parsa = new OptionParser();
+
+    OptionSpec<Float> luminanceOpt = parsa.accepts("luminance",
+        "Display luminance to tone map for. Can be given several times to "
+        + "make several images").
+        withRequiredArg().ofType(Float.class).defaultsTo(200f);
+
+    OptionSpec<String> imageOpt = parsa.accepts("image",
+        "Name of the image file. (Defaults to input name + \".ppm\", "
+        + "with the luminance added if there are several)").
+        withRequiredArg().ofType(String.class);
+
+    OptionSpec<Void> pngOpt = parsa.accepts("png",
+        "Save images as PNG instead of PPM");
+
+    OptionSpec<Void> helpOpt = parsa.accepts("help", "Prints usage information");
+
+    OptionSet opts = null;
+    try
+    {
+      opts = parsa.parse(args);
+    }
+    catch (OptionException e)
+    {
+      System.out.println("Invalid options: " + e.getMessage());
+      System.exit(2);
+    }
+
+    if (opts.has(helpOpt) || opts.nonOptionArguments().size() != 1)
+    {
+      try
+      {
+        System.out.println("Usage: minilight.Tonemap [options] "
+                           + "file.pfm|checkpoint\n");
+        parsa.printHelpOn(System.out);
+      }
+      catch (IOException ex)
+      {
+        System.out.println("Error printing help text: " + ex);
+      }
+      System.exit(opts.has(helpOpt) ? 0 : 2);
+    }
+
+    String inFile = opts.nonOptionArguments().get(0);
+    final boolean asPNG = opts.has(pngOpt)
+                          || (opts.has(imageOpt) && opts.valueOf(imageOpt).
+        toLowerCase().endsWith(".png"));
+    List<Float> luminances = luminanceOpt.values(opts);
+
+    long startTime = System.currentTimeMillis();
+    Image img = null;
+    try
+    {
+      img = readImage(inFile);
+    }
+    catch (IOException ex)
+    {
+      System.out.println("Error reading " + inFile + " (" + ex.getMessage()
+                         + ")");
+      System.exit(2);
+    }
+    System.out.format("Read %dx%d image in %d ms%n", img.getWidth(),
+        img.getHeight(), System.currentTimeMillis() - startTime);
+
+    String base = opts.has(imageOpt) ? opts.valueOf(imageOpt)
+                  : inFile + (asPNG ? ".png" : ".ppm");
+
+    ExecutorService es = Executors.newFixedThreadPool(Math.min(
+        luminances.size(), Runtime.getRuntime().availableProcessors()));
+    List<Future<String>> results = new ArrayList<Future<String>>();
+    for (final float luminance : luminances)
+    {
+      final Image source = img;
+      final String outFile = luminances.size() == 1 ? base
+                             : addSuffix(base, "-" + luminance);
+      results.add(es.submit(new Callable<String>()
+      {
+
+        public String call() throws IOException
+        {
+          source.saveImage(outFile, asPNG, luminance);
+          return outFile;
+        }
+      }));
+    }
+    es.shutdown();
+
+    int status = 0;
+    for (Future<String> f : results)
+      try
+      {
+        System.out.println("Wrote " + f.get());
+      }
+      catch (InterruptedException ex)
+      {
+        System.out.println("Interrupted while saving images");
+        status = 1;
+      }
+      catch (ExecutionException ex)
+      {
+        System.out.println("Error saving image file (" + ex.getCause().
+            getMessage() + ")");
+        status = 1;
+      }
+
+    System.out.println("Tone mapping took "
+                       + (System.currentTimeMillis() - startTime) + " ms");
+    System.exit(status);
+  }
+
+  /**
+   * Reads a PFM file, or the raw image out of a checkpoint file.
+   */
+  static Image readImage(String fileName) throws IOException
+  {
+    byte[] id = new byte[2];
+    FileInputStream is = new FileInputStream(fileName);
+    try
+    {
+      if (is.read(id) != 2)
+        throw new IOException("File is too short");
+    }
+    finally
+    {
+      is.close();
+    }
+
+    if (id[0] == 'P' && id[1] == 'F')
+      return Image.readPFM(fileName);
+    return Checkpoint.read(fileName).getImage();
+  }
+
+  private static String addSuffix(String fileName, String suffix)
+  {
+    int dot = fileName.lastIndexOf('.');
+    if (dot <= 0)
+      return fileName + suffix;
+    return fileName.substring(0, dot) + suffix + fileName.substring(dot);
+  }
+}
@@ -0,0 +1,157 @@
+package minilight.datastructures;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import minilight.scene.Camera;
+import minilight.scene.Scene;
+
+/**
+ * The complete state of a render in progress: the raw radiance sums and
+ * sample counts of the image, plus what is needed to carry on sampling where
+ * the render left off.<br/><br/>
+ *
+ * File layout, little-endian:
+ * <pre>
+ *  0 magic "MLCK"       4 version
+ *  8 width             12 height
+ * 16 random seed (long)
+ * 24 frames rendered (long)
+ * 32 scene hash (long)
+ * 40 reserved, up to HEADER_SIZE (SharedFilm keeps a counter at 40)
+ * HEADER_SIZE:  width * height * 3 float radiance sums, top row first
+ * after those:  width * height int sample counts        </pre>
+ * @author Tom Eklöf
+ */
+public class Checkpoint
+{
+
+  static final int MAGIC = 0x4b434c4d; // "MLCK"
+  static final int VERSION = 1;
+  public static final int HEADER_SIZE = 64;
+  private static final int CHUNK_SIZE = 1 << 20;
+  private final Image _image;
+  private final long _seed;
+  private final long _frames;
+  private final long _sceneHash;
+
+  public Checkpoint(Image image, long seed, long frames, long sceneHash)
+  {
+    _image = image;
+    _seed = seed;
+    _frames = frames;
+    _sceneHash = sceneHash;
+  }
+
+  /**
+   * Hashes the scene together with the camera, since a checkpoint is only
+   * valid for the exact same view.
+   */
+  public static long sceneHash(Scene s, Camera c)
+  {
+    long h = s.getHash();
+    h = c.getCameraPosition().hash(h);
+    h = c.getViewDirection().hash(h);
+    return (h ^ Float.floatToIntBits(c.getViewAngle())) * 0x100000001b3L;
+  }
+
+  /**
+   * Writes the checkpoint into a temporary file next to the target and then
+   * renames it over the target, so a crash halfway leaves the previous
+   * checkpoint intact.
+   * @param fileName
+   * @throws IOException
+   */
+  public void write(String fileName) throws IOException
+  {
+    Path target = Paths.get(fileName).toAbsolutePath();
+    Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+
+    float[] sums = _image.getRadianceSums();
+    int[] counts = _image.getSampleCounts();
+    ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_SIZE).order(
+        ByteOrder.LITTLE_ENDIAN);
+
+    FileChannel fc = new FileOutputStream(temp.toFile()).getChannel();
+    try
+    {
+      buf.putInt(MAGIC).putInt(VERSION);
+      buf.putInt(_image.getWidth()).putInt(_image.getHeight());
+      buf.putLong(_seed).putLong(_frames).putLong(_sceneHash);
+      while (buf.position() < HEADER_SIZE)
+        buf.put((byte) 0);
+
+      for (int i = 0; i < sums.length; ++i)
+      {
+        if (buf.remaining() < 4)
+          flush(fc, buf);
+        buf.putFloat(sums[i]);
+      }
+      for (int i = 0; i < counts.length; ++i)
+      {
+        if (buf.remaining() < 4)
+          flush(fc, buf);
+        buf.putInt(counts[i]);
+      }
+      flush(fc, buf);
+      fc.force(true);
+    }
+    finally
+    {
+      fc.close();
+    }
+    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void flush(FileChannel fc, ByteBuffer buf) throws IOException
+  {
+    buf.flip();
+    while (buf.hasRemaining())
+      fc.write(buf);
+    buf.clear();
+  }
+
+  public static Checkpoint read(String fileName) throws IOException
+  {
+    CheckpointReader reader = new CheckpointReader(fileName);
+    try
+    {
+      Image img = new Image(reader.getWidth(), reader.getHeight());
+      reader.read(0, img.getSampleCounts().length, img.getRadianceSums(),
+          img.getSampleCounts());
+      return new Checkpoint(img, reader.getSeed(), reader.getFrames(),
+          reader.getSceneHash());
+    }
+    finally
+    {
+      reader.close();
+    }
+  }
+
+  public Image getImage()
+  {
+    return _image;
+  }
+
+  public long getSeed()
+  {
+    return _seed;
+  }
+
+  public long getFrames()
+  {
+    return _frames;
+  }
+
+  public long getSceneHash()
+  {
+    return _sceneHash;
+  }
+}
@@ -0,0 +1,236 @@
+package minilight.datastructures;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import minilight.utils.Parallel;
+
+/**
+ * Reads a checkpoint file a range of pixels at a time, from any number of
+ * threads at once, so checkpoints of renders made with different seeds can
+ * be merged without holding them all in memory (see minilight.Merge).
+ * @author Tom Eklöf
+ */
+public class CheckpointReader
+{
+
+  // pixels read in one go, and the smallest amount worth another thread
+  private static final int BLOCK_PIXELS = 16384;
+  private final String _fileName;
+  private final FileChannel _channel;
+  private final int _width;
+  private final int _height;
+  private final long _seed;
+  private final long _frames;
+  private final long _sceneHash;
+
+  /**
+   * Opens the file and reads the header.
+   * @throws IOException If it isn't a complete checkpoint file.
+   */
+  public CheckpointReader(String fileName) throws IOException
+  {
+    _fileName = fileName;
+    _channel = new FileInputStream(fileName).getChannel();
+    try
+    {
+      ByteBuffer header = ByteBuffer.allocate(Checkpoint.HEADER_SIZE).order(
+          ByteOrder.LITTLE_ENDIAN);
+      readFully(header, 0);
+      if (header.getInt() != Checkpoint.MAGIC)
+        throw new IOException(fileName + " is not a checkpoint file");
+      int version = header.getInt();
+      if (version != Checkpoint.VERSION)
+        throw new IOException("Unsupported checkpoint version " + version);
+      _width = header.getInt();
+      _height = header.getInt();
+      _seed = header.getLong();
+      _frames = header.getLong();
+      _sceneHash = header.getLong();
+      if (_width < 1 || _height < 1
+          || _channel.size() != Checkpoint.HEADER_SIZE + (long) _width
+                                                         * _height * 16)
+        throw new IOException("Checkpoint file " + fileName
+                              + " has the wrong size");
+    }
+    catch (IOException ex)
+    {
+      _channel.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Reads the sums and sample counts of pixels from up to to, top row first,
+   * into the start of the given arrays.
+   */
+  public void read(int from, int to, float[] sums, int[] counts) throws
+      IOException
+  {
+    read(from, to, sums, counts, newBuffer(to - from));
+  }
+
+  private static ByteBuffer newBuffer(int pixels)
+  {
+    return ByteBuffer.allocate(Math.min(pixels, BLOCK_PIXELS) * 12).order(
+        ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private void read(int from, int to, float[] sums, int[] counts,
+                    ByteBuffer buf) throws IOException
+  {
+    int n = to - from;
+    long countsStart = Checkpoint.HEADER_SIZE + (long) _width * _height * 12;
+    for (int done = 0; done < n;)
+    {
+      int pixels = Math.min(n - done, BLOCK_PIXELS);
+      buf.clear().limit(pixels * 12);
+      readFully(buf, Checkpoint.HEADER_SIZE + (from + done) * 12L);
+      buf.asFloatBuffer().get(sums, done * 3, pixels * 3);
+      buf.clear().limit(pixels * 4);
+      readFully(buf, countsStart + (from + done) * 4L);
+      buf.asIntBuffer().get(counts, done, pixels);
+      done += pixels;
+    }
+  }
+
+  private void readFully(ByteBuffer buf, long position) throws IOException
+  {
+    while (buf.hasRemaining())
+    {
+      int n = _channel.read(buf, position);
+      if (n < 0)
+        throw new IOException("Unexpected end of checkpoint file "
+                              + _fileName);
+      position += n;
+    }
+    buf.flip();
+  }
+
+  public void close() throws IOException
+  {
+    _channel.close();
+  }
+
+  /**
+   * Adds up the sums and sample counts of several checkpoints of the same
+   * scene, each made with a seed of its own, into one image: the one a
+   * render with all of their frames would have made. Goes through the
+   * pixels in parallel blocks, reading the block of every checkpoint in
+   * turn and summing in double precision.
+   * @throws IOException If a file can't be read, or the checkpoints are of
+   * different scenes or image sizes, or two have the same seed (and
+   * therefore the same samples).
+   */
+  public static Image merge(final List<CheckpointReader> parts) throws
+      IOException
+  {
+    CheckpointReader first = parts.get(0);
+    Map<Long, String> seeds = new HashMap<Long, String>();
+    for (CheckpointReader part : parts)
+    {
+      if (part._width != first._width || part._height != first._height
+          || part._sceneHash != first._sceneHash)
+        throw new IOException(part._fileName + " was made from a different "
+                              + "scene or image size than "
+                              + first._fileName);
+      String same = seeds.put(part._seed, part._fileName);
+      if (same != null)
+        throw new IOException(part._fileName + " and " + same
+                              + " have the same seed " + part._seed
+                              + ", and so the same samples");
+    }
+
+    final Image result = new Image(first._width, first._height);
+    final float[] resultSums = result.getRadianceSums();
+    final int[] resultCounts = result.getSampleCounts();
+    try
+    {
+      Parallel.forChunks(resultCounts.length, BLOCK_PIXELS,
+          new Parallel.Chunk()
+          {
+
+            public void run(int chunk, int from, int to)
+            {
+              float[] sums = new float[Math.min(to - from, BLOCK_PIXELS) * 3];
+              int[] counts = new int[sums.length / 3];
+              double[] sumsTotal = new double[sums.length];
+              long[] countsTotal = new long[counts.length];
+              ByteBuffer buf = newBuffer(counts.length);
+              for (int start = from; start < to; start += counts.length)
+              {
+                int end = Math.min(start + counts.length, to);
+                Arrays.fill(sumsTotal, 0);
+                Arrays.fill(countsTotal, 0);
+                for (CheckpointReader part : parts)
+                {
+                  try
+                  {
+                    part.read(start, end, sums, counts, buf);
+                  }
+                  catch (IOException ex)
+                  {
+                    throw new IllegalStateException(ex);
+                  }
+                  for (int i = 0; i < (end - start) * 3; ++i)
+                    sumsTotal[i] += sums[i];
+                  for (int i = 0; i < end - start; ++i)
+                    countsTotal[i] += counts[i];
+                }
+                for (int i = 0; i < (end - start) * 3; ++i)
+                  resultSums[start * 3 + i] = (float) sumsTotal[i];
+                for (int i = 0; i < end - start; ++i)
+                {
+                  if (countsTotal[i] > Integer.MAX_VALUE)
+                    throw new IllegalStateException(new IOException(
+                        "Too many samples in pixel " + (start + i)));
+                  resultCounts[start + i] = (int) countsTotal[i];
+                }
+              }
+            }
+          });
+    }
+    catch (IllegalStateException ex)
+    {
+      // thrown in a chunk, then wrapped by Parallel
+      Throwable cause = ex.getCause();
+      while (cause != null && !(cause instanceof IOException))
+        cause = cause.getCause();
+      if (cause != null)
+        throw (IOException) cause;
+      throw ex;
+    }
+    return result;
+  }
+
+  public int getWidth()
+  {
+    return _width;
+  }
+
+  public int getHeight()
+  {
+    return _height;
+  }
+
+  public long getSeed()
+  {
+    return _seed;
+  }
+
+  public long getFrames()
+  {
+    return _frames;
+  }
+
+  public long getSceneHash()
+  {
+    return _sceneHash;
+  }
+}
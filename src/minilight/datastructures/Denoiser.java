@@ -0,0 +1,207 @@
+package minilight.datastructures;
+
+import minilight.utils.Parallel;
+
+/**
+ * An edge-avoiding à-trous wavelet filter (Dammertz et al., "Edge-Avoiding
+ * À-Trous Wavelet Transform for fast Global Illumination Filtering"),
+ * guided by the Features of the image.<br/><br/>
+ *
+ * The emission seen directly is taken out of the average radiance of each
+ * pixel and the rest divided by its albedo first, so only the reflected
+ * lighting gets blurred and not the colours of the surfaces or the edges of
+ * emitters. That is then filtered PASSES times with a 5x5 B3 spline kernel
+ * whose taps are 1, 2, 4... pixels apart. A tap only counts as much as its
+ * normal, distance and lighting agree with those of the pixel, so edges stay
+ * sharp. Lighting differences are measured against the pixel's standard
+ * deviation, which is filtered along with the lighting, as in SVGF (Schied
+ * et al.): the more samples, the less gets blurred. As a pixel's own
+ * variance is unreliable with few samples, the variance of the lighting of
+ * the pixels around it with the same normal and albedo is used where that is
+ * larger. Each pass runs in parallel over bands of rows.
+ * @author Tom Eklöf
+ */
+public class Denoiser
+{
+
+  public static final int PASSES = 5;
+  public static final float SIGMA_COLOR = 4f; // standard deviations
+  public static final float SIGMA_DEPTH = 0.05f; // relative, per pixel
+  public static final float NORMAL_POWER = 32f;
+  private static final float[] KERNEL =
+  {
+    1f / 16f, 1f / 4f, 3f / 8f, 1f / 4f, 1f / 16f
+  };
+  private static final int VARIANCE_RADIUS = 3;
+  private static final float MIN_ALBEDO = 0.01f;
+  private static final int MIN_CHUNK_ROWS = 8;
+
+  /**
+   * @return A filtered copy of the image, with the same sample counts, or
+   * the image itself if it has no Features.
+   */
+  public static Image denoise(Image img)
+  {
+    Features f = img.getFeatures();
+    if (f == null)
+      return img;
+    final int width = img.getWidth();
+    final int height = img.getHeight();
+    final float[] albedo = f.getAlbedo();
+    final float[] emission = f.getEmission();
+    final float[] normals = f.getNormals();
+    final float[] depth = f.getDepth();
+    final int[] samples = img.getSampleCounts();
+    float[] sums = img.getRadianceSums();
+    float[] variance = f.getVariance();
+
+    // lighting alone: the average radiance over the albedo
+    float[] light = new float[sums.length];
+    for (int i = 0; i < sums.length; ++i)
+    {
+      int n = samples[i / 3];
+      light[i] = n > 0 ? (sums[i] / n - emission[i])
+                         / Math.max(albedo[i], MIN_ALBEDO) : 0f;
+    }
+    for (int p = 0; p < variance.length; ++p)
+    {
+      float a = Math.max(luminance(albedo, p), MIN_ALBEDO);
+      variance[p] /= a * a;
+    }
+    spatialVariance(width, height, light, variance, albedo, normals, samples);
+
+    for (int pass = 0; pass < PASSES; ++pass)
+    {
+      final float[] in = light, inVariance = variance;
+      final float[] out = new float[in.length];
+      final float[] outVariance = new float[inVariance.length];
+      final int step = 1 << pass;
+      Parallel.forChunks(height, MIN_CHUNK_ROWS, new Parallel.Chunk()
+      {
+
+        public void run(int chunk, int from, int to)
+        {
+          for (int y = from; y < to; ++y)
+            for (int x = 0; x < width; ++x)
+              filter(x, y, step, width, height, in, inVariance, out,
+                  outVariance, normals, depth, samples);
+        }
+      });
+      light = out;
+      variance = outVariance;
+    }
+
+    Image result = new Image(width, height);
+    float[] resultSums = result.getRadianceSums();
+    int[] resultSamples = result.getSampleCounts();
+    System.arraycopy(samples, 0, resultSamples, 0, samples.length);
+    for (int i = 0; i < light.length; ++i)
+      resultSums[i] = (light[i] * Math.max(albedo[i], MIN_ALBEDO)
+                       + emission[i]) * samples[i / 3];
+    return result;
+  }
+
+  private static void filter(int x, int y, int step, int width, int height,
+                             float[] in, float[] inVariance, float[] out,
+                             float[] outVariance, float[] normals,
+                             float[] depth, int[] samples)
+  {
+    int p = x + y * width;
+    if (samples[p] == 0)
+      return;
+    float lp = luminance(in, p);
+    float tolerance = SIGMA_COLOR * (float) Math.sqrt(inVariance[p]) + 1e-6f;
+    float r = 0f, g = 0f, b = 0f, v = 0f, weights = 0f;
+    for (int dy = -2; dy <= 2; ++dy)
+    {
+      int qy = y + dy * step;
+      if (qy < 0 || qy >= height)
+        continue;
+      for (int dx = -2; dx <= 2; ++dx)
+      {
+        int qx = x + dx * step;
+        if (qx < 0 || qx >= width)
+          continue;
+        int q = qx + qy * width;
+        if (samples[q] == 0)
+          continue;
+
+        float w = KERNEL[dx + 2] * KERNEL[dy + 2];
+        if (q != p)
+        {
+          float cos = normals[p * 3] * normals[q * 3]
+                      + normals[p * 3 + 1] * normals[q * 3 + 1]
+                      + normals[p * 3 + 2] * normals[q * 3 + 2];
+          if (cos <= 0f)
+            continue;
+          w *= (float) Math.pow(cos, NORMAL_POWER);
+
+          float distance = step * (float) Math.sqrt(dx * dx + dy * dy);
+          w *= (float) Math.exp(-Math.abs(depth[p] - depth[q])
+                                / (SIGMA_DEPTH * depth[p] * distance
+                                   + 1e-6f));
+
+          w *= (float) Math.exp(-Math.abs(lp - luminance(in, q))
+                                / tolerance);
+        }
+        r += w * in[q * 3];
+        g += w * in[q * 3 + 1];
+        b += w * in[q * 3 + 2];
+        v += w * w * inVariance[q];
+        weights += w;
+      }
+    }
+    out[p * 3] = r / weights;
+    out[p * 3 + 1] = g / weights;
+    out[p * 3 + 2] = b / weights;
+    outVariance[p] = v / (weights * weights);
+  }
+
+  /**
+   * Raises the variance of each pixel to that of the lighting of the pixels
+   * around it with the same normal and albedo, where that is larger.
+   */
+  private static void spatialVariance(int width, int height, float[] light,
+                                      float[] variance, float[] albedo,
+                                      float[] normals, int[] samples)
+  {
+    float[] original = variance.clone();
+    for (int y = 0; y < height; ++y)
+      for (int x = 0; x < width; ++x)
+      {
+        int p = x + y * width;
+        if (samples[p] == 0)
+          continue;
+        float a = luminance(albedo, p);
+        float sum = 0f, sum2 = 0f;
+        int n = 0;
+        for (int qy = Math.max(0, y - VARIANCE_RADIUS);
+             qy <= Math.min(height - 1, y + VARIANCE_RADIUS); ++qy)
+          for (int qx = Math.max(0, x - VARIANCE_RADIUS);
+               qx <= Math.min(width - 1, x + VARIANCE_RADIUS); ++qx)
+          {
+            int q = qx + qy * width;
+            if (samples[q] == 0
+                || Math.abs(luminance(albedo, q) - a) > 0.1f * a
+                || normals[p * 3] * normals[q * 3]
+                   + normals[p * 3 + 1] * normals[q * 3 + 1]
+                   + normals[p * 3 + 2] * normals[q * 3 + 2] < 0.9f)
+              continue;
+            float l = luminance(light, q);
+            sum += l;
+            sum2 += l * l;
+            ++n;
+          }
+        if (n > 1)
+          variance[p] = Math.max(original[p], sum2 / n - (sum / n)
+                                                         * (sum / n));
+      }
+  }
+
+  private static float luminance(float[] rgb, int pixel)
+  {
+    return Image.RGB_LUMINANCE.x * rgb[pixel * 3]
+           + Image.RGB_LUMINANCE.y * rgb[pixel * 3 + 1]
+           + Image.RGB_LUMINANCE.z * rgb[pixel * 3 + 2];
+  }
+}
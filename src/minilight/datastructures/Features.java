@@ -0,0 +1,215 @@
+package minilight.datastructures;
+
+import java.util.Arrays;
+import minilight.scene.Triangle;
+import minilight.scene.Vector;
+
+/**
+ * What the eye rays hit first in each pixel, summed over the samples: the
+ * reflectivity (albedo), the emission towards the eye, the normal turned
+ * towards the eye and the distance. Unlike the radiance, these have little
+ * noise, so the Denoiser uses them to tell edges from noise. Rays that hit
+ * nothing count as albedo 1, no normal and distance 0. The luminance of the
+ * samples and its square are summed too, for the variance of each
+ * pixel.<br/><br/>
+ *
+ * Laid out like Image, top row first. Like an Image, only one thread may
+ * add to a pixel at a time.
+ * @author Tom Eklöf
+ */
+public class Features
+{
+
+  private final int _width;
+  private final int _height;
+  private final float[] _albedo; // 3 per pixel
+  private final float[] _emission; // 3 per pixel
+  private final float[] _normals; // 3 per pixel
+  private final float[] _depth;
+  private final float[] _luminance;
+  private final float[] _luminance2;
+  private final int[] _samples;
+
+  public Features(int width, int height)
+  {
+    _width = width;
+    _height = height;
+    _albedo = new float[width * height * 3];
+    _emission = new float[width * height * 3];
+    _normals = new float[width * height * 3];
+    _depth = new float[width * height];
+    _luminance = new float[width * height];
+    _luminance2 = new float[width * height];
+    _samples = new int[width * height];
+  }
+
+  private Features(Features f)
+  {
+    _width = f._width;
+    _height = f._height;
+    _albedo = f._albedo.clone();
+    _emission = f._emission.clone();
+    _normals = f._normals.clone();
+    _depth = f._depth.clone();
+    _luminance = f._luminance.clone();
+    _luminance2 = f._luminance2.clone();
+    _samples = f._samples.clone();
+  }
+
+  /**
+   * @param x Column
+   * @param y Row, counting from the bottom like Image.addToPixel()
+   * @param item The triangle the eye ray hit, or null
+   * @param position Where it hit it
+   * @param eyePosition
+   * @param radiance The sample added to the image
+   */
+  public void add(int x, int y, Triangle item, Vector position,
+                  Vector eyePosition, Vector radiance)
+  {
+    final int pixel = x + ((_height - 1 - y) * _width);
+    final int index = pixel * 3;
+    ++_samples[pixel];
+    float luminance = radiance.dot(Image.RGB_LUMINANCE);
+    _luminance[pixel] += luminance;
+    _luminance2[pixel] += luminance * luminance;
+    if (item == null)
+    {
+      _albedo[index] += 1f;
+      _albedo[index + 1] += 1f;
+      _albedo[index + 2] += 1f;
+      return;
+    }
+    Vector albedo = item.getReflectivity();
+    Vector normal = item.getNormal();
+    Vector ray = position.sub(eyePosition);
+    boolean back = normal.dot(ray) > 0f;
+    if (back)
+      normal = normal.neg();
+    _albedo[index] += albedo.x;
+    _albedo[index + 1] += albedo.y;
+    _albedo[index + 2] += albedo.z;
+    if (!back) // emitting from the front face only
+    {
+      Vector emission = item.getEmissivity();
+      _emission[index] += emission.x;
+      _emission[index + 1] += emission.y;
+      _emission[index + 2] += emission.z;
+    }
+    _normals[index] += normal.x;
+    _normals[index + 1] += normal.y;
+    _normals[index + 2] += normal.z;
+    _depth[pixel] += (float) Math.sqrt(ray.dot(ray));
+  }
+
+  public Features copy()
+  {
+    return new Features(this);
+  }
+
+  /**
+   * @see Image#crop(int, int, int, int)
+   */
+  public Features crop(int x, int y, int width, int height)
+  {
+    Features result = new Features(width, height);
+    for (int row = 0; row < height; ++row)
+    {
+      int from = (y + row) * _width + x;
+      int to = row * width;
+      System.arraycopy(_albedo, from * 3, result._albedo, to * 3, width * 3);
+      System.arraycopy(_emission, from * 3, result._emission, to * 3,
+          width * 3);
+      System.arraycopy(_normals, from * 3, result._normals, to * 3,
+          width * 3);
+      System.arraycopy(_depth, from, result._depth, to, width);
+      System.arraycopy(_luminance, from, result._luminance, to, width);
+      System.arraycopy(_luminance2, from, result._luminance2, to, width);
+      System.arraycopy(_samples, from, result._samples, to, width);
+    }
+    return result;
+  }
+
+  /**
+   * @return The average albedo of the pixels, 3 floats per pixel.
+   */
+  float[] getAlbedo()
+  {
+    return average(_albedo, 3);
+  }
+
+  /**
+   * @return The average emission seen in the pixels, 3 floats per pixel.
+   */
+  float[] getEmission()
+  {
+    return average(_emission, 3);
+  }
+
+  /**
+   * @return The average normal of the pixels, unit length or zero, 3
+   * floats per pixel.
+   */
+  float[] getNormals()
+  {
+    float[] normals = Arrays.copyOf(_normals, _normals.length);
+    for (int i = 0; i < normals.length; i += 3)
+    {
+      float length = (float) Math.sqrt(normals[i] * normals[i]
+                                       + normals[i + 1] * normals[i + 1]
+                                       + normals[i + 2] * normals[i + 2]);
+      if (length > 0f)
+        for (int j = 0; j < 3; ++j)
+          normals[i + j] /= length;
+    }
+    return normals;
+  }
+
+  /**
+   * @return The average distance of the pixels.
+   */
+  float[] getDepth()
+  {
+    return average(_depth, 1);
+  }
+
+  /**
+   * @return The variance of the average luminance of the pixels: that of
+   * the samples over their number.
+   */
+  float[] getVariance()
+  {
+    float[] variance = new float[_samples.length];
+    for (int i = 0; i < variance.length; ++i)
+    {
+      int n = _samples[i];
+      if (n > 0)
+      {
+        float mean = _luminance[i] / n;
+        variance[i] = Math.max(0f, _luminance2[i] / n - mean * mean) / n;
+      }
+    }
+    return variance;
+  }
+
+  private float[] average(float[] sums, int perPixel)
+  {
+    float[] result = new float[sums.length];
+    for (int i = 0; i < sums.length; ++i)
+    {
+      int n = _samples[i / perPixel];
+      result[i] = n > 0 ? sums[i] / n : 0f;
+    }
+    return result;
+  }
+
+  public int getWidth()
+  {
+    return _width;
+  }
+
+  public int getHeight()
+  {
+    return _height;
+  }
+}
@@ -0,0 +1,123 @@
+package minilight.datastructures;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where the packed triangles (TriangleStore) and the octree (Spatial) keep
+ * their numbers: in arrays on the heap, in direct buffers outside it, or in
+ * a file mapped into memory. Off the heap a scene is a handful of big
+ * buffers that the garbage collector never looks into, however many
+ * triangles it has.<br/><br/>
+ *
+ * A mapped file is scratch space: it's emptied when opened and deleted when
+ * the program exits. Buffers are never freed before that.
+ * @author Tom Eklöf
+ */
+public class GeometryMemory
+{
+
+  public static final GeometryMemory HEAP = new GeometryMemory(false, null,
+      null);
+  private static final int ALIGNMENT = 64;
+  private final boolean _direct;
+  private final FileChannel _channel; // null if not mapped
+  private final String _fileName;
+  private long _position = 0;
+  private long _allocated = 0;
+
+  private GeometryMemory(boolean direct, FileChannel channel,
+                         String fileName)
+  {
+    _direct = direct;
+    _channel = channel;
+    _fileName = fileName;
+  }
+
+  /**
+   * Direct buffers, outside the heap.
+   */
+  public static GeometryMemory direct()
+  {
+    return new GeometryMemory(true, null, null);
+  }
+
+  /**
+   * Buffers mapped from the given file, which is created or emptied.
+   */
+  public static GeometryMemory mapped(String fileName) throws IOException
+  {
+    File file = new File(fileName);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(0);
+    file.deleteOnExit();
+    return new GeometryMemory(true, raf.getChannel(), fileName);
+  }
+
+  /**
+   * @return Whether the buffers are outside the heap.
+   */
+  public boolean isDirect()
+  {
+    return _direct;
+  }
+
+  public synchronized FloatBuffer allocateFloats(int n)
+  {
+    _allocated += 4L * n;
+    if (!_direct)
+      return FloatBuffer.allocate(n);
+    return allocate(4L * n).asFloatBuffer();
+  }
+
+  public synchronized IntBuffer allocateInts(int n)
+  {
+    _allocated += 4L * n;
+    if (!_direct)
+      return IntBuffer.allocate(n);
+    return allocate(4L * n).asIntBuffer();
+  }
+
+  private ByteBuffer allocate(long bytes)
+  {
+    ByteBuffer buffer;
+    if (_channel == null)
+      buffer = ByteBuffer.allocateDirect((int) bytes);
+    else
+    {
+      try
+      {
+        buffer = _channel.map(FileChannel.MapMode.READ_WRITE, _position,
+            bytes);
+      }
+      catch (IOException ex)
+      {
+        throw new IllegalStateException("Error mapping " + bytes
+                                        + " bytes of " + _fileName, ex);
+      }
+      _position += (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+    return buffer.order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * @return Bytes handed out so far.
+   */
+  public synchronized long getAllocated()
+  {
+    return _allocated;
+  }
+
+  @Override
+  public String toString()
+  {
+    return _channel != null ? "mapped from " + _fileName : _direct
+                                                           ? "direct" : "heap";
+  }
+}
@@ -1,13 +1,20 @@
 package minilight.datastructures;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.List;
+import minilight.events.SnapshotEvent;
 import minilight.scene.Vector;
 import minilight.utils.MagicNumbers;
+import minilight.utils.Parallel;
+import minilight.utils.PngEncoder;
 import static java.lang.Math.log10;
 import static java.lang.Math.pow;
 import static java.lang.Math.floor;
@@ -21,29 +28,107 @@ public class Image
 
   private final int _width;
   private final int _height;
-  private final String PPM_ID = "P6";
-  private final String MINILIGHT_URI = "http://www.hxa7241.org/minilight/";
+  private static final String PPM_ID = "P6";
+  private static final String PFM_ID = "PF";
+  // a PFM pixel without samples
+  private static final int NEGATIVE_ZERO = Float.floatToRawIntBits(-0.0f);
+  private static final String MINILIGHT_URI =
+                              "http://www.hxa7241.org/minilight/";
   // ITU-R BT.709 standard RGB luminance weighting
   public static final Vector RGB_LUMINANCE = new Vector(0.2126f, 0.7152f,
       0.0722f);
   public static final float GAMMA_ENCODE = 0.45f; // ITU-R BT.709 standard gamma
+  private static final float[] QUANTIZATION_STEPS = makeQuantizationSteps();
+  public static final double RELATIVE_ERROR_EPSILON = 0.01; // see getErrors()
+  // smallest amount of pixels worth handing to another thread
+  private static final int MIN_CHUNK_PIXELS = 16384;
   private final int NUM_PIXELS;
-  private Vector[] _pixels;
+  /*
+   * Radiance sums, 3 floats (RGB) per pixel, top row first. A flat array
+   * instead of a Vector per pixel so adding a sample doesn't allocate and a
+   * snapshot is a single array copy.
+   */
+  private final float[] _pixels;
+  // number of samples summed into each pixel
+  private final int[] _samples;
+  private Features _features = null; // only collected for the Denoiser
 
   public Image(int width, int height)
   {
     _width = width;
     _height = height;
     NUM_PIXELS = _width * _height;
-    _pixels = new Vector[NUM_PIXELS];
+    _pixels = new float[NUM_PIXELS * 3]; // initialized to all zero
+    _samples = new int[NUM_PIXELS];
+  }
 
-    Arrays.fill(_pixels, Vector.ZERO); // initialize pixels to all zero
+  private Image(Image img)
+  {
+    _width = img._width;
+    _height = img._height;
+    NUM_PIXELS = img.NUM_PIXELS;
+    _pixels = img._pixels.clone();
+    _samples = img._samples.clone();
+    _features = img._features == null ? null : img._features.copy();
   }
 
   public void addToPixel(int x, int y, Vector radiance)
   {
-    final int index = x + ((_height - 1 - y) * _width);
-    _pixels[index] = _pixels[index].add(radiance);
+    final int pixel = x + ((_height - 1 - y) * _width);
+    final int index = pixel * 3;
+    _pixels[index] += radiance.x;
+    _pixels[index + 1] += radiance.y;
+    _pixels[index + 2] += radiance.z;
+    ++_samples[pixel];
+  }
+
+  /**
+   * Copies the current pixel sums so they can be encoded on another thread
+   * while rendering continues into this image.
+   * @return A detached copy of this image.
+   */
+  public Image snapshot()
+  {
+    SnapshotEvent event = new SnapshotEvent();
+    event.begin();
+    Image copy = new Image(this);
+    if (event.shouldCommit())
+    {
+      event.width = _width;
+      event.height = _height;
+      event.bytes = _pixels.length * 4L + _samples.length * 4L;
+      event.commit();
+    }
+    return copy;
+  }
+
+  /**
+   * Copies a rectangle of this image.
+   * @param x Left edge
+   * @param y Top edge, counting from the top row
+   * @param width
+   * @param height
+   * @return A new image of width x height pixels.
+   */
+  public Image crop(int x, int y, int width, int height)
+  {
+    if (x < 0 || y < 0 || width < 1 || height < 1 || x + width > _width
+        || y + height > _height)
+      throw new IllegalArgumentException("Crop window " + width + "x"
+                                         + height + "+" + x + "+" + y
+                                         + " is not inside the " + _width
+                                         + "x" + _height + " image");
+    Image result = new Image(width, height);
+    for (int row = 0; row < height; ++row)
+    {
+      int from = (y + row) * _width + x;
+      System.arraycopy(_pixels, from * 3, result._pixels, row * width * 3,
+          width * 3);
+      System.arraycopy(_samples, from, result._samples, row * width, width);
+    }
+    if (_features != null)
+      result._features = _features.crop(x, y, width, height);
+    return result;
   }
 
   /**
@@ -56,97 +141,468 @@ public class Image
     Image result = new Image(imgs.get(0)._width, imgs.get(0)._height);
 
     for (Image img : imgs)
-      for (int i = 0; i < result.NUM_PIXELS; ++i)
-        result._pixels[i] = result._pixels[i].add(img._pixels[i]);
+    {
+      for (int i = 0; i < result._pixels.length; ++i)
+        result._pixels[i] += img._pixels[i];
+      for (int i = 0; i < result._samples.length; ++i)
+        result._samples[i] += img._samples[i];
+    }
     return result;
   }
 
-  public byte[][] getImageBytes(int iteration)
+  /**
+   * Adds the sums and sample counts of a smaller image into a rectangle of
+   * this one.
+   * @param part
+   * @param x Left edge of the rectangle
+   * @param y Top edge, counting from the top row
+   */
+  public void add(Image part, int x, int y)
   {
-    byte[][] data = new byte[NUM_PIXELS][3]; // RGB
+    if (x < 0 || y < 0 || x + part._width > _width
+        || y + part._height > _height)
+      throw new IllegalArgumentException("A " + part._width + "x"
+                                         + part._height + " image doesn't fit "
+                                         + "at " + x + "," + y + " in the "
+                                         + _width + "x" + _height + " image");
+    for (int row = 0; row < part._height; ++row)
+    {
+      int to = (y + row) * _width + x;
+      int from = row * part._width;
+      for (int i = 0; i < part._width * 3; ++i)
+        _pixels[to * 3 + i] += part._pixels[from * 3 + i];
+      for (int i = 0; i < part._width; ++i)
+        _samples[to + i] += part._samples[from + i];
+    }
+  }
 
-    float divider = 1.0f / ((iteration > 0 ? iteration : 0) + 1);
+  /**
+   * Sets the sums and sample counts of a rectangle back to zero.
+   * @param x Left edge
+   * @param y Top edge, counting from the top row
+   * @param width
+   * @param height
+   */
+  public void clear(int x, int y, int width, int height)
+  {
+    for (int row = y; row < y + height; ++row)
+    {
+      int from = row * _width + x;
+      Arrays.fill(_pixels, from * 3, (from + width) * 3, 0);
+      Arrays.fill(_samples, from, from + width, 0);
+    }
+  }
 
-    float tonemapScaling = calculateToneMapping(_pixels, divider);
-    float mapped;
-    
+  /**
+   * Writes the size, the raw sums and the sample counts, for readRaw().
+   * Features are left out.
+   */
+  public void writeRaw(DataOutput out) throws IOException
+  {
+    out.writeInt(_width);
+    out.writeInt(_height);
+    for (float f : _pixels)
+      out.writeFloat(f);
+    for (int n : _samples)
+      out.writeInt(n);
+  }
 
-    for (int i = 0; i < NUM_PIXELS; ++i)
-      for (int c = 0; c < 3; ++c)
+  public static Image readRaw(DataInput in) throws IOException
+  {
+    int width = in.readInt();
+    int height = in.readInt();
+    if (width < 1 || height < 1 || (long) width * height > Integer.MAX_VALUE
+                                                           / 3)
+      throw new IOException("Bad image size " + width + "x" + height);
+    Image img = new Image(width, height);
+    for (int i = 0; i < img._pixels.length; ++i)
+      img._pixels[i] = in.readFloat();
+    for (int i = 0; i < img._samples.length; ++i)
+      img._samples[i] = in.readInt();
+    return img;
+  }
+
+  /**
+   * @return What the eye rays hit first, null unless collected.
+   */
+  public Features getFeatures()
+  {
+    return _features;
+  }
+
+  /**
+   * Starts collecting what the eye rays hit first, for the Denoiser.
+   */
+  public void setFeatures(Features features)
+  {
+    _features = features;
+  }
+
+  /**
+   * The raw radiance sums, 3 floats per pixel, top row first.
+   */
+  float[] getRadianceSums()
+  {
+    return _pixels;
+  }
+
+  /**
+   * Samples per pixel, top row first.
+   */
+  int[] getSampleCounts()
+  {
+    return _samples;
+  }
+
+  /**
+   * Reciprocals of the per-pixel sample counts, which turn the radiance sums
+   * into averages.
+   */
+  private float[] getDividers()
+  {
+    final float[] dividers = new float[NUM_PIXELS];
+    Parallel.forChunks(NUM_PIXELS, MIN_CHUNK_PIXELS, new Parallel.Chunk()
+    {
+
+      public void run(int chunk, int from, int to)
       {
-        // tone mapping
-        mapped = _pixels[i].get(c) * divider * tonemapScaling;
-        
-        // gamma encoding
-        mapped = (float) pow((mapped > 0.0f ? mapped : 0.0f), GAMMA_ENCODE);
+        for (int i = from; i < to; ++i)
+          dividers[i] = 1.0f / (_samples[i] > 0 ? _samples[i] : 1);
+      }
+    });
+    return dividers;
+  }
 
-        // quantizing
-        mapped = (float) floor((mapped * 255f) + 0.5f);
-        data[i][c] = (byte) (mapped <= 255.0f ? mapped : 255.0f);
-      } // i
+  /**
+   * Compares the average radiances of the pixels with those of a reference
+   * image of the same size, over all pixels and channels.
+   * @return {mean squared error, relative mean squared error}. The relative
+   * error of a value is (x - ref)^2 / (ref^2 + RELATIVE_ERROR_EPSILON), which
+   * keeps black pixels of the reference from dominating it.
+   */
+  public double[] getErrors(Image reference)
+  {
+    if (reference._width != _width || reference._height != _height)
+      throw new IllegalArgumentException("Reference image is "
+                                         + reference._width + "x"
+                                         + reference._height + ", not "
+                                         + _width + "x" + _height);
+    final float[] dividers = getDividers();
+    final float[] refDividers = reference.getDividers();
+    final float[] refPixels = reference._pixels;
+    int chunks = Parallel.numChunks(NUM_PIXELS, MIN_CHUNK_PIXELS);
+    final double[] squared = new double[chunks];
+    final double[] relative = new double[chunks];
 
-    return data;
+    Parallel.forChunks(NUM_PIXELS, MIN_CHUNK_PIXELS, new Parallel.Chunk()
+    {
+
+      public void run(int chunk, int from, int to)
+      {
+        double sq = 0, rel = 0;
+        for (int i = from * 3; i < to * 3; ++i)
+        {
+          double ref = refPixels[i] * refDividers[i / 3];
+          double d = _pixels[i] * dividers[i / 3] - ref;
+          sq += d * d;
+          rel += d * d / (ref * ref + RELATIVE_ERROR_EPSILON);
+        }
+        squared[chunk] = sq;
+        relative[chunk] = rel;
+      }
+    });
+
+    double sq = 0, rel = 0;
+    for (int c = 0; c < chunks; ++c)
+    {
+      sq += squared[c];
+      rel += relative[c];
+    }
+    return new double[]
+        {
+          sq / (NUM_PIXELS * 3.0), rel / (NUM_PIXELS * 3.0)
+        };
   }
 
-  private void savePPM(String fileName, int iteration) throws IOException
+  /**
+   * Tone maps, gamma encodes and quantizes the average radiance of each
+   * pixel, using the display luminance given on the command line.
+   * @return 8-bit RGB triplets, top row first.
+   */
+  public byte[] getImageBytes()
   {
+    return getImageBytes(MagicNumbers.DISPLAY_LUMINANCE_MAX);
+  }
 
-    byte[][] data = getImageBytes(iteration);
-    DataOutputStream os = null;
-    try
+  public byte[] getImageBytes(float displayLuminance)
+  {
+    final byte[] data = new byte[NUM_PIXELS * 3]; // RGB
+
+    final float[] dividers = getDividers();
+
+    final float tonemapScaling = calculateToneMapping(_pixels, dividers,
+        displayLuminance);
+
+    Parallel.forChunks(NUM_PIXELS, MIN_CHUNK_PIXELS, new Parallel.Chunk()
     {
-      os = new DataOutputStream(
-          new BufferedOutputStream(
-          new FileOutputStream(fileName)));
 
-      // Header
-      os.writeBytes(PPM_ID + "\n# " + MINILIGHT_URI + "\n\n");
-      // width, height, maxval
-      os.writeBytes(getWidth() + " " + getHeight() + "\n255\n");
+      public void run(int chunk, int from, int to)
+      {
+        for (int i = from * 3; i < to * 3; ++i)
+          // tone mapping, then gamma encoding and quantizing
+          data[i] = quantize(_pixels[i] * dividers[i / 3] * tonemapScaling);
+      }
+    });
 
-      for (int i = 0; i < NUM_PIXELS; ++i)
-        for (int c = 0; c < 3; ++c)
-          os.writeByte(data[i][c]);
+    return data;
+  }
 
+  /**
+   * Gamma encodes and quantizes a tone mapped value.<br/><br/>
+   *
+   * Looks the value up in a table of where each of the 255 steps starts
+   * instead of calling pow() -- a binary search over 255 floats.
+   */
+  private static byte quantize(float mapped)
+  {
+    int q = 0;
+    for (int step = 128; step > 0; step >>= 1)
+      if (mapped >= QUANTIZATION_STEPS[q + step])
+        q += step;
+    return (byte) q;
+  }
+
+  /**
+   * Gamma encoding and quantizing done the straightforward way, with pow().
+   */
+  private static int quantizeExactly(float mapped)
+  {
+    // gamma encoding
+    mapped = (float) pow((mapped > 0.0f ? mapped : 0.0f), GAMMA_ENCODE);
+
+    // quantizing
+    mapped = (float) floor((mapped * 255f) + 0.5f);
+    return (int) (mapped <= 255.0f ? mapped : 255.0f);
+  }
+
+  /**
+   * Finds the smallest float that quantizeExactly() turns into each value
+   * 1..255, by bisecting the bit patterns of positive floats (which sort the
+   * same way as the floats themselves). With these, quantize() gives exactly
+   * the same result as quantizeExactly().
+   */
+  private static float[] makeQuantizationSteps()
+  {
+    float[] steps = new float[256];
+    steps[0] = Float.NEGATIVE_INFINITY; // never looked at
+    for (int q = 1; q < 256; ++q)
+    {
+      int lo = 0; // quantizes below q
+      int hi = Float.floatToIntBits(1.0f); // quantizes to 255
+      while (hi - lo > 1)
+      {
+        int mid = (lo + hi) >>> 1;
+        if (quantizeExactly(Float.intBitsToFloat(mid)) >= q)
+          hi = mid;
+        else
+          lo = mid;
+      }
+      steps[q] = Float.intBitsToFloat(hi);
     }
-    catch (Exception ex)
+    return steps;
+  }
+
+  private void savePPM(String fileName, float displayLuminance) throws
+      IOException
+  {
+    ByteBuffer header = ByteBuffer.wrap((PPM_ID + "\n# " + MINILIGHT_URI
+                                         + "\n\n" + getWidth() + " "
+                                         + getHeight() + "\n255\n").getBytes(
+        "US-ASCII"));
+    ByteBuffer data = ByteBuffer.wrap(getImageBytes(displayLuminance));
+
+    FileChannel fc = new FileOutputStream(fileName).getChannel();
+    try
     {
-      System.out.println("Error writing PPM file: " + ex.getMessage());
-      System.exit(1);
+      while (header.hasRemaining())
+        fc.write(header);
+      while (data.hasRemaining())
+        fc.write(data);
     }
     finally
     {
-      os.close();
+      fc.close();
     }
   }
 
-  public void saveImage(String fileName, int iteration, boolean asPNG) throws
+  private void savePNG(String fileName, float displayLuminance) throws
       IOException
+  {
+    PngEncoder.write(fileName, getImageBytes(displayLuminance), _width,
+        _height);
+  }
+
+  public void saveImage(String fileName, boolean asPNG) throws IOException
+  {
+    saveImage(fileName, asPNG, MagicNumbers.DISPLAY_LUMINANCE_MAX);
+  }
+
+  public void saveImage(String fileName, boolean asPNG,
+                        float displayLuminance) throws IOException
   {
     if (asPNG)
-      throw new UnsupportedOperationException("Saving as PNG not supported yet");
+      savePNG(fileName, displayLuminance);
+    else
+      savePPM(fileName, displayLuminance);
+  }
+
+  /**
+   * Saves the average radiance of each pixel, before any tone mapping, as a
+   * little-endian PFM (portable float map) file. Pixels without samples
+   * (outside a crop window) are saved as negative zeros, which are black to
+   * any other program but tell readPFM() to leave them out of the tone
+   * mapping.
+   * @param fileName
+   * @throws IOException
+   */
+  public void savePFM(String fileName) throws IOException
+  {
+    ByteBuffer header = ByteBuffer.wrap((PFM_ID + "\n" + getWidth() + " "
+                                         + getHeight() + "\n-1.0\n").getBytes(
+        "US-ASCII"));
+    ByteBuffer data = ByteBuffer.allocate(_pixels.length * 4).order(
+        ByteOrder.LITTLE_ENDIAN);
+    float[] dividers = getDividers();
+
+    // PFM scanlines go from bottom to top
+    for (int y = _height; y-- > 0;)
+      for (int i = y * _width * 3, end = i + _width * 3; i < end; ++i)
+        data.putFloat(_samples[i / 3] > 0 ? _pixels[i] * dividers[i / 3]
+                      : -0.0f);
+    data.flip();
+
+    FileChannel fc = new FileOutputStream(fileName).getChannel();
+    try
+    {
+      while (header.hasRemaining())
+        fc.write(header);
+      while (data.hasRemaining())
+        fc.write(data);
+    }
+    finally
+    {
+      fc.close();
+    }
+  }
+
+  /**
+   * Reads a colour PFM file, like the ones written by savePFM(). Every pixel
+   * of the returned image counts as one sample, except the ones savePFM()
+   * marked as having none.
+   * @param fileName
+   * @return
+   * @throws IOException
+   */
+  public static Image readPFM(String fileName) throws IOException
+  {
+    FileChannel fc = new FileInputStream(fileName).getChannel();
+    try
+    {
+      ByteBuffer buf = ByteBuffer.allocate((int) fc.size());
+      while (buf.hasRemaining())
+        if (fc.read(buf) < 0)
+          throw new IOException("Unexpected end of PFM file " + fileName);
+      buf.flip();
 
-    savePPM(fileName, iteration);
+      // header: three whitespace separated tokens after the id
+      String[] tokens = new String[4];
+      for (int t = 0; t < tokens.length; ++t)
+      {
+        StringBuilder sb = new StringBuilder();
+        char ch;
+        while (Character.isWhitespace(ch = (char) buf.get()));
+        do
+          sb.append(ch);
+        while (!Character.isWhitespace(ch = (char) buf.get()));
+        tokens[t] = sb.toString();
+      }
+      if (!PFM_ID.equals(tokens[0]))
+        throw new IOException(fileName + " is not a colour PFM file");
+
+      Image img = new Image(Integer.parseInt(tokens[1]),
+          Integer.parseInt(tokens[2]));
+      float scale = Float.parseFloat(tokens[3]);
+      buf.order(scale < 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+      if (buf.remaining() < img._pixels.length * 4)
+        throw new IOException("PFM file " + fileName + " is truncated");
+
+      for (int y = img._height; y-- > 0;)
+        for (int i = y * img._width * 3, end = i + img._width * 3; i < end;
+             ++i)
+          img._pixels[i] = buf.getFloat();
+      for (int i = 0; i < img._samples.length; ++i)
+        if (Float.floatToRawIntBits(img._pixels[i * 3]) != NEGATIVE_ZERO)
+          img._samples[i] = 1;
+      return img;
+    }
+    catch (RuntimeException ex)
+    {
+      throw new IOException("Malformed PFM file " + fileName, ex);
+    }
+    finally
+    {
+      fc.close();
+    }
   }
 
-  private float calculateToneMapping(Vector[] pixels, float divider)
+  private float calculateToneMapping(final float[] pixels,
+                                     final float[] dividers,
+                                     float displayLuminance)
   {
     float logMeanLuminance;
-    float sumOfLogs = 0f;
-    float y = 0;
+    // the sum over a large image needs more precision than a float has
+    final double[] sumsOfLogs = new double[Parallel.numChunks(NUM_PIXELS,
+        MIN_CHUNK_PIXELS)];
+    // pixels without samples (outside a crop window) don't count
+    final int[] sampledPixels = new int[sumsOfLogs.length];
+
+    Parallel.forChunks(NUM_PIXELS, MIN_CHUNK_PIXELS, new Parallel.Chunk()
+    {
+
+      public void run(int chunk, int from, int to)
+      {
+        double sum = 0;
+        int sampled = 0;
+        float y;
+        for (int i = from * 3; i < to * 3; i += 3)
+        {
+          if (_samples[i / 3] == 0)
+            continue;
+          ++sampled;
+          y = ((pixels[i] * RGB_LUMINANCE.x)
+               + (pixels[i + 1] * RGB_LUMINANCE.y)
+               + (pixels[i + 2] * RGB_LUMINANCE.z)) * dividers[i / 3];
+          sum += log10((y > 1e-4f) ? y : 1e-4f);
+        }
+        sumsOfLogs[chunk] = sum;
+        sampledPixels[chunk] = sampled;
+      }
+    });
 
-    for (int i = 0; i < NUM_PIXELS; ++i)
+    double sumOfLogs = 0;
+    long numSampled = 0;
+    for (int c = 0; c < sumsOfLogs.length; ++c) // added up in order, so the result is always the same
     {
-      y = _pixels[i].dot(RGB_LUMINANCE) * divider;
-      sumOfLogs += log10((y > 1e-4f) ? y : 1e-4f);
+      sumOfLogs += sumsOfLogs[c];
+      numSampled += sampledPixels[c];
     }
 
-    logMeanLuminance = (float) pow(10f, sumOfLogs / (float) pixels.length);
-    float a = 1.219f + (float) pow(MagicNumbers.DISPLAY_LUMINANCE_MAX * 0.25f,
-        0.4f);
+    logMeanLuminance = (float) pow(10f, numSampled == 0 ? log10(1e-4f)
+                                        : sumOfLogs / numSampled);
+    float a = 1.219f + (float) pow(displayLuminance * 0.25f, 0.4f);
     float b = 1.219f + (float) pow(logMeanLuminance, 0.4f);
 
-    return (float) pow(a / b, 2.5f) / MagicNumbers.DISPLAY_LUMINANCE_MAX;
+    return (float) pow(a / b, 2.5f) / displayLuminance;
 
   }
 
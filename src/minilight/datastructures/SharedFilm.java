@@ -0,0 +1,193 @@
+package minilight.datastructures;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * A render shared by several processes on one host. The radiance sums and
+ * sample counts live in a file that all of them map into memory, laid out
+ * like a Checkpoint, and every process adds its frames straight into it
+ * with atomic adds. There is no merge step: any process, or
+ * minilight.Tonemap reading the file as a checkpoint, can make an image of
+ * the combined result at any time.<br/><br/>
+ *
+ * The processes divide the work by frames. The number of the next frame to
+ * render is a counter in the header (at offset 40, which a Checkpoint
+ * leaves reserved), and a process increments it to claim a frame. The
+ * samples of a frame only depend on the seed and the frame number (see
+ * FrameRenderer), so the combined render takes the same samples as one
+ * process rendering every frame would; they are just added up in another
+ * order. The frames field of the header counts the frames added so far. If
+ * a process dies, the frames it claimed but never added are lost. The
+ * sample counts stay right, so the image is still correct, only with fewer
+ * samples.
+ * @author Tom Eklöf
+ */
+public class SharedFilm
+{
+
+  private static final int FRAMES = 24;
+  private static final int NEXT_FRAME = 40;
+  private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(
+      int[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle LONGS = MethodHandles.
+      byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private final MappedByteBuffer _buffer;
+  private final int _width;
+  private final int _height;
+  private final long _seed;
+  private final int _countsOffset;
+
+  private SharedFilm(MappedByteBuffer buffer, int width, int height,
+                     long seed)
+  {
+    _buffer = buffer;
+    _width = width;
+    _height = height;
+    _seed = seed;
+    _countsOffset = Checkpoint.HEADER_SIZE + width * height * 12;
+  }
+
+  /**
+   * Maps the film file. The first process to open it creates it (with the
+   * given seed), the others join the render in it. Processes opening the
+   * file at the same time wait for each other.
+   * @param seed Only used if the file is created, see getSeed()
+   * @throws IOException If the file can't be mapped or belongs to another
+   * scene or image size.
+   */
+  public static SharedFilm open(String fileName, int width, int height,
+                                long seed, long sceneHash) throws IOException
+  {
+    long size = Checkpoint.HEADER_SIZE + (long) width * height * 16;
+    if (size > Integer.MAX_VALUE)
+      throw new IOException("Image too big for a shared film");
+
+    RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+    try
+    {
+      FileChannel fc = raf.getChannel();
+      FileLock lock = fc.lock();
+      try
+      {
+        if (fc.size() == 0)
+        {
+          ByteBuffer header = ByteBuffer.allocate(Checkpoint.HEADER_SIZE).
+              order(ByteOrder.LITTLE_ENDIAN);
+          header.putInt(Checkpoint.MAGIC).putInt(Checkpoint.VERSION);
+          header.putInt(width).putInt(height);
+          header.putLong(seed).putLong(0).putLong(sceneHash);
+          header.clear(); // the whole header, zeros after the fields
+          raf.setLength(size);
+          while (header.hasRemaining())
+            fc.write(header, header.position());
+        }
+        if (fc.size() != size)
+          throw new IOException("Shared film " + fileName
+                                + " has the wrong size for this image");
+
+        MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_WRITE, 0,
+            size);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.getInt(0) != Checkpoint.MAGIC
+            || buf.getInt(4) != Checkpoint.VERSION)
+          throw new IOException(fileName + " is not a shared film");
+        if (buf.getInt(8) != width || buf.getInt(12) != height
+            || buf.getLong(32) != sceneHash)
+          throw new IOException("Shared film " + fileName
+                                + " was made from a different scene or "
+                                + "image size");
+        return new SharedFilm(buf, width, height, buf.getLong(16));
+      }
+      finally
+      {
+        lock.release();
+      }
+    }
+    finally
+    {
+      raf.close(); // the mapping stays
+    }
+  }
+
+  /**
+   * @return The number of a frame that no other process renders. Once it's
+   * past the last frame, all the frames have been handed out.
+   */
+  public int claimFrame()
+  {
+    return (int) INTS.getAndAdd(_buffer, NEXT_FRAME, 1);
+  }
+
+  /**
+   * Adds the samples of an image of one frame to the film and empties the
+   * image for the next frame.
+   */
+  public void add(Image frame)
+  {
+    float[] sums = frame.getRadianceSums();
+    int[] counts = frame.getSampleCounts();
+    for (int pixel = 0; pixel < counts.length; ++pixel)
+    {
+      if (counts[pixel] == 0)
+        continue; // outside the --crop window
+      for (int i = pixel * 3; i < pixel * 3 + 3; ++i)
+      {
+        addFloat(Checkpoint.HEADER_SIZE + i * 4, sums[i]);
+        sums[i] = 0;
+      }
+      INTS.getAndAdd(_buffer, _countsOffset + pixel * 4, counts[pixel]);
+      counts[pixel] = 0;
+    }
+    LONGS.getAndAdd(_buffer, FRAMES, 1L);
+  }
+
+  private void addFloat(int offset, float value)
+  {
+    int old;
+    do
+      old = (int) INTS.getVolatile(_buffer, offset);
+    while (!INTS.compareAndSet(_buffer, offset, old, Float.floatToRawIntBits(
+        Float.intBitsToFloat(old) + value)));
+  }
+
+  /**
+   * Copies what all the processes have added so far. Pixels that are being
+   * added to at the same time may be off by their last sample.
+   */
+  public Image snapshot()
+  {
+    Image img = new Image(_width, _height);
+    ByteBuffer buf = _buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    buf.position(Checkpoint.HEADER_SIZE);
+    buf.asFloatBuffer().get(img.getRadianceSums());
+    buf.position(_countsOffset);
+    buf.asIntBuffer().get(img.getSampleCounts());
+    return img;
+  }
+
+  /**
+   * @return The seed of the process that created the film. All processes
+   * render with it, so the film gets the samples that one process with this
+   * seed would take.
+   */
+  public long getSeed()
+  {
+    return _seed;
+  }
+
+  /**
+   * @return How many frames have been added to the film.
+   */
+  public long getFrames()
+  {
+    return (long) LONGS.getVolatile(_buffer, FRAMES);
+  }
+}
@@ -1,10 +1,11 @@
 package minilight.datastructures;
 
-import java.util.ArrayList;
+import java.nio.IntBuffer;
 import java.util.Arrays;
 import java.util.List;
 import minilight.scene.Triangle;
 import minilight.scene.Vector;
+import minilight.utils.Counters;
 import static java.lang.Math.max;
 
 /**
@@ -15,9 +16,6 @@ import static java.lang.Math.max;
  *
  * Constant.<br/><br/>
  *
- * A degenerate State pattern: typed by isBranch_m field to be either a branch
- * or leaf cell.<br/><br/>
- *
  * Octree: axis-aligned, cubical. Subcells are numbered thusly:
  * <pre>
  *            110---111
@@ -27,7 +25,15 @@ import static java.lang.Math.max;
  *    |/    |/    | /
  *    .-x  000---001      </pre><br/><br/>
  *
- * Each cell stores its bound: fatter data, but simpler code.<br/><br/>
+ * The cells are flattened into one int buffer, two ints each. A branch holds
+ * BRANCH, a bit for each subcell that isn't empty and the index of its first
+ * subcell; the subcells that exist follow each other in that order. A leaf
+ * holds its triangle count and where its triangles start in another int
+ * buffer of indexes into the scene's triangles. The buffers come from a
+ * GeometryMemory, so they can be kept off the heap. Only the root stores its
+ * bound: a subcell's bound is halfway between its parent's on each axis, and
+ * is worked out again on the way down with the same float operations that
+ * built the tree, so it comes out exactly the same.<br/><br/>
  *
  * Calculations for building and tracing are absolute rather than incremental --
  * so quite numerically solid. Uses tolerances in: bounding triangles (in
@@ -40,15 +46,33 @@ public class Spatial
 {
 
   public static final int N_TREE = 8;
-  private boolean _isBranch;
-  private float[] _bounds = new float[6];
-  private Triangle[] _triangles = null;
-  private Spatial[] _spatial = null;
-  private final int MAX_LEVELS = 44;
-  private final int MAX_ITEMS = 8;
+  public static final int DEFAULT_MAX_LEVELS = 44;
+  public static final int DEFAULT_MAX_ITEMS = 8;
+  private static final int BRANCH = 0x80000000;
+  private static final int SUBCELL_MASK = (1 << N_TREE) - 1;
+  private final float[] _bounds = new float[6];
+  private final Triangle[] _triangles;
+  private final IntBuffer _nodes;
+  private final IntBuffer _leafItems; // indexes into _triangles
+  // the arrays behind the buffers if they're on the heap, else null: reading
+  // those directly makes the tracing a few percent faster
+  private final int[] _nodeArray, _leafItemArray;
 
-  @SuppressWarnings("empty-statement")
   public Spatial(Vector eyePosition, List<Triangle> items)
+  {
+    this(eyePosition, items, DEFAULT_MAX_LEVELS, DEFAULT_MAX_ITEMS,
+        GeometryMemory.HEAP);
+  }
+
+  /**
+   * @param maxLevels Maximum depth of the tree
+   * @param maxItems Cells with more triangles than this are split, unless
+   * they are at the maximum depth
+   * @param memory Where to keep the cells
+   */
+  @SuppressWarnings("empty-statement")
+  public Spatial(Vector eyePosition, List<Triangle> items, int maxLevels,
+                 int maxItems, GeometryMemory memory)
   {
     // set overall bound
     // accommodate eye position
@@ -76,85 +100,200 @@ public class Spatial
       _bounds[3 + i] = max(_bounds[3 + i], _bounds[i] + maxSize);
 
     // Construct the cell tree
-    construct(items, 0);
+    _triangles = items.toArray(new Triangle[0]);
+    int[] all = new int[_triangles.length];
+    for (int i = 0; i < all.length; ++i)
+      all[i] = i;
+    IntList cells = new IntList();
+    IntList leafItems = new IntList();
+    construct(cells.allocate(2), _bounds, all, 0, maxLevels, maxItems, cells,
+        leafItems);
+    _nodes = cells.copyTo(memory);
+    _leafItems = leafItems.copyTo(memory);
+    _nodeArray = _nodes.hasArray() ? _nodes.array() : null;
+    _leafItemArray = _leafItems.hasArray() ? _leafItems.array() : null;
+  }
 
+  private int cell(int i)
+  {
+    return _nodeArray != null ? _nodeArray[i] : _nodes.get(i);
   }
 
-  private Spatial(float[] bounds)
+  private int leafItem(int i)
   {
-    _bounds = Arrays.copyOf(bounds, bounds.length);
+    return _leafItemArray != null ? _leafItemArray[i] : _leafItems.get(i);
   }
 
-  public Spatial construct(List<Triangle> items, int level)
+  /**
+   * @param node Index of the cell's first int in cells
+   * @param items Indexes of the triangles in the cell
+   */
+  private void construct(int node, float[] bounds, int[] items, int level,
+                         int maxLevels, int maxItems, IntList cells,
+                         IntList leafItems)
   {
     /*
      * if there are too many items and the tree is not too deep, make
      * this node into a branch.
      */
 
-    _isBranch = (items.size() > MAX_ITEMS) && (level < (MAX_LEVELS - 1));
-
-    if (_isBranch)
+    if ((items.length > maxItems) && (level < (maxLevels - 1)))
     { // Make sub-cells, recurse construction
-      _spatial = new Spatial[N_TREE];
-      float[] itemBound, subBound;
+      int[][] subItems = new int[N_TREE][];
+      int[] nextLevels = new int[N_TREE];
+      float[] subBound = new float[6];
+      int[] sub = new int[items.length];
       boolean isOverlap;
-      int nextLevel;
-
-      List<Triangle> subItems;
+      int subCells = 0;
 
       for (int s = N_TREE, q = 0; s-- > 0;)
       {
-        subBound = new float[6];
-        subItems = new ArrayList<Triangle>(items.size());
+        getSubBounds(bounds, s, subBound);
+        int n = 0;
 
-        for (int i = items.size(); i-- > 0;)
+        for (int i = items.length; i-- > 0;)
         {
-          itemBound = items.get(i).getBound();
+          Triangle item = _triangles[items[i]];
           isOverlap = true;
 
-
           for (int j = 0, d = 0, m = 0; j < 6; ++j, d = j / 3, m = j % 3)
           {
-            subBound[j] = (((s >> m) & 1) ^ d) == 1
-                          ? (_bounds[m] + _bounds[m + 3]) * 0.5f
-                          : _bounds[j];
-
             // Must overlap in all dimensions
-            isOverlap &= (itemBound[(d ^ 1) * 3 + m] >= subBound[j]) ^ (d != 0);
+            isOverlap &= (item.getBound((d ^ 1) * 3 + m) >= subBound[j])
+                         ^ (d != 0);
             if (!isOverlap)
               break;
           }
           if (isOverlap)
-            subItems.add(items.get(i));
+            sub[n++] = items[i];
+        }
+        q += n == items.length ? 1 : 0;
+        nextLevels[s] = (q > 1)
+                        || ((subBound[3] - subBound[0])
+                            < (Triangle.TOLERANCE * 4.0f))
+                        ? maxLevels : level + 1;
+        if (n != 0)
+        {
+          subItems[s] = Arrays.copyOf(sub, n);
+          subCells |= 1 << s;
         }
-        q += subItems.size() == items.size() ? 1 : 0;
-        nextLevel = (q > 1)
-                    || ((subBound[3] - subBound[0])
-                        < (Triangle.TOLERANCE * 4.0f))
-                    ? MAX_LEVELS : level + 1;
-        // recursion.
-        _spatial[s] = !(subItems.size() == 0) ? (new Spatial(subBound)).
-            construct(subItems, nextLevel) : null;
       }
+
+      int firstChild = cells.allocate(2 * Integer.bitCount(subCells)) / 2;
+      cells.set(node, BRANCH | subCells);
+      cells.set(node + 1, firstChild);
+      // recursion.
+      for (int s = N_TREE; s-- > 0;)
+        if (subItems[s] != null)
+        {
+          float[] childBounds = new float[6];
+          getSubBounds(bounds, s, childBounds);
+          construct(2 * child(subCells, firstChild, s), childBounds,
+              subItems[s], nextLevels[s], maxLevels, maxItems, cells,
+              leafItems);
+        }
+    }
+    else
+    { // I'm a leaf! Just store the items
+      cells.set(node, items.length);
+      cells.set(node + 1, leafItems.allocate(items.length));
+      for (int i = 0; i < items.length; ++i)
+        leafItems.set(cells.get(node + 1) + i, items[i]);
+    }
+  }
+
+  /**
+   * A growable array of ints, for building the buffers.
+   */
+  private static class IntList
+  {
+
+    private int[] _values = new int[64];
+    private int _size = 0;
+
+    /**
+     * Adds n zeros.
+     * @return The index of the first one
+     */
+    public int allocate(int n)
+    {
+      if (_size + n > _values.length)
+        _values = Arrays.copyOf(_values, Math.max(_size + n,
+            2 * _values.length));
+      _size += n;
+      return _size - n;
+    }
+
+    public int get(int i)
+    {
+      return _values[i];
+    }
+
+    public void set(int i, int value)
+    {
+      _values[i] = value;
+    }
+
+    public IntBuffer copyTo(GeometryMemory memory)
+    {
+      IntBuffer buffer = memory.allocateInts(_size);
+      buffer.put(_values, 0, _size);
+      return buffer;
+    }
+  }
+
+  /**
+   * The index of subcell s of a branch, which must not be empty.
+   */
+  private static int child(int subCells, int firstChild, int s)
+  {
+    return firstChild + Integer.bitCount(subCells & ((1 << s) - 1));
+  }
+
+  /**
+   * Puts the bound of subcell s of the cell with the given bound in
+   * subBound.
+   */
+  private static void getSubBounds(float[] bounds, int s, float[] subBound)
+  {
+    for (int m = 0; m < 3; ++m)
+    {
+      float middle = (bounds[m] + bounds[m + 3]) * 0.5f;
+      boolean high = ((s >> m) & 1) == 1;
+      subBound[m] = high ? middle : bounds[m];
+      subBound[m + 3] = high ? bounds[m + 3] : middle;
     }
-    else // I'm a leaf! Just store the items
-      _triangles = items.toArray(new Triangle[0]);
-    return this;
   }
 
   /**
    * Calculates which object a ray hits and the position of the hit.
    * @return An array with two elements, the first is the Triangle that got hit and
    * the second the position Vector of the hit.
+   * @param counters Where to count the nodes visited and triangles tested, or
+   * null
    */
   public Object[] getIntersection(Vector rayOrigin, Vector rayDirection,
-                                  Triangle lastHit, Vector pStart)
+                                  Triangle lastHit, Vector pStart,
+                                  Counters counters)
   {
+    return getIntersection(0, _bounds, rayOrigin, rayDirection, lastHit,
+        pStart, counters);
+  }
+
+  private Object[] getIntersection(int node, float[] bounds,
+                                   Vector rayOrigin, Vector rayDirection,
+                                   Triangle lastHit, Vector pStart,
+                                   Counters counters)
+  {
+    if (counters != null)
+      counters.addNodeVisited();
     Vector hitPosition = null;
     Triangle pHitObject = null;
-    if (_isBranch)
+    int info = cell(2 * node);
+    if ((info & BRANCH) != 0)
     { // it's a branch: step through subcells and recurse
+      int subCells = info & SUBCELL_MASK;
+      int firstChild = cell(2 * node + 1);
       if (pStart == null)
         pStart = rayOrigin;
 
@@ -163,22 +302,24 @@ public class Spatial
 
       for (int i = 3; i-- > 0;) // XXX: remove ugly
         // compare dimension with center
-        if (pStart.get(i) >= ((_bounds[i] + _bounds[i + 3]) * 0.5f))
+        if (pStart.get(i) >= ((bounds[i] + bounds[i + 3]) * 0.5f))
           subCell |= 1 << i;
       Vector cellPosition = pStart;
       boolean high;
       float face, temp;
       float[] step = new float[3];
+      float[] subBound = new float[6];
       int axis;
 
       while (true)
       {  // Step through intersected subcells
 
-        if (_spatial[subCell] != null)
+        if (((subCells >> subCell) & 1) != 0)
         {
-          Object[] ret = _spatial[subCell].getIntersection(rayOrigin,
-              rayDirection, lastHit,
-              cellPosition);
+          getSubBounds(bounds, subCell, subBound);
+          Object[] ret = getIntersection(child(subCells, firstChild, subCell),
+              subBound, rayOrigin, rayDirection, lastHit, cellPosition,
+              counters);
           pHitObject = (Triangle) ret[0]; // XXX: remove the ugly
           hitPosition = (Vector) ret[1]; // XXX: remove the ugly
 
@@ -193,8 +334,8 @@ public class Spatial
         {
           high = ((subCell >> i) & 1) != 0;
           face = (rayDirection.get(i) < 0f) ^ high
-                 ? _bounds[i + ((high ? 1 : 0) * 3)]
-                 : (_bounds[i] + _bounds[i + 3]) * 0.5f;
+                 ? bounds[i + ((high ? 1 : 0) * 3)]
+                 : (bounds[i] + bounds[i + 3]) * 0.5f;
           temp = rayDirection.get(i);
           step[i] = temp == 0 ? Float.MAX_VALUE
                     : (face - rayOrigin.get(i)) / temp;
@@ -209,7 +350,7 @@ public class Spatial
         subCell = subCell ^ (1 << axis);
         Arrays.fill(step, 0f); // Clears the step array.
       } // while
-    } // if(_isBranch)
+    } // if branch
     else
     { // it's a leaf.
       float nearestDistance = Float.MAX_VALUE;
@@ -217,9 +358,13 @@ public class Spatial
       Vector hit;
       float t;
 
-      for (Triangle item : _triangles)
+      for (int k = cell(2 * node + 1), end = k + info; k < end; ++k)
+      {
+        Triangle item = _triangles[leafItem(k)];
         if (item != lastHit)
         { // avoid false intersection with surface we just came from
+          if (counters != null)
+            counters.addTriangleTested();
           distance = item.getIntersection(rayOrigin, rayDirection);
           if (distance != -1f && distance < nearestDistance)
           {
@@ -228,12 +373,12 @@ public class Spatial
             float h0 = hit.get(0);
             float h1 = hit.get(1);
             float h2 = hit.get(2);
-            if ((_bounds[0] - h0 <= t)
-                && (h0 - _bounds[3] <= t)
-                && (_bounds[1] - h1 <= t)
-                && (h1 - _bounds[4] <= t)
-                && (_bounds[2] - h2 <= t)
-                && (h2 - _bounds[5] <= t))
+            if ((bounds[0] - h0 <= t)
+                && (h0 - bounds[3] <= t)
+                && (bounds[1] - h1 <= t)
+                && (h1 - bounds[4] <= t)
+                && (bounds[2] - h2 <= t)
+                && (h2 - bounds[5] <= t))
             {
               pHitObject = item;
               nearestDistance = distance;
@@ -241,6 +386,7 @@ public class Spatial
             }
           }
         }
+      }
     }
     return new Object[]
         {
@@ -249,8 +395,68 @@ public class Spatial
 
   }
 
+  /**
+   * @return Whether the root cell is split into subcells.
+   */
   public boolean isBranch()
   {
-    return _isBranch;
+    return (cell(0) & BRANCH) != 0;
+  }
+
+  /**
+   * @return The lower and upper corners of the root cell: {x0, y0, z0, x1,
+   * y1, z1}
+   */
+  public float[] getBounds()
+  {
+    return Arrays.copyOf(_bounds, 6);
+  }
+
+  /**
+   * @return Edge length of the root cell, which holds the whole scene.
+   */
+  public float getSize()
+  {
+    return _bounds[3] - _bounds[0];
+  }
+
+  /**
+   * Walks the tree and collects statistics about it.
+   */
+  public SpatialStats getStats()
+  {
+    SpatialStats stats = new SpatialStats(_bounds[3] - _bounds[0],
+        _nodes.capacity(), _leafItems.capacity(), _triangles.length);
+    collectStats(stats, 0, _bounds, 0);
+    return stats;
+  }
+
+  private void collectStats(SpatialStats stats, int node, float[] bounds,
+                            int depth)
+  {
+    float size = bounds[3] - bounds[0];
+    int info = cell(2 * node);
+    if ((info & BRANCH) != 0)
+    {
+      stats.addBranch(size);
+      int subCells = info & SUBCELL_MASK;
+      for (int s = 0; s < N_TREE; ++s)
+        if (((subCells >> s) & 1) != 0)
+        {
+          float[] subBound = new float[6];
+          getSubBounds(bounds, s, subBound);
+          collectStats(stats, child(subCells, cell(2 * node + 1), s),
+              subBound, depth + 1);
+        }
+        else
+          stats.addEmptyCell();
+    }
+    else
+    {
+      Triangle[] triangles = new Triangle[info];
+      for (int i = 0, k = cell(2 * node + 1); i < info; ++i)
+        triangles[i] = _triangles[leafItem(k + i)];
+      stats.addLeaf(depth, size, triangles);
+    }
   }
 }
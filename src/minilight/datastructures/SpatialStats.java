@@ -0,0 +1,203 @@
+package minilight.datastructures;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Set;
+import minilight.scene.Triangle;
+
+/**
+ * How well a Spatial partitions its scene: the shape of the tree, how many
+ * triangles the leaves hold, how often triangles are stored in several
+ * leaves, an estimate of the surface area heuristic cost and of the memory
+ * the tree takes.<br/><br/>
+ *
+ * The SAH cost is the expected cost of a random ray through the root cell,
+ * counting the probability of entering a cell as its surface area relative
+ * to the root's: TRAVERSAL_COST per branch entered and INTERSECTION_COST per
+ * triangle tested in the leaves. Lower is better; only compare it between
+ * trees of the same scene.<br/><br/>
+ *
+ * Memory is estimated for a 64-bit JVM with compressed references, and
+ * doesn't include the triangles themselves. A Spatial takes two ints per
+ * cell, one int per triangle in a leaf and one reference per triangle of
+ * the scene, on the heap or off it (see GeometryMemory).
+ * @author Tom Eklöf
+ */
+public class SpatialStats
+{
+
+  public static final double TRAVERSAL_COST = 1.0;
+  public static final double INTERSECTION_COST = 1.0;
+  private static final int OBJECT_HEADER = 12;
+  private static final int ARRAY_HEADER = 16;
+  private static final int REFERENCE = 4;
+  private static final int INT = 4;
+  private static final int INT_BUFFER = 48; // without its contents
+  private final double _rootArea;
+  private int _branches = 0;
+  private int _leaves = 0;
+  private int _emptyCells = 0;
+  private int _maxDepth = 0;
+  private long _triangleRefs = 0;
+  private final Set<Triangle> _triangles = Collections.newSetFromMap(
+      new IdentityHashMap<Triangle, Boolean>());
+  private double _sahCost = 0;
+  private long _memory = 0;
+  private int[] _leavesByDepth = new int[1];
+  private int[] _leavesByOccupancy = new int[1];
+
+  /**
+   * @param nodeInts Length of the Spatial's cell buffer
+   * @param leafInts Length of its buffer of leaf triangles
+   * @param triangles How many triangles the scene has
+   */
+  SpatialStats(float rootSize, int nodeInts, int leafInts, int triangles)
+  {
+    _rootArea = (double) rootSize * rootSize;
+    _memory = spatialSize() + arraySize(6, 4) + arraySize(nodeInts, INT)
+              + arraySize(leafInts, INT) + arraySize(triangles, REFERENCE);
+  }
+
+  void addBranch(float size)
+  {
+    ++_branches;
+    _sahCost += TRAVERSAL_COST * size * size / _rootArea;
+  }
+
+  void addEmptyCell()
+  {
+    ++_emptyCells;
+  }
+
+  void addLeaf(int depth, float size, Triangle[] triangles)
+  {
+    ++_leaves;
+    _maxDepth = Math.max(_maxDepth, depth);
+    _triangleRefs += triangles.length;
+    _triangles.addAll(Arrays.asList(triangles));
+    _sahCost += INTERSECTION_COST * triangles.length * size * size / _rootArea;
+
+    _leavesByDepth = count(_leavesByDepth, depth);
+    _leavesByOccupancy = count(_leavesByOccupancy, triangles.length);
+  }
+
+  private static int[] count(int[] histogram, int i)
+  {
+    if (i >= histogram.length)
+      histogram = Arrays.copyOf(histogram, Math.max(i + 1,
+          histogram.length * 2));
+    ++histogram[i];
+    return histogram;
+  }
+
+  /**
+   * A Spatial: six references, plus the IntBuffer objects of its cells and
+   * its leaf triangles.
+   */
+  private static long spatialSize()
+  {
+    return align(OBJECT_HEADER + 6 * REFERENCE) + 2 * INT_BUFFER;
+  }
+
+  private static long arraySize(int length, int elementSize)
+  {
+    return align(ARRAY_HEADER + (long) length * elementSize);
+  }
+
+  private static long align(long size)
+  {
+    return (size + 7) & ~7L;
+  }
+
+  public int getBranches()
+  {
+    return _branches;
+  }
+
+  public int getLeaves()
+  {
+    return _leaves;
+  }
+
+  public int getEmptyCells()
+  {
+    return _emptyCells;
+  }
+
+  public int getMaxDepth()
+  {
+    return _maxDepth;
+  }
+
+  public long getTriangleReferences()
+  {
+    return _triangleRefs;
+  }
+
+  /**
+   * @return Triangle references in the leaves per distinct triangle.
+   */
+  public double getDuplication()
+  {
+    return _triangles.isEmpty() ? 0 : (double) _triangleRefs
+                                      / _triangles.size();
+  }
+
+  public double getSahCost()
+  {
+    return _sahCost;
+  }
+
+  public long getMemory()
+  {
+    return _memory;
+  }
+
+  /**
+   * @return How many leaves there are at each depth, the root being 0.
+   */
+  public int[] getLeavesByDepth()
+  {
+    return Arrays.copyOf(_leavesByDepth, _maxDepth + 1);
+  }
+
+  /**
+   * @return How many leaves hold 0, 1, 2... triangles.
+   */
+  public int[] getLeavesByOccupancy()
+  {
+    int n = _leavesByOccupancy.length;
+    while (n > 1 && _leavesByOccupancy[n - 1] == 0)
+      --n;
+    return Arrays.copyOf(_leavesByOccupancy, n);
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ROOT,
+        "Octree: %d branches, %d leaves, %d empty cells, depth %d%n",
+        _branches, _leaves, _emptyCells, _maxDepth));
+    sb.append(String.format(Locale.ROOT,
+        "  %d triangles, %d references in leaves (duplication %.2f)%n",
+        _triangles.size(), _triangleRefs, getDuplication()));
+    sb.append(String.format(Locale.ROOT,
+        "  SAH cost %.2f, estimated memory %.1f KB%n", _sahCost,
+        _memory / 1024.0));
+    sb.append("  leaves by depth:");
+    appendHistogram(sb, getLeavesByDepth());
+    sb.append(String.format("%n  leaves by triangle count:"));
+    appendHistogram(sb, getLeavesByOccupancy());
+    return sb.toString();
+  }
+
+  private static void appendHistogram(StringBuilder sb, int[] histogram)
+  {
+    for (int i = 0; i < histogram.length; ++i)
+      if (histogram[i] != 0)
+        sb.append(' ').append(i).append(':').append(histogram[i]);
+  }
+}
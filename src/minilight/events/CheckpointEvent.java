@@ -0,0 +1,28 @@
+package minilight.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Writing a checkpoint file.
+ * @author Tom Eklöf
+ */
+@Name("minilight.Checkpoint")
+@Label("Checkpoint")
+@Category("MiniLight")
+@Description("Writing the raw render state to a checkpoint file")
+public class CheckpointEvent extends Event
+{
+
+  @Label("File")
+  public String file;
+  @Label("Frames")
+  public long frames;
+  @Label("File Size")
+  @DataAmount
+  public long bytes;
+}
@@ -0,0 +1,28 @@
+package minilight.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One render pass, one sample for every pixel.
+ * @author Tom Eklöf
+ */
+@Name("minilight.Frame")
+@Label("Frame")
+@Category("MiniLight")
+@Description("Rendering one sample per pixel over the whole image")
+public class FrameEvent extends Event
+{
+
+  @Label("Frame")
+  public int frame;
+  @Label("Threads")
+  public int threads;
+  @Label("Tiles")
+  public int tiles;
+  @Label("Samples")
+  public long samples;
+}
@@ -0,0 +1,32 @@
+package minilight.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Tone mapping, encoding and writing an image file.
+ * @author Tom Eklöf
+ */
+@Name("minilight.ImageSave")
+@Label("Image Save")
+@Category("MiniLight")
+@Description("Tone mapping, encoding and writing an image file")
+public class ImageSaveEvent extends Event
+{
+
+  @Label("File")
+  public String file;
+  @Label("Format")
+  public String format;
+  @Label("Width")
+  public int width;
+  @Label("Height")
+  public int height;
+  @Label("File Size")
+  @DataAmount
+  public long bytes;
+}
@@ -0,0 +1,24 @@
+package minilight.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Building the Spatial index of a scene.
+ * @author Tom Eklöf
+ */
+@Name("minilight.OctreeBuild")
+@Label("Octree Build")
+@Category("MiniLight")
+@Description("Constructing the octree (Spatial) of a scene")
+public class OctreeBuildEvent extends Event
+{
+
+  @Label("Triangles")
+  public int triangles;
+  @Label("Emitters")
+  public int emitters;
+}
@@ -0,0 +1,30 @@
+package minilight.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Reading a model or mesh file.
+ * @author Tom Eklöf
+ */
+@Name("minilight.SceneParse")
+@Label("Scene Parse")
+@Category("MiniLight")
+@Description("Reading a model file (ModelReader) or a mesh file (MeshReader)")
+public class SceneParseEvent extends Event
+{
+
+  @Label("File")
+  public String file;
+  @Label("Format")
+  public String format;
+  @Label("Triangles")
+  public int triangles;
+  @Label("File Size")
+  @DataAmount
+  public long bytes;
+}
@@ -0,0 +1,28 @@
+package minilight.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Copying the image being rendered into for saving or previewing.
+ * @author Tom Eklöf
+ */
+@Name("minilight.Snapshot")
+@Label("Image Snapshot")
+@Category("MiniLight")
+@Description("Copying the image for the image saver or the preview stream")
+public class SnapshotEvent extends Event
+{
+
+  @Label("Width")
+  public int width;
+  @Label("Height")
+  public int height;
+  @Label("Copied")
+  @DataAmount
+  public long bytes;
+}
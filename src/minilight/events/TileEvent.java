@@ -0,0 +1,35 @@
+package minilight.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One tile of a frame, rendered by one thread.
+ * @author Tom Eklöf
+ */
+@Name("minilight.Tile")
+@Label("Tile")
+@Category("MiniLight")
+@Description("Rendering one tile of a frame. x and y are the bottom left "
+             + "corner, in the image coordinates of Camera")
+public class TileEvent extends Event
+{
+
+  @Label("Frame")
+  public int frame;
+  @Label("Tile")
+  public int tile;
+  @Label("X")
+  public int x;
+  @Label("Y")
+  public int y;
+  @Label("Width")
+  public int width;
+  @Label("Height")
+  public int height;
+  @Label("Samples")
+  public int samples;
+}
@@ -0,0 +1,331 @@
+package minilight.rendering;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import minilight.datastructures.Image;
+import minilight.events.FrameEvent;
+import minilight.events.TileEvent;
+import minilight.scene.Camera;
+import minilight.scene.Scene;
+import minilight.utils.Counters;
+import minilight.utils.LatencyHistogram;
+import minilight.utils.MagicNumbers;
+
+/**
+ * Renders whole frames into one shared image, split into square tiles that
+ * the worker threads pick up one at a time. Tiles don't overlap, so the
+ * threads never write to the same pixel, and the image is consistent
+ * between frames (which is when it gets saved).<br/><br/>
+ *
+ * Every tile reseeds the random number stream of its thread from the seed,
+ * the frame number and the tile number, so the result only depends on those
+ * and not on the number of threads or the order the tiles get done in. That
+ * also means a render can be stopped after any frame and resumed later.
+ * With MagicNumbers.WAVEFRONT the tiles are traced by a WavefrontTracer.
+ * @author Tom Eklöf
+ */
+public class FrameRenderer
+{
+
+  private final Scene _scene;
+  private final Camera _camera;
+  private final Image _image;
+  private final int _numThreads;
+  private final int _tileSize;
+  private final int _tilesX, _numTiles;
+  // the window rendered, in Camera's coordinates (y = 0 is the bottom row)
+  private final int _x0, _y0, _x1, _y1;
+  private final RayTracer[] _raytracers;
+  // for the coarse previews, which mustn't train the cache or the guide
+  private final RayTracer[] _previewTracers;
+  private final WavefrontTracer[] _wavefronts; // null if tracing path by path
+  private final Counters[] _counters; // null elements if not counting
+  private final RadianceCache _cache; // null if not caching
+  private final PathGuide _guide; // null if not guiding
+  private final ExecutorService _es;
+
+  public FrameRenderer(Scene s, Camera c, Image img, int numThreads,
+                       int tileSize)
+  {
+    this(s, c, img, numThreads, tileSize, 0, 0, img.getWidth(),
+        img.getHeight());
+  }
+
+  /**
+   * Renders only a window of the image, with the projection of the whole
+   * image. The rest of the image gets no samples.
+   * @param x Left edge of the window
+   * @param y Top edge of the window, counting from the top row
+   * @param width
+   * @param height
+   */
+  public FrameRenderer(Scene s, Camera c, Image img, int numThreads,
+                       int tileSize, int x, int y, int width, int height)
+  {
+    _scene = s;
+    _camera = c;
+    _image = img;
+    _numThreads = numThreads;
+    _tileSize = tileSize;
+    _x0 = x;
+    _x1 = x + width;
+    _y0 = img.getHeight() - (y + height);
+    _y1 = img.getHeight() - y;
+    _tilesX = (width + tileSize - 1) / tileSize;
+    _numTiles = _tilesX * ((height + tileSize - 1) / tileSize);
+
+    _cache = MagicNumbers.CACHE_DEPTH < 0 ? null : new RadianceCache(
+        MagicNumbers.CACHE_CELL_SIZE > 0 ? MagicNumbers.CACHE_CELL_SIZE
+        : s.getOctree().getSize() / MagicNumbers.CACHE_CELLS_ACROSS,
+        MagicNumbers.CACHE_DEPTH);
+    _guide = MagicNumbers.GUIDING ? new PathGuide(s.getOctree().getBounds())
+             : null;
+    _raytracers = new RayTracer[numThreads];
+    _previewTracers = _cache == null && _guide == null ? _raytracers
+                      : new RayTracer[numThreads];
+    _counters = new Counters[numThreads];
+    _wavefronts = MagicNumbers.WAVEFRONT ? new WavefrontTracer[numThreads]
+                  : null;
+    for (int i = 0; i < numThreads; ++i)
+    {
+      if (MagicNumbers.COUNTERS)
+        _counters[i] = Counters.create();
+      _raytracers[i] = new RayTracer(s, _counters[i], MagicNumbers.INTEGRATOR,
+          _cache, _guide);
+      if (_previewTracers != _raytracers)
+        _previewTracers[i] = new RayTracer(s, _counters[i],
+            MagicNumbers.INTEGRATOR, null, null);
+      if (_wavefronts != null)
+        _wavefronts[i] = new WavefrontTracer(s, _counters[i],
+            MagicNumbers.INTEGRATOR);
+    }
+
+    _es = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+  }
+
+  /**
+   * Adds one sample per pixel to the image. Returns when the whole frame is
+   * done. The time it took goes into LatencyHistogram.FRAMES, and that of
+   * every tile into LatencyHistogram.TILES.
+   * @param frameNo Number of the frame, counting from 0.
+   */
+  public void renderFrame(int frameNo)
+  {
+    FrameEvent event = new FrameEvent();
+    event.begin();
+    long startTime = System.nanoTime();
+    if (_es == null)
+      renderTiles(frameNo, _image, 1, new AtomicInteger(), 0);
+    else
+      renderParallel(frameNo, _image, 1);
+    LatencyHistogram.FRAMES.recordSince(startTime);
+    if (_guide != null)
+      _guide.frameDone();
+
+    if (event.shouldCommit())
+    {
+      event.frame = frameNo;
+      event.threads = _numThreads;
+      event.tiles = _numTiles;
+      event.samples = (long) (_x1 - _x0) * (_y1 - _y0);
+      event.commit();
+    }
+  }
+
+  /**
+   * Renders a blocky preview of the window: one sample per blockSize x
+   * blockSize block, spread over the block. Goes into the given image, not
+   * the one being rendered, uses random numbers of its own and ray tracers
+   * without the radiance cache and the path guide, so it doesn't change the
+   * render. Not counted in the frame and tile latencies.
+   * @param preview An image of the same size as the one being rendered
+   */
+  public void renderCoarse(int blockSize, Image preview)
+  {
+    // negative frame numbers, apart from the real frames' streams
+    if (_es == null)
+      renderTiles(-blockSize, preview, blockSize, new AtomicInteger(), 0);
+    else
+      renderParallel(-blockSize, preview, blockSize);
+  }
+
+  private void renderParallel(final int frameNo, final Image img,
+                              final int blockSize)
+  {
+    final AtomicInteger nextTile = new AtomicInteger();
+
+    List<Callable<Void>> workers = new ArrayList<Callable<Void>>(_numThreads);
+    for (int i = 0; i < _numThreads; ++i)
+    {
+      final int thread = i;
+      workers.add(new Callable<Void>()
+      {
+
+        public Void call()
+        {
+          renderTiles(frameNo, img, blockSize, nextTile, thread);
+          return null;
+        }
+      });
+    }
+
+    try
+    {
+      for (Future<Void> f : _es.invokeAll(workers))
+        f.get();
+    }
+    catch (InterruptedException ex)
+    {
+      throw new IllegalStateException("Interrupted while rendering frame "
+                                      + frameNo, ex);
+    }
+    catch (ExecutionException ex)
+    {
+      throw new IllegalStateException("Rendering frame " + frameNo
+                                      + " failed", ex.getCause());
+    }
+  }
+
+  private void renderTiles(int frameNo, Image img, int blockSize,
+                           AtomicInteger nextTile, int thread)
+  {
+    int tile;
+    while ((tile = nextTile.getAndIncrement()) < _numTiles)
+      renderTile(frameNo, tile, img, blockSize, thread);
+  }
+
+  /**
+   * Adds one sample per pixel of one tile of a frame to the given image, on
+   * the calling thread. The same samples as the tile gets in renderFrame().
+   * For rendering parts of frames elsewhere, see TileWorker.
+   * @param thread Whose ray tracer to use, 0 up to the number of threads
+   */
+  public void renderTile(int frameNo, int tile, Image img, int thread)
+  {
+    renderTile(frameNo, tile, img, 1, thread);
+  }
+
+  private void renderTile(int frameNo, int tile, Image img, int blockSize,
+                          int thread)
+  {
+    RayTracer rt = blockSize > 1 ? _previewTracers[thread]
+                   : _raytracers[thread];
+    Counters counters = _counters[thread];
+    int x0 = _x0 + (tile % _tilesX) * _tileSize;
+    int y0 = _y0 + (tile / _tilesX) * _tileSize;
+
+    MagicNumbers.random.setSeed(tileSeed(MagicNumbers.RANDOM_SEED, frameNo,
+        tile));
+    int x1 = Math.min(x0 + _tileSize, _x1);
+    int y1 = Math.min(y0 + _tileSize, _y1);
+    if (blockSize > 1)
+    {
+      _camera.getBlocks(_scene, img, rt, x0, y0, x1, y1, blockSize);
+      if (counters != null)
+        counters.addSamples(((x1 - x0 + blockSize - 1) / blockSize)
+                            * ((y1 - y0 + blockSize - 1) / blockSize));
+      return;
+    }
+    TileEvent event = new TileEvent();
+    event.begin();
+    long startTime = System.nanoTime();
+    if (_wavefronts != null)
+      _wavefronts[thread].traceTile(_camera, img, x0, y0, x1, y1);
+    else
+      _camera.getTile(_scene, img, rt, x0, y0, x1, y1);
+    LatencyHistogram.TILES.recordSince(startTime);
+    if (event.shouldCommit())
+    {
+      event.frame = frameNo;
+      event.tile = tile;
+      event.x = x0;
+      event.y = y0;
+      event.width = x1 - x0;
+      event.height = y1 - y0;
+      event.samples = event.width * event.height;
+      event.commit();
+    }
+    if (counters != null)
+      counters.addSamples((x1 - x0) * (y1 - y0));
+  }
+
+  /**
+   * @return The rectangle a tile covers: x, y counting from the top row,
+   * width and height, like Image.crop() takes them.
+   */
+  public int[] getTileWindow(int tile)
+  {
+    int x0 = _x0 + (tile % _tilesX) * _tileSize;
+    int y0 = _y0 + (tile / _tilesX) * _tileSize;
+    int x1 = Math.min(x0 + _tileSize, _x1);
+    int y1 = Math.min(y0 + _tileSize, _y1);
+    return new int[]
+        {
+          x0, _image.getHeight() - y1, x1 - x0, y1 - y0
+        };
+  }
+
+  public int getNumTiles()
+  {
+    return _numTiles;
+  }
+
+  /**
+   * SplitMix64 over the seed, frame and tile, so neighbouring tiles and
+   * frames get unrelated streams.
+   */
+  static long tileSeed(long seed, long frameNo, long tile)
+  {
+    long z = seed + (frameNo * 0x9e3779b97f4a7c15L)
+             + (tile * 0xbf58476d1ce4e5b9L);
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * @return The sums of the counters of all threads, exact between frames.
+   * All zero if counting is off.
+   */
+  public Counters getCounters()
+  {
+    List<Counters> all = new ArrayList<Counters>(_numThreads);
+    for (Counters c : _counters)
+      if (c != null)
+        all.add(c);
+    return Counters.sum(all);
+  }
+
+  public void shutdown()
+  {
+    if (_es != null)
+      _es.shutdown();
+  }
+
+  /**
+   * @return The radiance cache the threads share, null if --cache is off.
+   */
+  public RadianceCache getRadianceCache()
+  {
+    return _cache;
+  }
+
+  /**
+   * @return The path guide the threads share, null if --guide is off.
+   */
+  public PathGuide getPathGuide()
+  {
+    return _guide;
+  }
+
+  public Image getImage()
+  {
+    return _image;
+  }
+}
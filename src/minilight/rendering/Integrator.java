@@ -0,0 +1,56 @@
+package minilight.rendering;
+
+/**
+ * How RayTracer combines its two ways of finding light: sampling a point
+ * on an emitter, and following the reflected ray until it happens to hit
+ * one.<br/><br/>
+ *
+ * CLASSIC is MiniLight's own: emitters only count through emitter
+ * sampling, except where the eye sees them directly. BALANCE and POWER
+ * use multiple importance sampling: both ways count, each weighted by how
+ * likely it was to produce the sample compared to the other (Veach's
+ * balance and power heuristics, the latter with an exponent of 2). That
+ * takes the noise out of big or close emitters that the emitter samples
+ * find poorly, and the answer stays the same.
+ * @author Tom Eklöf
+ */
+public enum Integrator
+{
+
+  CLASSIC
+  {
+
+    float weight(float pdf, float otherPdf)
+    {
+      return 1f;
+    }
+  },
+  BALANCE
+  {
+
+    float weight(float pdf, float otherPdf)
+    {
+      return pdf / (pdf + otherPdf);
+    }
+  },
+  POWER
+  {
+
+    float weight(float pdf, float otherPdf)
+    {
+      return pdf * pdf / (pdf * pdf + otherPdf * otherPdf);
+    }
+  };
+
+  /**
+   * @param pdf Density of the strategy that made the sample, in solid angle
+   * @param otherPdf Density of the other strategy for the same direction
+   * @return The weight of the sample, 1 if only CLASSIC
+   */
+  abstract float weight(float pdf, float otherPdf);
+
+  public boolean isMultipleImportance()
+  {
+    return this != CLASSIC;
+  }
+}
@@ -0,0 +1,377 @@
+package minilight.rendering;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import minilight.scene.Vector;
+
+/**
+ * Learns where light comes from, so bounces can go there more often: a
+ * spatial binary tree over the scene, each leaf holding a quadtree over the
+ * sphere of directions with the light arriving from each part of it (after
+ * Müller et al., "Practical Path Guiding").<br/><br/>
+ *
+ * Directions are mapped to the unit square by (cos(theta), phi), which
+ * keeps areas, so a quadtree node's share of the square is its share of
+ * the sphere. Every leaf has two versions of its quadtree on one structure:
+ * the sampling version is fixed while a frame renders, and the building
+ * version collects what the paths find, added to atomically by all the
+ * threads.<br/><br/>
+ *
+ * After batches of 1, 2, 4, 8... frames, update() turns what was collected
+ * into the next sampling version. Quadtree nodes holding more than RHO of
+ * their leaf's light are split, the rest merged; spatial leaves that saw
+ * more than SPATIAL_THRESHOLD * sqrt(frames in the batch) samples are split
+ * in half, along x, y and z in turn. update() must not run at the same time
+ * as a frame.
+ * @author Tom Eklöf
+ */
+public class PathGuide
+{
+
+  public static final float RHO = 0.01f;
+  public static final int SPATIAL_THRESHOLD = 12000;
+  private static final int MAX_DIRECTIONAL_DEPTH = 20;
+  private static final int MAX_SPATIAL_DEPTH = 24;
+  private final SpatialNode _root;
+  private int _batchFrames = 1;
+  private int _framesDone = 0;
+  private int _updates = 0;
+
+  /**
+   * @param bounds Lower and upper corners of a box around the scene, see
+   * Spatial.getBounds()
+   */
+  public PathGuide(float[] bounds)
+  {
+    _root = new SpatialNode(Arrays.copyOf(bounds, 6), new DirectionTree());
+  }
+
+  /**
+   * The leaf to sample and record directions at a point.
+   */
+  public DirectionTree getDirections(Vector position)
+  {
+    SpatialNode n = _root;
+    while (n._directions == null)
+      n = position.get(n._axis) < n._split ? n._low : n._high;
+    return n._directions;
+  }
+
+  /**
+   * Called after every frame; learns from the batch when it is complete.
+   */
+  public void frameDone()
+  {
+    if (++_framesDone < _batchFrames)
+      return;
+    _root.update(0, SPATIAL_THRESHOLD * (float) Math.sqrt(_batchFrames));
+    ++_updates;
+    _framesDone = 0;
+    _batchFrames *= 2;
+  }
+
+  public int getUpdates()
+  {
+    return _updates;
+  }
+
+  /**
+   * @return {spatial leaves, directional nodes in all of them}
+   */
+  public int[] getSize()
+  {
+    int[] size = new int[2];
+    _root.count(size);
+    return size;
+  }
+
+  private static class SpatialNode
+  {
+
+    private final float[] _bounds;
+    private int _axis;
+    private float _split;
+    private SpatialNode _low, _high;
+    private DirectionTree _directions; // null in branches
+
+    public SpatialNode(float[] bounds, DirectionTree directions)
+    {
+      _bounds = bounds;
+      _directions = directions;
+    }
+
+    public void update(int depth, float threshold)
+    {
+      if (_directions == null)
+      {
+        _low.update(depth + 1, threshold);
+        _high.update(depth + 1, threshold);
+        return;
+      }
+      float records = _directions._records.get();
+      _directions = _directions.refine();
+      split(depth, records, threshold);
+    }
+
+    /**
+     * Splits while the samples, assumed spread evenly, exceed the
+     * threshold.
+     */
+    private void split(int depth, float records, float threshold)
+    {
+      if (records <= threshold || depth >= MAX_SPATIAL_DEPTH)
+        return;
+      _axis = depth % 3;
+      _split = (_bounds[_axis] + _bounds[_axis + 3]) * 0.5f;
+      float[] low = Arrays.copyOf(_bounds, 6);
+      float[] high = Arrays.copyOf(_bounds, 6);
+      low[_axis + 3] = _split;
+      high[_axis] = _split;
+      _low = new SpatialNode(low, _directions.copy());
+      _high = new SpatialNode(high, _directions.copy());
+      _directions = null;
+      _low.split(depth + 1, records / 2, threshold);
+      _high.split(depth + 1, records / 2, threshold);
+    }
+
+    public void count(int[] size)
+    {
+      if (_directions == null)
+      {
+        _low.count(size);
+        _high.count(size);
+      }
+      else
+      {
+        ++size[0];
+        size[1] += _directions._energy.length;
+      }
+    }
+  }
+
+  /**
+   * A quadtree over the directions at a spatial leaf. Nodes are kept in
+   * flat arrays, the root first and the four children of a node next to
+   * each other, numbered by quadrant: +1 for the upper half in u, +2 in v.
+   */
+  public static class DirectionTree
+  {
+
+    private final int[] _children; // index of the first child, 0 for leaves
+    private final float[] _energy; // sampling version, sums in branches
+    private final AtomicIntegerArray _flux; // building version, leaves only
+    private final AtomicInteger _records = new AtomicInteger();
+
+    /**
+     * An empty tree: one node and nothing learned yet.
+     */
+    public DirectionTree()
+    {
+      this(new int[1], new float[1]);
+    }
+
+    private DirectionTree(int[] children, float[] energy)
+    {
+      _children = children;
+      _energy = energy;
+      _flux = new AtomicIntegerArray(children.length);
+    }
+
+    /**
+     * @return Whether there is anything to sample yet.
+     */
+    public boolean isTrained()
+    {
+      return _energy[0] > 0f;
+    }
+
+    /**
+     * Picks a direction in proportion to the light learned. Only call if
+     * isTrained().
+     */
+    public Vector sample(Random rand)
+    {
+      int n = 0;
+      float u0 = 0f, v0 = 0f, size = 1f;
+      while (_children[n] != 0)
+      {
+        int first = _children[n];
+        float r = rand.nextFloat() * _energy[n];
+        int q = 0;
+        while (q < 3 && (r -= _energy[first + q]) >= 0f)
+          ++q;
+        size *= 0.5f;
+        u0 += (q & 1) * size;
+        v0 += (q >> 1) * size;
+        n = first + q;
+      }
+      return toDirection(u0 + rand.nextFloat() * size,
+          v0 + rand.nextFloat() * size);
+    }
+
+    /**
+     * @return The density of sample() picking the direction, per unit of
+     * solid angle.
+     */
+    public float getPdf(Vector direction)
+    {
+      if (!isTrained())
+        return 0f;
+      float u = (direction.z + 1f) * 0.5f;
+      float v = phi(direction);
+      float pdf = 1f;
+      int n = 0;
+      while (_children[n] != 0)
+      {
+        int q = quadrant(u, v);
+        int child = _children[n] + q;
+        pdf *= 4f * _energy[child] / _energy[n];
+        if (pdf == 0f)
+          return 0f;
+        u = u * 2f - (q & 1);
+        v = v * 2f - (q >> 1);
+        n = child;
+      }
+      return pdf / (4f * (float) Math.PI);
+    }
+
+    /**
+     * Adds light arriving from a direction to the building version. Safe
+     * from any thread.
+     * @param value The luminance of the light divided by the density of the
+     * direction having been picked
+     */
+    public void record(Vector direction, float value)
+    {
+      _records.incrementAndGet();
+      if (!(value > 0f) || Float.isInfinite(value))
+        return;
+      float u = (direction.z + 1f) * 0.5f;
+      float v = phi(direction);
+      int n = 0;
+      while (_children[n] != 0)
+      {
+        int q = quadrant(u, v);
+        u = u * 2f - (q & 1);
+        v = v * 2f - (q >> 1);
+        n = _children[n] + q;
+      }
+      int old;
+      do
+        old = _flux.get(n);
+      while (!_flux.compareAndSet(n, old, Float.floatToRawIntBits(
+          Float.intBitsToFloat(old) + value)));
+    }
+
+    private static int quadrant(float u, float v)
+    {
+      return (u >= 0.5f ? 1 : 0) | (v >= 0.5f ? 2 : 0);
+    }
+
+    private static float phi(Vector direction)
+    {
+      float phi = (float) (Math.atan2(direction.y, direction.x)
+                           / (2 * Math.PI));
+      return phi < 0f ? phi + 1f : (phi >= 1f ? 0f : phi);
+    }
+
+    private static Vector toDirection(float u, float v)
+    {
+      float cosTheta = 2f * u - 1f;
+      float sinTheta = (float) Math.sqrt(Math.max(0f, 1f - cosTheta
+                                                          * cosTheta));
+      double phi = 2 * Math.PI * v;
+      return new Vector(sinTheta * (float) Math.cos(phi),
+          sinTheta * (float) Math.sin(phi), cosTheta);
+    }
+
+    /**
+     * @return A new tree shaped after the light collected in this one,
+     * which it holds as its sampling version.
+     */
+    DirectionTree refine()
+    {
+      float[] sums = new float[_children.length];
+      sum(0, sums);
+      if (!(sums[0] > 0f))
+        return isTrained() ? copy() : new DirectionTree();
+
+      Builder b = new Builder(sums[0]);
+      b.add(1);
+      b.build(0, 0, sums, 0f, 0);
+      return new DirectionTree(Arrays.copyOf(b._children, b._size),
+          Arrays.copyOf(b._energy, b._size));
+    }
+
+    private float sum(int n, float[] sums)
+    {
+      int first = _children[n];
+      if (first == 0)
+        sums[n] = Float.intBitsToFloat(_flux.get(n));
+      else
+        for (int q = 0; q < 4; ++q)
+          sums[n] += sum(first + q, sums);
+      return sums[n];
+    }
+
+    /**
+     * @return A tree of the same shape and sampling version, with nothing
+     * collected.
+     */
+    DirectionTree copy()
+    {
+      return new DirectionTree(_children, _energy);
+    }
+
+    /**
+     * Lays out the refined tree: old nodes keep their collected light,
+     * split leaves give each new child a quarter of theirs.
+     */
+    private class Builder
+    {
+
+      private final float _total;
+      private int[] _children = new int[64];
+      private float[] _energy = new float[64];
+      private int _size = 0;
+
+      public Builder(float total)
+      {
+        _total = total;
+      }
+
+      private int add(int count)
+      {
+        if (_size + count > _children.length)
+        {
+          _children = Arrays.copyOf(_children, _children.length * 2);
+          _energy = Arrays.copyOf(_energy, _energy.length * 2);
+        }
+        int first = _size;
+        _size += count;
+        return first;
+      }
+
+      /**
+       * @param old The node in the old tree, -1 below its leaves
+       */
+      public void build(int n, int old, float[] sums, float energy,
+                        int depth)
+      {
+        if (old >= 0)
+          energy = sums[old];
+        _energy[n] = energy;
+        if (energy <= RHO * _total || depth >= MAX_DIRECTIONAL_DEPTH)
+          return;
+        int first = add(4);
+        _children[n] = first;
+        int oldFirst = old >= 0 ? DirectionTree.this._children[old] : 0;
+        for (int q = 0; q < 4; ++q)
+          build(first + q, oldFirst != 0 ? oldFirst + q : -1, sums,
+              energy / 4f, depth + 1);
+      }
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package minilight.rendering;
+
+import java.util.concurrent.ConcurrentHashMap;
+import minilight.scene.Vector;
+
+/**
+ * Remembers how much light leaves the surfaces in each cell of a grid, so
+ * paths can stop early and use the average instead of being traced on.
+ * All surfaces are Lambertian, so the light they reflect is the same in
+ * every direction and smooth over the surface: a cell's average is a good
+ * stand-in for the end of a path.<br/><br/>
+ *
+ * Cells are cubes of a fixed size, hashed into a ConcurrentHashMap along
+ * with which way the surface faces (the main axis of its normal turned
+ * towards the ray), so both sides of a wall and the walls meeting at a
+ * corner don't share cells. The cache fills up as a side effect of
+ * rendering: every fully traced path vertex adds its reflected radiance to
+ * its cell. A cell is only used once it has MIN_SAMPLES samples.<br/><br/>
+ *
+ * Safe for any number of rendering threads. Reading a cell doesn't lock;
+ * adding to one locks just that cell. The result is biased (blurred by the
+ * cell size) and, with several threads, depends on the order the tiles are
+ * done in.
+ * @author Tom Eklöf
+ */
+public class RadianceCache
+{
+
+  public static final int MIN_SAMPLES = 16;
+  private static final int BITS = 20; // per coordinate
+  private static final long MASK = (1L << BITS) - 1;
+  private final ConcurrentHashMap<Long, Cell> _cells =
+                                              new ConcurrentHashMap<Long, Cell>();
+  private final float _cellSize;
+  private final int _depth;
+
+  /**
+   * @param cellSize Edge length of the cells
+   * @param depth Number of bounces before paths may stop at the cache, 0 to
+   * use it on the surfaces seen directly
+   */
+  public RadianceCache(float cellSize, int depth)
+  {
+    _cellSize = cellSize;
+    _depth = depth;
+  }
+
+  /**
+   * @param normal The surface normal, facing the side the ray came from
+   * @return The average radiance reflected in the cell, or null if it
+   * doesn't have enough samples yet.
+   */
+  public Vector get(Vector position, Vector normal)
+  {
+    Cell c = _cells.get(key(position, normal));
+    return c == null ? null : c.getMean();
+  }
+
+  public void add(Vector position, Vector normal, Vector radiance)
+  {
+    Long key = key(position, normal);
+    Cell c = _cells.get(key);
+    if (c == null)
+    {
+      Cell created = new Cell();
+      c = _cells.putIfAbsent(key, created);
+      if (c == null)
+        c = created;
+    }
+    c.add(radiance);
+  }
+
+  private Long key(Vector position, Vector normal)
+  {
+    long k = 0;
+    int axis = 0;
+    for (int i = 0; i < 3; ++i)
+    {
+      k = (k << BITS) | ((long) Math.floor(position.get(i) / _cellSize) & MASK);
+      if (Math.abs(normal.get(i)) > Math.abs(normal.get(axis)))
+        axis = i;
+    }
+    int side = axis * 2 + (normal.get(axis) < 0f ? 1 : 0);
+    return (k << 3) | side;
+  }
+
+  public int getDepth()
+  {
+    return _depth;
+  }
+
+  public int getCells()
+  {
+    return _cells.size();
+  }
+
+  public float getCellSize()
+  {
+    return _cellSize;
+  }
+
+  private static class Cell
+  {
+
+    private float _r, _g, _b;
+    private int _count = 0;
+    private volatile Vector _mean = null; // null until MIN_SAMPLES
+
+    public Vector getMean()
+    {
+      return _mean;
+    }
+
+    public synchronized void add(Vector radiance)
+    {
+      ++_count;
+      _r += (radiance.x - _r) / _count;
+      _g += (radiance.y - _g) / _count;
+      _b += (radiance.z - _b) / _count;
+      if (_count >= MIN_SAMPLES)
+        _mean = new Vector(_r, _g, _b);
+    }
+  }
+}
@@ -1,9 +1,13 @@
 package minilight.rendering;
 
+import java.util.Random;
+import minilight.datastructures.Image;
 import minilight.scene.Scene;
 import minilight.scene.SurfacePoint;
 import minilight.scene.Triangle;
 import minilight.scene.Vector;
+import minilight.utils.Counters;
+import minilight.utils.MagicNumbers;
 
 /**
  *
@@ -13,15 +17,78 @@ public class RayTracer
 {
 
   private final Scene _scene;
+  private final Counters _counters;
+  private final Integrator _integrator;
+  private final RadianceCache _cache;
+  private final PathGuide _guide;
+  private final Random _rand = MagicNumbers.random;
+  // what the last eye ray hit first
+  private Triangle _firstItem;
+  private Vector _firstPosition;
 
   public RayTracer(Scene s)
   {
-    _scene = s;
+    this(s, null);
+  }
+
+  /**
+   * @param counters Statistics of the thread using this ray tracer, or null
+   * to not count anything
+   */
+  public RayTracer(Scene s, Counters counters)
+  {
+    this(s, counters, MagicNumbers.INTEGRATOR);
+  }
+
+  public RayTracer(Scene s, Counters counters, Integrator integrator)
+  {
+    this(s, counters, integrator, null, null);
+  }
 
+  /**
+   * @param cache Where paths may end early, shared by all threads, or null
+   * @param guide Where to learn and pick bounce directions from, shared by
+   * all threads, or null to only use the surfaces' cosine lobes
+   */
+  public RayTracer(Scene s, Counters counters, Integrator integrator,
+                   RadianceCache cache, PathGuide guide)
+  {
+    _scene = s;
+    _counters = counters;
+    _integrator = integrator;
+    _cache = cache;
+    _guide = guide;
   }
 
   public Vector getRadiance(Vector rayOrigin, Vector rayDirection,
                             Triangle lastHit)
+  {
+    _firstItem = null;
+    _firstPosition = null;
+    return getRadiance(rayOrigin, rayDirection, lastHit, 0f, 0);
+  }
+
+  /**
+   * @return The triangle the ray of the last getRadiance() call hit, null
+   * if none.
+   */
+  public Triangle getFirstItem()
+  {
+    return _firstItem;
+  }
+
+  public Vector getFirstPosition()
+  {
+    return _firstPosition;
+  }
+
+  /**
+   * @param directionPdf The density of lastHit's getNextDirection() picking
+   * rayDirection, for weighting emitters that the ray hits
+   * @param depth Number of bounces so far
+   */
+  private Vector getRadiance(Vector rayOrigin, Vector rayDirection,
+                             Triangle lastHit, float directionPdf, int depth)
   {
     Vector hitPosition;
     Triangle pHitObject;
@@ -31,31 +98,88 @@ public class RayTracer
      * XXX: modify getIntersection so that we won't need the Object[].
      * A new class, maybe?
      */
-    Object[] temp = _scene.getIntersection(rayOrigin, rayDirection, lastHit);
+    if (_counters != null)
+      if (lastHit == null)
+        _counters.addPrimaryRay();
+      else
+        _counters.addBounceRay();
+    Object[] temp = _scene.getIntersection(rayOrigin, rayDirection, lastHit,
+        _counters);
     pHitObject = (Triangle) temp[0];
     hitPosition = (Vector) temp[1];
 
 
     if (pHitObject != null)
     {
+      if (depth == 0)
+      {
+        _firstItem = pHitObject;
+        _firstPosition = hitPosition;
+      }
+      if (_counters != null)
+        _counters.addPathVertex();
       SurfacePoint sp = new SurfacePoint(pHitObject, hitPosition);
 
-      radiance = (lastHit != null ? Vector.ZERO : sp.getEmission(rayOrigin,
-          rayDirection.neg(), false));
+      if (lastHit == null)
+        radiance = sp.getEmission(rayOrigin, rayDirection.neg(), false);
+      else if (_integrator.isMultipleImportance())
+        radiance = getWeightedEmission(rayOrigin, rayDirection, sp,
+            directionPdf);
+      else
+        radiance = Vector.ZERO;
 
-      radiance = radiance.add(sampleEmitters(rayDirection, sp));
+      Vector facing = null, cached = null;
+      if (_cache != null)
+      {
+        facing = pHitObject.getNormal();
+        if (facing.dot(rayDirection) > 0f)
+          facing = facing.neg();
+        if (depth >= _cache.getDepth())
+          cached = _cache.get(hitPosition, facing);
+      }
 
+      if (cached != null) // end the path here
+        radiance = radiance.add(cached);
+      else
+      {
+        PathGuide.DirectionTree directions = _guide == null ? null
+                                             : _guide.getDirections(
+            hitPosition);
+        Vector direct = sampleEmitters(rayDirection, sp, directions);
+        Vector indirect = Vector.ZERO;
 
-      Vector nextDirection, color;
-      temp = sp.getNextDirection(rayDirection.neg());
-      nextDirection = (Vector) temp[0];
-      color = (Vector) temp[1];
+        Vector nextDirection, color;
+        float nextPdf = 0f;
+        if (directions == null)
+        {
+          temp = sp.getNextDirection(rayDirection.neg());
+          nextDirection = (Vector) temp[0];
+          color = (Vector) temp[1];
+        }
+        else
+        {
+          temp = getGuidedDirection(sp, rayDirection.neg(), directions);
+          nextDirection = (Vector) temp[0];
+          color = (Vector) temp[1];
+          nextPdf = (Float) temp[2];
+        }
 
-      if (!nextDirection.isZero())  // check if surface bounces ray, recurse
-        radiance = radiance.add(color.mul(getRadiance(sp.getPosition(),
-            nextDirection,
-            sp.getItem())));
+        if (!nextDirection.isZero())  // check if surface bounces ray, recurse
+        {
+          Vector incoming = getRadiance(sp.getPosition(), nextDirection,
+              sp.getItem(), directions == null ? sp.getDirectionPdf(
+              nextDirection) : nextPdf, depth + 1);
+          indirect = color.mul(incoming);
+          if (directions != null)
+            directions.record(nextDirection, incoming.dot(Image.RGB_LUMINANCE)
+                                             * sp.getReflectivityMean()
+                                             / nextPdf);
+        }
 
+        radiance = radiance.add(direct).add(indirect);
+        if (_cache != null)
+          _cache.add(hitPosition, facing, direct.add(indirect));
+      }
     }
     else// no hit: scene default emission
       radiance = _scene.getDefaultEmission(rayDirection.neg());
@@ -64,7 +188,62 @@ public class RayTracer
     return radiance;
   }
 
-  private Vector sampleEmitters(Vector rayDirection, SurfacePoint sp)
+  /**
+   * Like SurfacePoint.getNextDirection(), but picks from the learned
+   * directions GUIDE_FRACTION of the time, once there are any.
+   * @return {Vector outDir, Vector color, Float density of outDir per unit
+   * of solid angle}, a zero direction if the ray is absorbed
+   */
+  private Object[] getGuidedDirection(SurfacePoint sp, Vector inDirection,
+                                      PathGuide.DirectionTree directions)
+  {
+    float reflectivityMean = sp.getReflectivityMean();
+    if (_rand.nextFloat() >= reflectivityMean)
+      return new Object[]
+          {
+            Vector.ZERO, Vector.ZERO, 0f
+          };
+
+    float guided = directions.isTrained() ? MagicNumbers.GUIDE_FRACTION : 0f;
+    Vector outDir = guided > 0f && _rand.nextFloat() < guided
+                    ? directions.sample(_rand)
+                    : sp.getCosineDirection(inDirection);
+
+    Vector normal = sp.getItem().getNormal();
+    float cos = outDir.dot(normal);
+    if ((cos < 0f) ^ (inDirection.dot(normal) < 0f))
+      return new Object[] // picked a direction into the surface
+          {
+            Vector.ZERO, Vector.ZERO, 0f
+          };
+
+    float pdf = getGuidedPdf(sp, outDir, directions);
+    Vector color = sp.getItem().getReflectivity().mul(Math.abs(cos)
+                                                      / (float) Math.PI / pdf);
+    return new Object[]
+        {
+          outDir, color, pdf
+        };
+  }
+
+  /**
+   * @return The density, per unit of solid angle, of getGuidedDirection()
+   * picking outDir: the mixture of the learned and the cosine-weighted
+   * directions, times the chance of the ray not being absorbed.
+   */
+  private static float getGuidedPdf(SurfacePoint sp, Vector outDir,
+                                    PathGuide.DirectionTree directions)
+  {
+    float guided = directions.isTrained() ? MagicNumbers.GUIDE_FRACTION : 0f;
+    float cos = Math.abs(outDir.dot(sp.getItem().getNormal()));
+    return sp.getReflectivityMean() * (guided * (guided > 0f
+                                                 ? directions.getPdf(outDir)
+                                                 : 0f)
+                                       + (1f - guided) * cos / (float) Math.PI);
+  }
+
+  private Vector sampleEmitters(Vector rayDirection, SurfacePoint sp,
+                                PathGuide.DirectionTree directions)
   {
     Vector radiance;
     Vector emitterPos;
@@ -83,29 +262,86 @@ public class RayTracer
       // send shadow ray
       Triangle hitObject;
       Vector hitPos;
-      temp = _scene.getIntersection(sp.getPosition(), emitDir, sp.getItem());
+      if (_counters != null)
+        _counters.addShadowRay();
+      temp = _scene.getIntersection(sp.getPosition(), emitDir, sp.getItem(),
+          _counters);
 
       hitObject = (Triangle) temp[0];
       hitPos = (Vector) temp[1];
 
+      radiance = getEmitterContribution(rayDirection, sp, emitter, emitterPos,
+          emitDir, hitObject, directions);
+    }
+    else // no emitter found
+      radiance = Vector.ZERO;
+    return radiance;
+  }
 
+  /**
+   * The light an emitter sample reflects towards the eye, once its shadow
+   * ray has been traced.
+   * @param hitObject What the shadow ray hit, null if nothing
+   * @param directions The guide's directions at sp, null if not guiding.
+   * Under multiple importance sampling the reflected ray could have been
+   * picked from them as well.
+   */
+  Vector getEmitterContribution(Vector rayDirection, SurfacePoint sp,
+                                Triangle emitter, Vector emitterPos,
+                                Vector emitDir, Triangle hitObject,
+                                PathGuide.DirectionTree directions)
+  {
+    // if unshadowed, get inward emission value
+    Vector emissionIn;
+    SurfacePoint spTemp = new SurfacePoint(emitter, emitterPos);
 
-      // if unshadowed, get inward emission value
-      Vector emissionIn;
-      SurfacePoint spTemp = new SurfacePoint(emitter, emitterPos);
+    if ((hitObject == null) | (emitter == hitObject))
+      emissionIn = spTemp.getEmission(sp.getPosition(), emitDir.neg(), true);
+    else
+      emissionIn = Vector.ZERO;
 
-      if ((hitObject == null) | (emitter == hitObject))
-        emissionIn = spTemp.getEmission(sp.getPosition(), emitDir.neg(), true);
-      else
-        emissionIn = Vector.ZERO;
 
+    // get amount reflected by surface
+    Vector radiance = sp.getReflection(emitDir, emissionIn.mul(_scene.
+        getEmittersAmount()), rayDirection.neg());
 
-      // get amount reflected by surface
-      radiance = sp.getReflection(emitDir, emissionIn.mul(_scene.
-          getEmittersAmount()), rayDirection.neg());
-    }
-    else // no emitter found
-      radiance = Vector.ZERO;
+    if (_integrator.isMultipleImportance() && !radiance.isZero())
+      radiance = radiance.mul(_integrator.weight(getEmitterPdf(emitter,
+          emitterPos, sp.getPosition()), directions == null
+                                         ? sp.getDirectionPdf(emitDir)
+                                         : getGuidedPdf(sp, emitDir,
+          directions)));
     return radiance;
   }
+
+  /**
+   * The emission of a surface that a reflected ray hit, weighted against
+   * the chance of sampleEmitters() having found the same point.
+   */
+  Vector getWeightedEmission(Vector rayOrigin, Vector rayDirection,
+                             SurfacePoint sp, float directionPdf)
+  {
+    Vector emission = sp.getEmission(rayOrigin, rayDirection.neg(), false);
+    if (emission.isZero())
+      return emission;
+    float emitterPdf = getEmitterPdf(sp.getItem(), sp.getPosition(),
+        rayOrigin);
+    return emitterPdf == 0f ? emission : emission.mul(_integrator.weight(
+        directionPdf, emitterPdf));
+  }
+
+  /**
+   * @return The density, per unit of solid angle seen from fromPosition, of
+   * Scene.getEmitter() picking the point on the emitter.
+   */
+  private float getEmitterPdf(Triangle emitter, Vector emitterPosition,
+                              Vector fromPosition)
+  {
+    Vector ray = fromPosition.sub(emitterPosition);
+    float distance2 = ray.dot(ray);
+    float cos = ray.unitize().dot(emitter.getNormal());
+    if (cos <= 0f)
+      return 0f;
+    return _scene.getEmitterPdf(emitter) * distance2 / cos;
+  }
 }
@@ -0,0 +1,366 @@
+package minilight.rendering;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import minilight.datastructures.Image;
+
+/**
+ * Spreads a render over worker processes (TileWorker), on this host or
+ * others, and adds what they send back into the image being
+ * rendered.<br/><br/>
+ *
+ * The work is cut into units of one tile for a batch of frames, handed out
+ * a batch at a time. A worker leases one unit per connection and sends back
+ * the raw sums and sample counts of the tile. A lease that isn't returned
+ * within the lease time, or whose connection breaks, is handed out again,
+ * and whichever result for a unit comes first is the one added. The samples
+ * of a tile only depend on the seed, the frame and the tile (see
+ * FrameRenderer), so every unit adds exactly what it would in a render on
+ * one machine.<br/><br/>
+ *
+ * The protocol, with DataOutputStream's big-endian types. The worker starts
+ * with MAGIC, VERSION, the scene hash and the hash of its tile layout; the
+ * coordinator answers true and the seed, or false and a message, and hangs
+ * up. Then the worker sends the unit it has done (unit, first frame, end
+ * frame, then Image.writeRaw() of the tile) or -1 for none, and the
+ * coordinator answers with the next lease (unit, tile, first frame, end
+ * frame) or -1 once the render is done.
+ * @author Tom Eklöf
+ */
+public class TileCoordinator
+{
+
+  static final int MAGIC = 0x4c544c4d; // "MLTL"
+  static final int VERSION = 1;
+  private final FrameRenderer _tiles;
+  private final Image _image;
+  private final int _iterations;
+  private final int _batchFrames;
+  private final long _leaseMillis;
+  private final long _seed;
+  private final long _sceneHash;
+  private final int _numUnits;
+  private final BitSet _done = new BitSet();
+  private int _doneUnits = 0;
+  private int _nextUnit = 0; // units from here on were never leased
+  private final ArrayDeque<Integer> _returned = new ArrayDeque<Integer>();
+  // in the order they expire, as all leases are equally long
+  private final ArrayDeque<long[]> _leases = new ArrayDeque<long[]>();
+  private final long[] _deadlines; // of the latest lease of each unit
+  private int _workers = 0;
+  private ServerSocket _server;
+  private final ExecutorService _connections = Executors.newCachedThreadPool(
+      new ThreadFactory()
+      {
+
+        public Thread newThread(Runnable r)
+        {
+          Thread t = new Thread(r, "coordinator");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /**
+   * @param tiles Renderer of the image, for its tile layout
+   * @param batchFrames Frames in a unit
+   * @param leaseMillis How long a worker has for a unit
+   */
+  public TileCoordinator(FrameRenderer tiles, int iterations,
+                         int batchFrames, long leaseMillis, long seed,
+                         long sceneHash)
+  {
+    _tiles = tiles;
+    _image = tiles.getImage();
+    _iterations = iterations;
+    _batchFrames = batchFrames;
+    _leaseMillis = leaseMillis;
+    _seed = seed;
+    _sceneHash = sceneHash;
+    _numUnits = tiles.getNumTiles() * ((iterations + batchFrames - 1)
+                                       / batchFrames);
+    _deadlines = new long[_numUnits];
+  }
+
+  /**
+   * Starts taking worker connections on the given port.
+   */
+  public void listen(int port) throws IOException
+  {
+    _server = new ServerSocket(port);
+    _connections.execute(new Runnable()
+    {
+
+      public void run()
+      {
+        try
+        {
+          while (true)
+          {
+            final Socket socket = _server.accept();
+            _connections.execute(new Runnable()
+            {
+
+              public void run()
+              {
+                serve(socket);
+              }
+            });
+          }
+        }
+        catch (IOException ex)
+        {
+          // closed
+        }
+      }
+    });
+  }
+
+  /**
+   * Waits until all units are done, or the given time has passed.
+   * @return Whether all units are done.
+   */
+  public synchronized boolean awaitDone(long millis) throws
+      InterruptedException
+  {
+    long end = System.currentTimeMillis() + millis;
+    long now;
+    while (_doneUnits < _numUnits && (now = System.currentTimeMillis()) < end)
+      wait(end - now);
+    return _doneUnits == _numUnits;
+  }
+
+  /**
+   * @return A copy of the image with the units done so far.
+   */
+  public synchronized Image snapshot()
+  {
+    return _image.snapshot();
+  }
+
+  public synchronized int getDoneUnits()
+  {
+    return _doneUnits;
+  }
+
+  public int getNumUnits()
+  {
+    return _numUnits;
+  }
+
+  public synchronized int getWorkers()
+  {
+    return _workers;
+  }
+
+  /**
+   * Stops taking connections. Workers still connected get no more leases.
+   */
+  public void close()
+  {
+    try
+    {
+      _server.close();
+    }
+    catch (IOException ex)
+    {
+      // nothing to do
+    }
+    _connections.shutdownNow();
+  }
+
+  private void serve(Socket socket)
+  {
+    int leased = -1;
+    try
+    {
+      socket.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          socket.getOutputStream()));
+      if (in.readInt() != MAGIC || in.readInt() != VERSION)
+        return;
+      if (in.readLong() != _sceneHash || in.readLong() != layoutHash(_tiles))
+      {
+        out.writeBoolean(false);
+        out.writeUTF("The worker has another scene, image size, crop window "
+                     + "or tile size");
+        out.flush();
+        return;
+      }
+      out.writeBoolean(true);
+      out.writeLong(_seed);
+      out.flush();
+      synchronized (this)
+      {
+        ++_workers;
+      }
+
+      try
+      {
+        while (true)
+        {
+          int unit = in.readInt();
+          if (unit >= 0)
+          {
+            if (unit != leased)
+              throw new IOException("Result for a unit that wasn't leased");
+            int[] window = _tiles.getTileWindow(unit % _tiles.getNumTiles());
+            if (in.readInt() != firstFrame(unit)
+                || in.readInt() != endFrame(unit))
+              throw new IOException("Result for the wrong frames");
+            Image part = Image.readRaw(in);
+            if (part.getWidth() != window[2] || part.getHeight() != window[3])
+              throw new IOException("Result of the wrong size");
+            finish(unit, part, window);
+            leased = -1;
+          }
+
+          leased = lease();
+          out.writeInt(leased);
+          if (leased < 0)
+          {
+            out.flush();
+            return;
+          }
+          out.writeInt(leased % _tiles.getNumTiles());
+          out.writeInt(firstFrame(leased));
+          out.writeInt(endFrame(leased));
+          out.flush();
+        }
+      }
+      finally
+      {
+        synchronized (this)
+        {
+          --_workers;
+        }
+      }
+    }
+    catch (IOException ex)
+    {
+      // the worker went away, its lease is handed out again below
+    }
+    catch (InterruptedException ex)
+    {
+      // closed
+    }
+    finally
+    {
+      if (leased >= 0)
+        giveBack(leased);
+      try
+      {
+        socket.close();
+      }
+      catch (IOException ex)
+      {
+        // nothing to do
+      }
+    }
+  }
+
+  /**
+   * Picks a unit to lease: one given back, one never leased or one whose
+   * lease has expired, in that order. Waits if there's none.
+   * @return The unit, or -1 if all are done.
+   */
+  private synchronized int lease() throws InterruptedException
+  {
+    while (_doneUnits < _numUnits)
+    {
+      int unit = -1;
+      while (unit < 0 && !_returned.isEmpty())
+      {
+        unit = _returned.poll();
+        if (_done.get(unit))
+          unit = -1;
+      }
+      if (unit < 0 && _nextUnit < _numUnits)
+        unit = _nextUnit++;
+      long now = System.currentTimeMillis();
+      while (unit < 0 && !_leases.isEmpty())
+      {
+        long[] oldest = _leases.peek();
+        int u = (int) oldest[0];
+        if (_done.get(u) || _deadlines[u] != oldest[1])
+          _leases.poll(); // finished or leased again since
+        else if (oldest[1] <= now)
+        {
+          _leases.poll();
+          unit = u;
+        }
+        else
+          break;
+      }
+
+      if (unit >= 0)
+      {
+        _deadlines[unit] = now + _leaseMillis;
+        _leases.add(new long[]
+            {
+              unit, _deadlines[unit]
+            });
+        return unit;
+      }
+      // everything is leased: wait for a result, a worker leaving or a
+      // lease running out
+      wait(_leases.isEmpty() ? _leaseMillis : Math.max(1, _leases.peek()[1]
+                                                          - now));
+    }
+    return -1;
+  }
+
+  private int firstFrame(int unit)
+  {
+    return (unit / _tiles.getNumTiles()) * _batchFrames;
+  }
+
+  private int endFrame(int unit)
+  {
+    return Math.min(firstFrame(unit) + _batchFrames, _iterations);
+  }
+
+  private synchronized void finish(int unit, Image part, int[] window)
+  {
+    if (_done.get(unit))
+      return; // a late result of a unit that was leased again
+    _image.add(part, window[0], window[1]);
+    _done.set(unit);
+    ++_doneUnits;
+    notifyAll();
+  }
+
+  private synchronized void giveBack(int unit)
+  {
+    if (!_done.get(unit))
+    {
+      _returned.add(unit);
+      notifyAll();
+    }
+  }
+
+  /**
+   * Hashes the size of the image and the windows of the tiles, which the
+   * coordinator and the workers have to agree on.
+   */
+  static long layoutHash(FrameRenderer tiles)
+  {
+    long h = tiles.getImage().getWidth() * 31L + tiles.getImage().getHeight();
+    for (int t = 0; t < tiles.getNumTiles(); ++t)
+      for (int v : tiles.getTileWindow(t))
+        h = (h ^ v) * 0x100000001b3L;
+    return h;
+  }
+}
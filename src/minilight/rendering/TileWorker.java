@@ -0,0 +1,164 @@
+package minilight.rendering;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import minilight.datastructures.Image;
+import minilight.utils.MagicNumbers;
+
+/**
+ * Renders units leased from a TileCoordinator and sends the tiles back. Each
+ * thread of the renderer has a connection of its own, leases one unit at a
+ * time on it and renders into an image of its own.
+ * @author Tom Eklöf
+ */
+public class TileWorker
+{
+
+  private final FrameRenderer _renderer;
+  private final long _sceneHash;
+  private final AtomicInteger _units = new AtomicInteger();
+
+  /**
+   * @param renderer Renders the tiles. Its own image stays empty.
+   */
+  public TileWorker(FrameRenderer renderer, long sceneHash)
+  {
+    _renderer = renderer;
+    _sceneHash = sceneHash;
+  }
+
+  /**
+   * Connects to the coordinator and renders until it has no more work. The
+   * seed of the coordinator replaces MagicNumbers.RANDOM_SEED.
+   * @param threads Connections to make, at most the number of threads of the
+   * renderer
+   * @throws IOException If the coordinator can't be reached, turns the
+   * worker away or goes away.
+   */
+  public void run(String host, int port, int threads) throws IOException
+  {
+    final List<Connection> connections = new ArrayList<Connection>(threads);
+    try
+    {
+      for (int i = 0; i < threads; ++i)
+      {
+        Connection c = new Connection(new Socket(host, port));
+        connections.add(c);
+        c._out.writeInt(TileCoordinator.MAGIC);
+        c._out.writeInt(TileCoordinator.VERSION);
+        c._out.writeLong(_sceneHash);
+        c._out.writeLong(TileCoordinator.layoutHash(_renderer));
+        c._out.flush();
+        if (!c._in.readBoolean())
+          throw new IOException(c._in.readUTF());
+        MagicNumbers.RANDOM_SEED = c._in.readLong();
+      }
+      MagicNumbers.reseedRandom();
+
+      ExecutorService es = Executors.newFixedThreadPool(threads);
+      List<Callable<Void>> workers = new ArrayList<Callable<Void>>(threads);
+      for (int i = 0; i < threads; ++i)
+      {
+        final int thread = i;
+        workers.add(new Callable<Void>()
+        {
+
+          public Void call() throws IOException
+          {
+            work(connections.get(thread), thread);
+            return null;
+          }
+        });
+      }
+      try
+      {
+        for (Future<Void> f : es.invokeAll(workers))
+          f.get();
+      }
+      catch (InterruptedException ex)
+      {
+        throw new IOException("Interrupted", ex);
+      }
+      catch (ExecutionException ex)
+      {
+        if (ex.getCause() instanceof IOException)
+          throw (IOException) ex.getCause();
+        throw new IllegalStateException("Rendering failed", ex.getCause());
+      }
+      finally
+      {
+        es.shutdown();
+      }
+    }
+    finally
+    {
+      for (Connection c : connections)
+        c._socket.close();
+    }
+  }
+
+  private void work(Connection c, int thread) throws IOException
+  {
+    Image img = new Image(_renderer.getImage().getWidth(),
+        _renderer.getImage().getHeight());
+    c._out.writeInt(-1);
+    c._out.flush();
+    int unit;
+    while ((unit = c._in.readInt()) >= 0)
+    {
+      int tile = c._in.readInt();
+      int firstFrame = c._in.readInt();
+      int endFrame = c._in.readInt();
+      for (int frameNo = firstFrame; frameNo < endFrame; ++frameNo)
+        _renderer.renderTile(frameNo, tile, img, thread);
+
+      int[] window = _renderer.getTileWindow(tile);
+      Image part = img.crop(window[0], window[1], window[2], window[3]);
+      img.clear(window[0], window[1], window[2], window[3]);
+      c._out.writeInt(unit);
+      c._out.writeInt(firstFrame);
+      c._out.writeInt(endFrame);
+      part.writeRaw(c._out);
+      c._out.flush();
+      _units.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return How many units this worker has rendered.
+   */
+  public int getUnits()
+  {
+    return _units.get();
+  }
+
+  private static class Connection
+  {
+
+    private final Socket _socket;
+    private final DataInputStream _in;
+    private final DataOutputStream _out;
+
+    public Connection(Socket socket) throws IOException
+    {
+      _socket = socket;
+      socket.setTcpNoDelay(true); // a lease and a tile go back and forth
+      _in = new DataInputStream(new BufferedInputStream(
+          socket.getInputStream()));
+      _out = new DataOutputStream(new BufferedOutputStream(
+          socket.getOutputStream()));
+    }
+  }
+}
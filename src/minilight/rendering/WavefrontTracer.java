@@ -0,0 +1,276 @@
+package minilight.rendering;
+
+import java.util.Arrays;
+import minilight.datastructures.Features;
+import minilight.datastructures.Image;
+import minilight.scene.Camera;
+import minilight.scene.Scene;
+import minilight.scene.SurfacePoint;
+import minilight.scene.Triangle;
+import minilight.scene.Vector;
+import minilight.utils.Counters;
+import minilight.utils.MagicNumbers;
+
+/**
+ * Traces all the paths of a tile together, one bounce at a time, instead
+ * of one path after the other like RayTracer. After the eye rays, every
+ * round's bounce rays and shadow rays are collected and sorted by where
+ * they start (a Morton code of MORTON_BITS bits per axis over the scene's
+ * bounds) and then by which octant they go towards, so rays traced one
+ * after the other walk through the same parts of the octree and touch the
+ * same triangles while they're still in the cache.<br/><br/>
+ *
+ * Gives the same expected result as RayTracer with the same Integrator,
+ * but uses the random numbers in another order, so not the same image.
+ * The bigger the tiles, the more rays there are to sort together.
+ * @author Tom Eklöf
+ */
+public class WavefrontTracer
+{
+
+  public static final int MORTON_BITS = 10;
+  private static final int INDEX_BITS = 24;
+  private final Scene _scene;
+  private final Counters _counters;
+  private final Integrator _integrator;
+  private final RayTracer _rt; // weighs emitters the same way
+  private final float[] _bounds;
+  private final float _cellsPerUnit;
+
+  /**
+   * @param counters Statistics of the thread using this tracer, or null
+   */
+  public WavefrontTracer(Scene s, Counters counters, Integrator integrator)
+  {
+    _scene = s;
+    _counters = counters;
+    _integrator = integrator;
+    _rt = new RayTracer(s, counters, integrator);
+    _bounds = s.getOctree().getBounds();
+    _cellsPerUnit = (1 << MORTON_BITS) / s.getOctree().getSize();
+  }
+
+  /**
+   * Adds one sample to each pixel in the rectangle [x0, x1) x [y0, y1), like
+   * Camera.getTile().
+   */
+  public void traceTile(Camera c, Image img, int x0, int y0, int x1, int y1)
+  {
+    int w = img.getWidth();
+    int h = img.getHeight();
+    Vector eye = c.getCameraPosition();
+    Path[] paths = new Path[(x1 - x0) * (y1 - y0)];
+    if (paths.length > 1 << INDEX_BITS)
+      throw new IllegalArgumentException("Tile too big to sort: "
+                                         + paths.length + " pixels");
+    int n = 0;
+    for (int y = y0; y < y1; ++y)
+      for (int x = x0; x < x1; ++x)
+      {
+        float px = x + MagicNumbers.random.nextFloat();
+        float py = y + MagicNumbers.random.nextFloat();
+        paths[n++] = new Path(x, y, eye, c.getSampleDirection(px, py, w, h));
+      }
+
+    Path[] active = paths.clone();
+    Path[] shadows = new Path[paths.length];
+    boolean primary = true;
+    while (n > 0)
+    {
+      if (!primary) // eye rays are in scanline order already
+        sort(active, n, false);
+
+      int continuing = 0, shadowCount = 0;
+      for (int i = 0; i < n; ++i)
+      {
+        Path p = active[i];
+        if (intersect(p, primary))
+        {
+          if (p._emitter != null)
+            shadows[shadowCount++] = p;
+          if (p._direction != null)
+            active[continuing++] = p;
+        }
+      }
+
+      sort(shadows, shadowCount, true);
+      for (int i = 0; i < shadowCount; ++i)
+        traceShadow(shadows[i]);
+      n = continuing;
+      primary = false;
+    }
+
+    Features features = img.getFeatures();
+    for (Path p : paths)
+    {
+      img.addToPixel(p._x, p._y, p._radiance);
+      if (features != null)
+        features.add(p._x, p._y, p._firstItem, p._firstPosition, eye,
+            p._radiance);
+    }
+  }
+
+  /**
+   * Finds what the path's ray hits, adds its emission and picks the emitter
+   * sample and the next ray.
+   * @return Whether the ray hit anything.
+   */
+  private boolean intersect(Path p, boolean primary)
+  {
+    if (_counters != null)
+      if (primary)
+        _counters.addPrimaryRay();
+      else
+        _counters.addBounceRay();
+    Object[] temp = _scene.getIntersection(p._origin, p._direction,
+        p._lastHit, _counters);
+    Triangle item = (Triangle) temp[0];
+    Vector rayDirection = p._direction;
+    p._direction = null;
+    p._emitter = null;
+    if (item == null)
+    {
+      p._radiance = p._radiance.add(p._throughput.mul(_scene.
+          getDefaultEmission(rayDirection.neg())));
+      return false;
+    }
+
+    if (_counters != null)
+      _counters.addPathVertex();
+    SurfacePoint sp = new SurfacePoint(item, (Vector) temp[1]);
+    if (primary)
+    {
+      p._firstItem = item;
+      p._firstPosition = sp.getPosition();
+    }
+
+    Vector emission;
+    if (primary)
+      emission = sp.getEmission(p._origin, rayDirection.neg(), false);
+    else if (_integrator.isMultipleImportance())
+      emission = _rt.getWeightedEmission(p._origin, rayDirection, sp,
+          p._directionPdf);
+    else
+      emission = Vector.ZERO;
+    p._radiance = p._radiance.add(p._throughput.mul(emission));
+
+    temp = _scene.getEmitter();
+    if (temp[1] != null)
+    {
+      p._emitter = (Triangle) temp[1];
+      p._emitterPosition = (Vector) temp[0];
+      p._emitDirection = p._emitterPosition.sub(sp.getPosition()).unitize();
+      p._shadowPoint = sp;
+      p._shadowRayDirection = rayDirection;
+      p._shadowThroughput = p._throughput;
+    }
+
+    temp = sp.getNextDirection(rayDirection.neg());
+    Vector nextDirection = (Vector) temp[0];
+    if (!nextDirection.isZero())
+    {
+      p._throughput = p._throughput.mul((Vector) temp[1]);
+      p._origin = sp.getPosition();
+      p._direction = nextDirection;
+      p._lastHit = item;
+      p._directionPdf = sp.getDirectionPdf(nextDirection);
+    }
+    return true;
+  }
+
+  private void traceShadow(Path p)
+  {
+    if (_counters != null)
+      _counters.addShadowRay();
+    SurfacePoint sp = p._shadowPoint;
+    Object[] temp = _scene.getIntersection(sp.getPosition(),
+        p._emitDirection, sp.getItem(), _counters);
+    Vector light = _rt.getEmitterContribution(p._shadowRayDirection, sp,
+        p._emitter, p._emitterPosition, p._emitDirection, (Triangle) temp[0],
+        null);
+    p._radiance = p._radiance.add(p._shadowThroughput.mul(light));
+  }
+
+  /**
+   * Sorts the first n paths by the Morton code of their ray's origin, then
+   * the octant of its direction.
+   * @param shadow Sort the shadow rays instead of the path rays
+   */
+  private void sort(Path[] paths, int n, boolean shadow)
+  {
+    long[] keys = new long[n];
+    for (int i = 0; i < n; ++i)
+    {
+      Path p = paths[i];
+      Vector origin = shadow ? p._shadowPoint.getPosition() : p._origin;
+      Vector direction = shadow ? p._emitDirection : p._direction;
+      long key = morton(origin) << 3 | octant(direction);
+      keys[i] = key << INDEX_BITS | i;
+    }
+    Arrays.sort(keys);
+    Path[] sorted = new Path[n];
+    for (int i = 0; i < n; ++i)
+      sorted[i] = paths[(int) (keys[i] & ((1 << INDEX_BITS) - 1))];
+    System.arraycopy(sorted, 0, paths, 0, n);
+  }
+
+  private long morton(Vector position)
+  {
+    long code = 0;
+    for (int axis = 0; axis < 3; ++axis)
+    {
+      int cell = (int) ((position.get(axis) - _bounds[axis]) * _cellsPerUnit);
+      cell = Math.max(0, Math.min((1 << MORTON_BITS) - 1, cell));
+      code |= spread(cell) << axis;
+    }
+    return code;
+  }
+
+  /**
+   * Puts two zero bits between each of the lowest MORTON_BITS bits.
+   */
+  private static long spread(long v)
+  {
+    v = (v | (v << 16)) & 0x030000FFL;
+    v = (v | (v << 8)) & 0x0300F00FL;
+    v = (v | (v << 4)) & 0x030C30C3L;
+    v = (v | (v << 2)) & 0x09249249L;
+    return v;
+  }
+
+  private static int octant(Vector direction)
+  {
+    return (direction.x < 0f ? 1 : 0) | (direction.y < 0f ? 2 : 0)
+           | (direction.z < 0f ? 4 : 0);
+  }
+
+  /**
+   * The state of one path between rounds.
+   */
+  private static class Path
+  {
+
+    private final int _x, _y;
+    private Vector _radiance = Vector.ZERO;
+    private Vector _throughput = Vector.ONE;
+    // the next ray, null once the path has ended
+    private Vector _origin, _direction;
+    private Triangle _lastHit = null;
+    private float _directionPdf = 0f;
+    // the emitter sample waiting for its shadow ray, null if none
+    private Triangle _emitter = null;
+    private Vector _emitterPosition, _emitDirection;
+    private SurfacePoint _shadowPoint;
+    private Vector _shadowRayDirection, _shadowThroughput;
+    private Triangle _firstItem = null;
+    private Vector _firstPosition = null;
+
+    public Path(int x, int y, Vector origin, Vector direction)
+    {
+      _x = x;
+      _y = y;
+      _origin = origin;
+      _direction = direction;
+    }
+  }
+}
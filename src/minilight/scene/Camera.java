@@ -1,5 +1,6 @@
 package minilight.scene;
 
+import minilight.datastructures.Features;
 import minilight.datastructures.Image;
 import minilight.rendering.RayTracer;
 import static java.lang.Math.tan;
@@ -57,28 +58,93 @@ public class Camera
 
   public void getFrame(Scene scn, Image img, RayTracer rt)
   {
-    //RayTracer rt = new RayTracer(scn);  // TODO: use a shared RayTracer?
+    getTile(scn, img, rt, 0, 0, img.getWidth(), img.getHeight());
+  }
+
+  /**
+   * Traces one sample for each pixel in the rectangle [x0, x1) x [y0, y1),
+   * using the projection of the whole image.
+   */
+  public void getTile(Scene scn, Image img, RayTracer rt, int x0, int y0,
+                      int x1, int y1)
+  {
     int w = img.getWidth();
     int h = img.getHeight();
+    float halfAngle = (float) tan(_viewAngle * 0.5f);
+    Features features = img.getFeatures();
 
-    for (int y = 0; y < h; ++y)
-      for (int x = 0; x < w; ++x)
+    for (int y = y0; y < y1; ++y)
+      for (int x = x0; x < x1; ++x)
       {
-        float halfAngle = (float) tan(_viewAngle * 0.5f);
-        // image plane displacement vector coefficients
-        float xf = ((x + rand.nextFloat()) * 2f / w) - 1f;
-        float yf = ((y + rand.nextFloat()) * 2f / h) - 1f;
-        // image plane offset vector
-        Vector offset = _right.mul(xf).add(
-            _up.mul(yf).mul((float) h / (float) w));
-        // sample ray direction, stratified by pixels
-        Vector sampleDir = _viewDirection.add(offset.mul(halfAngle)).unitize();
-        Vector radiance = rt.getRadiance(_viewPosition, sampleDir, null);
-
+        float px = x + rand.nextFloat();
+        float py = y + rand.nextFloat();
+        Vector radiance = getSample(rt, px, py, w, h, halfAngle);
         img.addToPixel(x, y, radiance);
+        if (features != null)
+          features.add(x, y, rt.getFirstItem(), rt.getFirstPosition(),
+              _viewPosition, radiance);
       }
   }
 
+  /**
+   * Like getTile, but traces a single sample for each blockSize x blockSize
+   * block of the rectangle, through a random point of the block, and adds it
+   * to every pixel of the block. For quick, blocky previews.
+   */
+  public void getBlocks(Scene scn, Image img, RayTracer rt, int x0, int y0,
+                        int x1, int y1, int blockSize)
+  {
+    int w = img.getWidth();
+    int h = img.getHeight();
+    float halfAngle = (float) tan(_viewAngle * 0.5f);
+
+    for (int by = y0; by < y1; by += blockSize)
+      for (int bx = x0; bx < x1; bx += blockSize)
+      {
+        int bw = Math.min(blockSize, x1 - bx);
+        int bh = Math.min(blockSize, y1 - by);
+        float px = bx + rand.nextFloat() * bw;
+        float py = by + rand.nextFloat() * bh;
+        Vector radiance = getSample(rt, px, py, w, h, halfAngle);
+        for (int y = by; y < by + bh; ++y)
+          for (int x = bx; x < bx + bw; ++x)
+            img.addToPixel(x, y, radiance);
+      }
+  }
+
+  /**
+   * @return The radiance coming through the point (px, py) of the image
+   * plane, in pixels from the bottom left corner.
+   */
+  private Vector getSample(RayTracer rt, float px, float py, int w, int h,
+                           float halfAngle)
+  {
+    return rt.getRadiance(_viewPosition, getDirection(px, py, w, h,
+        halfAngle), null);
+  }
+
+  /**
+   * @return The direction of the eye ray through the point (px, py) of the
+   * image plane of a w x h image, in pixels from the bottom left corner.
+   */
+  public Vector getSampleDirection(float px, float py, int w, int h)
+  {
+    return getDirection(px, py, w, h, (float) tan(_viewAngle * 0.5f));
+  }
+
+  private Vector getDirection(float px, float py, int w, int h,
+                              float halfAngle)
+  {
+    // image plane displacement vector coefficients
+    float xf = (px * 2f / w) - 1f;
+    float yf = (py * 2f / h) - 1f;
+    // image plane offset vector
+    Vector offset = _right.mul(xf).add(
+        _up.mul(yf).mul((float) h / (float) w));
+    // sample ray direction, stratified by pixels
+    return _viewDirection.add(offset.mul(halfAngle)).unitize();
+  }
+
   public Vector getCameraPosition()
   {
     return _viewPosition;
@@ -0,0 +1,123 @@
+package minilight.scene;
+
+import java.util.Arrays;
+import static java.lang.Math.sqrt;
+
+/**
+ * A Triangle with all its numbers in fields of its own, on the heap.
+ * @author Tom Eklöf
+ */
+class HeapTriangle extends Triangle
+{
+
+  private final Vector[] _verts;
+  private final float[] _bound;
+  private final Vector _edge1, _edge2;
+  private final Vector _reflectivity;
+  private final Vector _emissivity;
+  private final Vector _normal;
+  private final Vector _tangent;
+  private final float _area;
+
+  /**
+   * Makes a new triangle from an array of 5 vectors.
+   * @param vv The array of vectors. The first 3 are the vertexes and the last 2 are
+   * the reflectivity and emissivity
+   */
+  HeapTriangle(Vector[] vv)
+  {
+
+    assert vv.length == 5 : "vv length was " + vv.length + ", needed 5";
+    _verts = Arrays.copyOf(vv, 3);
+
+    _edge1 = _verts[1].sub(_verts[0]);
+    _edge2 = _verts[2].sub(_verts[0]);
+
+
+    Vector pa2 = _edge1.cross(_verts[2].sub(_verts[1]));
+    _area = (float) sqrt(pa2.dot(pa2)) * 0.5f;
+
+    _bound = calculateBound(_verts);
+
+    /*
+     * Since Vector#clamp() returns a new vector anyhow there is no need to create
+     * one with new here
+     */
+    _reflectivity = vv[3].clamp(Vector.ZERO, Vector.ONE);
+    _emissivity = vv[4].clamp(Vector.ZERO, Vector.MAX);
+
+    _tangent = _edge1.unitize();
+    _normal = _tangent.cross(_verts[2].sub(_verts[1])).unitize();
+  }
+
+  @Override
+  public float getIntersection(Vector rayOrigin, Vector rayDirection)
+  {
+    final Vector v0 = _verts[0];
+    return intersect(rayOrigin, rayDirection, _edge1.x, _edge1.y, _edge1.z,
+        _edge2.x, _edge2.y, _edge2.z, v0.x, v0.y, v0.z);
+  }
+
+  ///////////
+  /// Here be getters. Yarr.
+  ///////////
+  @Override
+  public Vector[] getVerts()
+  {
+    return _verts;
+  }
+
+  @Override
+  public float[] getBound()
+  {
+    return _bound;
+  }
+
+  @Override
+  public float getBound(int i)
+  {
+    return _bound[i];
+  }
+
+  @Override
+  public Vector getEdge1()
+  {
+    return _edge1;
+  }
+
+  @Override
+  public Vector getEdge2()
+  {
+    return _edge2;
+  }
+
+  @Override
+  public Vector getReflectivity()
+  {
+    return _reflectivity;
+  }
+
+  @Override
+  public Vector getEmissivity()
+  {
+    return _emissivity;
+  }
+
+  @Override
+  public Vector getNormal()
+  {
+    return _normal;
+  }
+
+  @Override
+  public Vector getTangent()
+  {
+    return _tangent;
+  }
+
+  @Override
+  public float getArea()
+  {
+    return _area;
+  }
+}
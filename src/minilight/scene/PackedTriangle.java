@@ -0,0 +1,141 @@
+package minilight.scene;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A Triangle whose numbers are packed in a buffer of a TriangleStore,
+ * FLOATS per triangle. The getters make Vectors out of them when asked.
+ * @author Tom Eklöf
+ */
+class PackedTriangle extends Triangle
+{
+
+  // where each value is in the packed floats of a triangle, the ones
+  // getIntersection() needs first
+  private static final int EDGE1 = 0, EDGE2 = 3, V0 = 6, V1 = 9, V2 = 12,
+      NORMAL = 15, TANGENT = 18, REFLECTIVITY = 21, EMISSIVITY = 24,
+      BOUND = 27, AREA = 33;
+  static final int FLOATS = 34;
+  private final FloatBuffer _data;
+  private final int _base;
+
+  /**
+   * @param data Where the triangle was packed with pack()
+   * @param base Index of its first float in data
+   */
+  PackedTriangle(FloatBuffer data, int base)
+  {
+    _data = data;
+    _base = base;
+  }
+
+  /**
+   * Puts a triangle in data, FLOATS floats from base on.
+   */
+  static void pack(Triangle t, FloatBuffer data, int base)
+  {
+    Vector[] verts = t.getVerts();
+    put(data, base + V0, verts[0]);
+    put(data, base + V1, verts[1]);
+    put(data, base + V2, verts[2]);
+    put(data, base + EDGE1, t.getEdge1());
+    put(data, base + EDGE2, t.getEdge2());
+    put(data, base + NORMAL, t.getNormal());
+    put(data, base + TANGENT, t.getTangent());
+    put(data, base + REFLECTIVITY, t.getReflectivity());
+    put(data, base + EMISSIVITY, t.getEmissivity());
+    for (int i = 0; i < 6; ++i)
+      data.put(base + BOUND + i, t.getBound(i));
+    data.put(base + AREA, t.getArea());
+  }
+
+  private static void put(FloatBuffer data, int index, Vector v)
+  {
+    data.put(index, v.x);
+    data.put(index + 1, v.y);
+    data.put(index + 2, v.z);
+  }
+
+  private Vector get(int field)
+  {
+    int i = _base + field;
+    return new Vector(_data.get(i), _data.get(i + 1), _data.get(i + 2));
+  }
+
+  @Override
+  public float getIntersection(Vector rayOrigin, Vector rayDirection)
+  {
+    final FloatBuffer d = _data;
+    final int b = _base;
+    return intersect(rayOrigin, rayDirection, d.get(b), d.get(b + 1),
+        d.get(b + 2), d.get(b + EDGE2), d.get(b + (EDGE2 + 1)),
+        d.get(b + (EDGE2 + 2)), d.get(b + V0), d.get(b + (V0 + 1)),
+        d.get(b + (V0 + 2)));
+  }
+
+  @Override
+  public Vector[] getVerts()
+  {
+    return new Vector[]
+        {
+          get(V0), get(V1), get(V2)
+        };
+  }
+
+  @Override
+  public float[] getBound()
+  {
+    float[] bound = new float[6];
+    for (int i = 0; i < 6; ++i)
+      bound[i] = getBound(i);
+    return bound;
+  }
+
+  @Override
+  public float getBound(int i)
+  {
+    return _data.get(_base + BOUND + i);
+  }
+
+  @Override
+  public Vector getEdge1()
+  {
+    return get(EDGE1);
+  }
+
+  @Override
+  public Vector getEdge2()
+  {
+    return get(EDGE2);
+  }
+
+  @Override
+  public Vector getReflectivity()
+  {
+    return get(REFLECTIVITY);
+  }
+
+  @Override
+  public Vector getEmissivity()
+  {
+    return get(EMISSIVITY);
+  }
+
+  @Override
+  public Vector getNormal()
+  {
+    return get(NORMAL);
+  }
+
+  @Override
+  public Vector getTangent()
+  {
+    return get(TANGENT);
+  }
+
+  @Override
+  public float getArea()
+  {
+    return _data.get(_base + AREA);
+  }
+}
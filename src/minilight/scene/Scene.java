@@ -1,9 +1,14 @@
 package minilight.scene;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import minilight.datastructures.Spatial;
+import minilight.events.OctreeBuildEvent;
+import minilight.utils.Counters;
 import minilight.utils.MagicNumbers;
 
 /**
@@ -15,6 +20,8 @@ public class Scene
 
   private final List<Triangle> _triangles; //FIXME: change all lists into arrays
   private final List<Triangle> _emitters;
+  private final Set<Triangle> _emitterSet = Collections.newSetFromMap(
+      new IdentityHashMap<Triangle, Boolean>());
   private final Spatial _octree;
   private final Vector _skyEmission;
   private final Vector _groundReflection;
@@ -23,7 +30,10 @@ public class Scene
   final int MAX_EMITTERS = (1 << 16);
   private final Random _rand = MagicNumbers.random;
 
-  public Scene(List<Vector> vectors,
+  /**
+   * @param triangles The scene geometry, see MagicNumbers.getTriangles()
+   */
+  public Scene(List<Triangle> triangles,
                Vector cameraPosition,
                Vector skyEmission_t,
                Vector groundReflection_t)
@@ -33,9 +43,9 @@ public class Scene
     _groundReflection = _skyEmission.mul(groundReflection_t.clamp(Vector.ZERO,
         Vector.ONE));
 
-    _triangles = Triangle.makeTriangles(vectors);
+    _triangles = triangles;
 
-    _emitters = new LinkedList<Triangle>();
+    _emitters = new ArrayList<Triangle>();
 
     for (Triangle t : _triangles)
       if (!t.getEmissivity().isZero() && t.getArea() > 0f)
@@ -44,10 +54,18 @@ public class Scene
         if (_emitters.size() >= MAX_EMITTERS)
           break;
       }
+    _emitterSet.addAll(_emitters);
     System.out.println("Scene() emitters: " + _emitters.size());
     System.out.println("Scene() triangles " + _triangles.size());
 
-    _octree = new Spatial(cameraPosition, _triangles);
+    OctreeBuildEvent event = new OctreeBuildEvent();
+    event.begin();
+    _octree = new Spatial(cameraPosition, _triangles,
+        MagicNumbers.OCTREE_MAX_LEVELS, MagicNumbers.OCTREE_MAX_ITEMS,
+        MagicNumbers.geometry);
+    event.triangles = _triangles.size();
+    event.emitters = _emitters.size();
+    event.commit();
   }
 
   /**
@@ -56,9 +74,20 @@ public class Scene
    */
   public Object[] getIntersection(Vector rayOrigin, Vector rayDirection,
                                   Triangle lastHit)
+  {
+    return getIntersection(rayOrigin, rayDirection, lastHit, null);
+  }
+
+  /**
+   * @param counters Where to count octree nodes and triangles, or null
+   * @return An array with two elements: {Triangle, Vector}
+   */
+  public Object[] getIntersection(Vector rayOrigin, Vector rayDirection,
+                                  Triangle lastHit, Counters counters)
   {
     // XXX: modify getIntersection so it returns something sensible?
-    return _octree.getIntersection(rayOrigin, rayDirection, lastHit, null);
+    return _octree.getIntersection(rayOrigin, rayDirection, lastHit, null,
+        counters);
   }
 
   /**
@@ -84,6 +113,40 @@ public class Scene
           };
   }
 
+  /**
+   * @return The probability density, per unit of area, of getEmitter()
+   * returning a given point of the triangle: 0 if it never picks the
+   * triangle.
+   */
+  public float getEmitterPdf(Triangle t)
+  {
+    return _emitterSet.contains(t) ? 1f / (_emitters.size() * t.getArea())
+           : 0f;
+  }
+
+  /**
+   * Hashes all triangles and the background. Used to make sure a saved
+   * render belongs to this scene.
+   */
+  public long getHash()
+  {
+    long h = 0xcbf29ce484222325L; // FNV-1a offset basis
+    for (Triangle t : _triangles)
+    {
+      for (Vector v : t.getVerts())
+        h = v.hash(h);
+      h = t.getReflectivity().hash(h);
+      h = t.getEmissivity().hash(h);
+    }
+    h = _skyEmission.hash(h);
+    return _groundReflection.hash(h);
+  }
+
+  public Spatial getOctree()
+  {
+    return _octree;
+  }
+
   public int getEmittersAmount()
   {
     return _emitters.size();
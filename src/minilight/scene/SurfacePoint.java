@@ -17,12 +17,17 @@ public class SurfacePoint
 
   private final Triangle _item;
   private final Vector _position;
+  // read once, the Triangle makes a new Vector each time
+  private final Vector _normal;
+  private final Vector _reflectivity;
   private final Random _rand = MagicNumbers.random;
 
   public SurfacePoint(Triangle item, Vector pos)
   {
     _item = item;
     _position = pos;
+    _normal = item.getNormal();
+    _reflectivity = item.getReflectivity();
   }
 
   public Vector getEmission(Vector toPosition, Vector outDirection,
@@ -30,7 +35,7 @@ public class SurfacePoint
   {
     Vector ray = toPosition.sub(_position);
     float distance2 = ray.dot(ray);
-    float cosArea = outDirection.dot(_item.getNormal()) * _item.getArea();
+    float cosArea = outDirection.dot(_normal) * _item.getArea();
     if (cosArea <= 0) // Emit from front face of surface only
       return Vector.ZERO;
 
@@ -50,14 +55,14 @@ public class SurfacePoint
   public Vector getReflection(Vector inDirection, Vector inRadiance,
                               Vector outDirection)
   {
-    float inDot = inDirection.dot(_item.getNormal());
-    float outDot = outDirection.dot(_item.getNormal());
+    float inDot = inDirection.dot(_normal);
+    float outDot = outDirection.dot(_normal);
 
     if ((inDot < 0f) ^ (outDot < 0f))
       return Vector.ZERO;
 
 
-    return inRadiance.mul(_item.getReflectivity()).mul((float) (abs(inDot) / PI));
+    return inRadiance.mul(_reflectivity).mul((float) (abs(inDot) / PI));
   }
 
   /**
@@ -67,7 +72,7 @@ public class SurfacePoint
    */
   public Object[] getNextDirection(Vector inDirection)
   {
-    float reflectivityMean = _item.getReflectivity().dot(Vector.ONE) / 3f;
+    float reflectivityMean = _reflectivity.dot(Vector.ONE) / 3f;
 
     assert inDirection != null : "inDirection was null";
     Vector color, outDir;
@@ -75,23 +80,8 @@ public class SurfacePoint
 
     if (d < reflectivityMean)
     {
-      color = _item.getReflectivity().div(reflectivityMean);
-
-      float a2pr1 = (float) PI * 2f * _rand.nextFloat();
-      float sr2 = (float) sqrt(_rand.nextFloat());
-
-      float x = (float) cos(a2pr1) * sr2;
-      float y = (float) sin(a2pr1) * sr2;
-      float z = (float) sqrt(1f - (sr2 * sr2));
-
-      Vector normal = _item.getNormal();
-      Vector tangent = _item.getTangent();
-
-      if (normal.dot(inDirection) < 0f)
-        normal = normal.neg();
-
-      outDir = tangent.mul(x).add(normal.cross(tangent).mul(y)).add(
-          normal.mul(z));
+      color = _reflectivity.div(reflectivityMean);
+      outDir = getCosineDirection(inDirection);
     }
     else
     {
@@ -105,6 +95,45 @@ public class SurfacePoint
         };
   }
 
+  /**
+   * Picks a direction on the side of inDirection, cosine weighted.
+   */
+  public Vector getCosineDirection(Vector inDirection)
+  {
+    float a2pr1 = (float) PI * 2f * _rand.nextFloat();
+    float sr2 = (float) sqrt(_rand.nextFloat());
+
+    float x = (float) cos(a2pr1) * sr2;
+    float y = (float) sin(a2pr1) * sr2;
+    float z = (float) sqrt(1f - (sr2 * sr2));
+
+    Vector normal = _normal;
+    Vector tangent = _item.getTangent();
+
+    if (normal.dot(inDirection) < 0f)
+      normal = normal.neg();
+
+    return tangent.mul(x).add(normal.cross(tangent).mul(y)).add(
+        normal.mul(z));
+  }
+
+  public float getReflectivityMean()
+  {
+    return _reflectivity.dot(Vector.ONE) / 3f;
+  }
+
+  /**
+   * @return The probability density, per unit of solid angle, of
+   * getNextDirection() returning the given direction: cosine weighted, and
+   * scaled down by the chance of the ray being absorbed.
+   */
+  public float getDirectionPdf(Vector outDirection)
+  {
+    float reflectivityMean = _reflectivity.dot(Vector.ONE) / 3f;
+    return reflectivityMean * abs(outDirection.dot(_normal))
+           / (float) PI;
+  }
+
   public Triangle getItem()
   {
     return _item;
@@ -1,99 +1,67 @@
 package minilight.scene;
 
-import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import static java.lang.Math.sqrt;
 import static java.lang.Math.abs;
 import static java.lang.Math.min;
 import static java.lang.Math.max;
-import java.util.Random;
 import minilight.utils.MagicNumbers;
 
 /**
+ * A triangle of the scene. TriangleStore makes them: a HeapTriangle keeps
+ * its vertexes, edges, normal and materials in fields of its own, a
+ * PackedTriangle in a buffer that can be outside the heap. Only one kind is
+ * made in a run, so calls to them stay as cheap as to a final class.
  *
  * @author Tom Eklöf
  */
-public class Triangle
+public abstract class Triangle
 {
 
   public static final float TOLERANCE = 1f / 1024f;
-  private final Vector[] _verts;
-  private final float[] _bound;
-  private final Vector _edge1, _edge2;
-  private final Vector _reflectivity;
-  private final Vector _emissivity;
-  private final Vector _normal;
-  private final Vector _tangent;
-  private final float _area;
-  private final Random _rand = MagicNumbers.random;
 
   /**
-   * Makes a new triangle from an array of 5 vectors.
-   * @param vv The array of vectors. The first 3 are the vertexes and the last 2 are
-   * the reflectivity and emissivity
-   */
-  public Triangle(Vector[] vv)
-  {
-
-    assert vv.length == 5 : "vv length was " + vv.length + ", needed 5";
-    _verts = Arrays.copyOf(vv, 3);
-
-    _edge1 = _verts[1].sub(_verts[0]);
-    _edge2 = _verts[2].sub(_verts[0]);
-
-
-    Vector pa2 = _edge1.cross(_verts[2].sub(_verts[1]));
-    _area = (float) sqrt(pa2.dot(pa2)) * 0.5f;
-
-    _bound = calculateBound();
-
-    /*
-     * Since Vector#clamp() returns a new vector anyhow there is no need to create
-     * one with new here
-     */
-    _reflectivity = vv[3].clamp(Vector.ZERO, Vector.ONE);
-    _emissivity = vv[4].clamp(Vector.ZERO, Vector.MAX);
-
-    _tangent = _edge1.unitize();
-    _normal = _tangent.cross(_verts[2].sub(_verts[1])).unitize();
-  }
-
-  /**
-   *
+   * Makes triangles out of a list of vectors, 5 per triangle (see
+   * TriangleStore.add()).
    * @param vvc
+   * @param store Where to keep them
    */
-  public static List<Triangle> makeTriangles(List<Vector> vvc)
+  public static List<Triangle> makeTriangles(List<Vector> vvc,
+                                             TriangleStore store)
   {
     assert vvc.size() % 5 == 0 : "vvc.size() % 5 != 0 (" + vvc.size() + ")";
 
-    LinkedList<Vector> lv = new LinkedList<Vector>(vvc);
-    LinkedList<Triangle> result = new LinkedList<Triangle>();
+    ArrayList<Triangle> result = new ArrayList<Triangle>(vvc.size() / 5);
 
     Vector[] temp = new Vector[5];
-    for (int i = 0, j = 0; i < vvc.size(); ++i, j = i % 5)
+    int j = 0;
+    for (Vector v : vvc)
     {
-      temp[j] = lv.pollFirst();
-      if (j == 4)
-        result.add(new Triangle(temp));
+      temp[j++] = v;
+      if (j == 5)
+      {
+        result.add(store.add(temp));
+        j = 0;
+      }
     }
 
     return result;
   }
 
   @SuppressWarnings("empty-statement")
-  private float[] calculateBound()
+  static float[] calculateBound(Vector[] verts)
   {
     float[] btemp = new float[6];
     // Initialize the bound array
     float v;
-    for (int i = 6; i-- > 0; btemp[i] = _verts[2].get(i % 3));
+    for (int i = 6; i-- > 0; btemp[i] = verts[2].get(i % 3));
 
     for (int i = 0; i < 3; ++i)
       for (int j = 0, d = 0, m = 0; j < 6; ++j, d = j / 3, m = j % 3)
       {
-        v = _verts[i].get(m) + ((d != 0 ? 1f : -1f) * (abs(_verts[i].get(m))
-                                                       + 1f) * TOLERANCE);
+        v = verts[i].get(m) + ((d != 0 ? 1f : -1f) * (abs(verts[i].get(m))
+                                                      + 1f) * TOLERANCE);
         if (d == 0)
           btemp[j] = min(v, btemp[j]);
         else
@@ -108,22 +76,27 @@ public class Triangle
   ///////////
   /**
    * Calculates whether a ray intersects the triangle.
+   * @param rayOrigin
+   * @param rayDirection
+   *
+   * @return Either the hit distance as a float or <em>-1</em> if there was no hit.
+   */
+  public abstract float getIntersection(Vector rayOrigin, Vector rayDirection);
+
+  /**
+   * getIntersection() of a triangle with the given edges and first vertex.
    * <br/>Adapted from:
    * <cite>'Fast, Minimum Storage Ray-Triangle Intersection'
    * Moller, Trumbore;
    * Journal Of Graphics Tools, v2n1p21, 1997.
    * http://www.acm.org/jgt/papers/MollerTrumbore97/</cite>
-   * @param rayOrigin
-   * @param rayDirection
-   *
-   * @return Either the hit distance as a float or <em>-1</em> if there was no hit.
    */
-  public float getIntersection(Vector rayOrigin, Vector rayDirection)
+  static float intersect(Vector rayOrigin, Vector rayDirection, float e1x,
+                         float e1y, float e1z, float e2x, float e2y,
+                         float e2z, float v0x, float v0y, float v0z)
   {
 
     float rdx = rayDirection.x, rdy = rayDirection.y, rdz = rayDirection.z;
-    float e1x = _edge1.x, e1y = _edge1.y, e1z = _edge1.z;
-    float e2x = _edge2.x, e2y = _edge2.y, e2z = _edge2.z;
 
     // begin calculating determinant - also used to calculate U parameter
     // Vector pvec = rayDirection.cross(_edge2);
@@ -143,10 +116,9 @@ public class Triangle
 
     // distance from vertex 0 to ray origin
     // Vector tvec = rayOrigin.sub(_verts[0]);
-    final Vector v0 = _verts[0];
-    float tx = rayOrigin.x - v0.x,
-        ty = rayOrigin.y - v0.y,
-        tz = rayOrigin.z - v0.z;
+    float tx = rayOrigin.x - v0x,
+        ty = rayOrigin.y - v0y,
+        tz = rayOrigin.z - v0z;
 
     // u parameter calculation + bounds testing
     //float u = tvec.dot(pvec) * inv_det;
@@ -175,8 +147,8 @@ public class Triangle
 
   public Vector getSamplePoint()
   {
-    float sqr1 = (float) sqrt(_rand.nextFloat());
-    float r2 = _rand.nextFloat();
+    float sqr1 = (float) sqrt(MagicNumbers.random.nextFloat());
+    float r2 = MagicNumbers.random.nextFloat();
 
     // make barycentric coords
     float a = 1f - sqr1;
@@ -186,63 +158,44 @@ public class Triangle
     // calculate interpolation by using two edges as axes scaled by the
     // barycentrics
     //return edge1 * a + edge2 * b + verts[0];
-    return _edge1.mul(a).add(_edge2.mul(b)).add(_verts[0]);
+    return getEdge1().mul(a).add(getEdge2().mul(b)).add(getVerts()[0]);
 
   }
 
   ///////////
   /// Here be getters. Yarr.
   ///////////
-  public Vector[] getVerts()
-  {
-    return _verts;
-  }
+  public abstract Vector[] getVerts();
 
-  public float[] getBound()
-  {
-    return _bound;
-  }
+  /**
+   * @return {x0, y0, z0, x1, y1, z1}, a little bigger than the triangle.
+   */
+  public abstract float[] getBound();
 
-  public Vector getEdge1()
-  {
-    return _edge1;
-  }
+  /**
+   * @param i 0-5, see getBound()
+   */
+  public abstract float getBound(int i);
 
-  public Vector getEdge2()
-  {
-    return _edge2;
-  }
+  public abstract Vector getEdge1();
 
-  public Vector getReflectivity()
-  {
-    return _reflectivity;
-  }
+  public abstract Vector getEdge2();
 
-  public Vector getEmissivity()
-  {
-    return _emissivity;
-  }
+  public abstract Vector getReflectivity();
 
-  public Vector getNormal()
-  {
-    return _normal;
-  }
+  public abstract Vector getEmissivity();
 
-  public Vector getTangent()
-  {
-    return _tangent;
-  }
+  public abstract Vector getNormal();
 
-  public float getArea()
-  {
-    return _area;
-  }
+  public abstract Vector getTangent();
+
+  public abstract float getArea();
 
   @Override
   public String toString()
   {
     String bla = new String();
-    for (Vector v : _verts)
+    for (Vector v : getVerts())
       bla += v.toString();
     return bla;
 
@@ -0,0 +1,57 @@
+package minilight.scene;
+
+import java.nio.FloatBuffer;
+import minilight.datastructures.GeometryMemory;
+
+/**
+ * Makes the triangles of a scene. With heap memory they are HeapTriangles.
+ * With direct or mapped memory their vertices, edges, normal, materials and
+ * bound go into buffers of CHUNK triangles from the GeometryMemory, and
+ * the PackedTriangles handed out only know where their floats are: a
+ * triangle costs the heap one small object instead of a dozen.<br/><br/>
+ *
+ * Not thread safe; meant to be filled by whoever reads the scene.
+ * @author Tom Eklöf
+ */
+public class TriangleStore
+{
+
+  public static final int CHUNK = 4096;
+  private final GeometryMemory _memory;
+  private FloatBuffer _chunk = null;
+  private int _count = 0;
+
+  public TriangleStore(GeometryMemory memory)
+  {
+    _memory = memory;
+  }
+
+  /**
+   * Makes a new triangle.
+   * @param vv The 3 vertexes, the reflectivity and the emissivity
+   */
+  public Triangle add(Vector[] vv)
+  {
+    Triangle t = new HeapTriangle(vv);
+    if (!_memory.isDirect())
+    {
+      ++_count;
+      return t;
+    }
+    if (_count % CHUNK == 0)
+      _chunk = _memory.allocateFloats(CHUNK * PackedTriangle.FLOATS);
+    int base = (_count++ % CHUNK) * PackedTriangle.FLOATS;
+    PackedTriangle.pack(t, _chunk, base);
+    return new PackedTriangle(_chunk, base);
+  }
+
+  public int size()
+  {
+    return _count;
+  }
+
+  public GeometryMemory getMemory()
+  {
+    return _memory;
+  }
+}
@@ -237,6 +237,22 @@ public class Vector
     }
   }
 
+  /**
+   * Folds the coordinates into a running 64-bit FNV-1a hash.
+   * @param h The hash so far
+   * @return The updated hash
+   */
+  public long hash(long h)
+  {
+    for (int n = 0; n < 3; ++n)
+    {
+      int bits = Float.floatToIntBits(get(n));
+      for (int i = 0; i < 4; ++i, bits >>>= 8)
+        h = (h ^ (bits & 0xff)) * 0x100000001b3L;
+    }
+    return h;
+  }
+
   @Override
   public String toString()
   {
@@ -0,0 +1,148 @@
+package minilight.utils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Render statistics of one thread: rays, octree nodes visited, triangles
+ * tested, path lengths and samples. Each render thread owns one, so counting
+ * is a plain increment with no sharing between threads, and the totals are
+ * summed only when somebody asks.<br/><br/>
+ *
+ * Reads from other threads (RenderStats, the --stats log line) are not
+ * synchronized and may lag the rendering threads a little. Between frames
+ * the counts of a FrameRenderer are exact.
+ * @author Tom Eklöf
+ */
+public class Counters
+{
+
+  private static final List<Counters> _all = new CopyOnWriteArrayList<Counters>();
+  private long _primaryRays = 0;
+  private long _bounceRays = 0;
+  private long _shadowRays = 0;
+  private long _nodesVisited = 0;
+  private long _trianglesTested = 0;
+  private long _pathVertices = 0;
+  private long _samples = 0;
+
+  /**
+   * A new set of counters, included in total().
+   */
+  public static Counters create()
+  {
+    Counters c = new Counters();
+    _all.add(c);
+    return c;
+  }
+
+  /**
+   * @return The sum of every Counters ever created.
+   */
+  public static Counters total()
+  {
+    return sum(_all);
+  }
+
+  public static Counters sum(Iterable<Counters> counters)
+  {
+    Counters s = new Counters();
+    for (Counters c : counters)
+    {
+      s._primaryRays += c._primaryRays;
+      s._bounceRays += c._bounceRays;
+      s._shadowRays += c._shadowRays;
+      s._nodesVisited += c._nodesVisited;
+      s._trianglesTested += c._trianglesTested;
+      s._pathVertices += c._pathVertices;
+      s._samples += c._samples;
+    }
+    return s;
+  }
+
+  public void addPrimaryRay()
+  {
+    ++_primaryRays;
+  }
+
+  public void addBounceRay()
+  {
+    ++_bounceRays;
+  }
+
+  public void addShadowRay()
+  {
+    ++_shadowRays;
+  }
+
+  public void addNodeVisited()
+  {
+    ++_nodesVisited;
+  }
+
+  public void addTriangleTested()
+  {
+    ++_trianglesTested;
+  }
+
+  /**
+   * A path hit a surface.
+   */
+  public void addPathVertex()
+  {
+    ++_pathVertices;
+  }
+
+  public void addSamples(long n)
+  {
+    _samples += n;
+  }
+
+  public long getPrimaryRays()
+  {
+    return _primaryRays;
+  }
+
+  public long getBounceRays()
+  {
+    return _bounceRays;
+  }
+
+  public long getShadowRays()
+  {
+    return _shadowRays;
+  }
+
+  public long getRays()
+  {
+    return _primaryRays + _bounceRays + _shadowRays;
+  }
+
+  public long getNodesVisited()
+  {
+    return _nodesVisited;
+  }
+
+  public long getTrianglesTested()
+  {
+    return _trianglesTested;
+  }
+
+  public long getPathVertices()
+  {
+    return _pathVertices;
+  }
+
+  public long getSamples()
+  {
+    return _samples;
+  }
+
+  /**
+   * @return Average number of surfaces a path from the camera hits.
+   */
+  public double getMeanPathLength()
+  {
+    return _primaryRays == 0 ? 0 : (double) _pathVertices / _primaryRays;
+  }
+}
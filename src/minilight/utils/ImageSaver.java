@@ -0,0 +1,197 @@
+package minilight.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import minilight.datastructures.Checkpoint;
+import minilight.datastructures.Denoiser;
+import minilight.datastructures.Image;
+import minilight.events.CheckpointEvent;
+import minilight.events.ImageSaveEvent;
+
+/**
+ * Background encoder stage. The rendering thread hands over an image
+ * snapshot and carries on; tone mapping and file writing happen on a
+ * separate thread.<br/><br/>
+ *
+ * Only the newest snapshot is kept: if the encoder is still busy when
+ * another one arrives, the older one is never written. Images and
+ * checkpoints are queued separately. Images that carry Features are run
+ * through the Denoiser first. How long each takes is recorded in
+ * LatencyHistogram.SAVES, CHECKPOINTS and DENOISES.
+ * @author Tom Eklöf
+ */
+public class ImageSaver
+{
+
+  private final AtomicReference<Job> _pending = new AtomicReference<Job>();
+  private final AtomicReference<Checkpoint> _pendingCheckpoint =
+                                            new AtomicReference<Checkpoint>();
+  private String _checkpointFileName;
+  private final ExecutorService _encoder = Executors.newSingleThreadExecutor(
+      new ThreadFactory()
+      {
+
+        public Thread newThread(Runnable r)
+        {
+          Thread t = new Thread(r, "image-encoder");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+  private final Runnable _drain = new Runnable()
+  {
+
+    public void run()
+    {
+      Job j = _pending.getAndSet(null);
+      if (j != null)
+      {
+        long startTime = System.nanoTime();
+        j.encode();
+        LatencyHistogram.SAVES.recordSince(startTime);
+      }
+
+      Checkpoint c = _pendingCheckpoint.getAndSet(null);
+      if (c != null)
+        try
+        {
+          CheckpointEvent event = new CheckpointEvent();
+          event.begin();
+          long startTime = System.nanoTime();
+          c.write(_checkpointFileName);
+          LatencyHistogram.CHECKPOINTS.recordSince(startTime);
+          if (event.shouldCommit())
+          {
+            event.file = _checkpointFileName;
+            event.frames = c.getFrames();
+            event.bytes = new File(_checkpointFileName).length();
+            event.commit();
+          }
+        }
+        catch (IOException ex)
+        {
+          System.out.println("Error writing checkpoint file ("
+                             + ex.getMessage() + ")");
+        }
+    }
+  };
+
+  /**
+   * Queues a snapshot for saving. Never blocks.
+   * @param snapshot An image that nobody writes to anymore, see
+   * Image.snapshot()
+   * @param fileName
+   * @param asPNG
+   */
+  public void save(Image snapshot, String fileName, boolean asPNG)
+  {
+    _pending.set(new Job(snapshot, fileName, asPNG,
+        MagicNumbers.HDR_FILENAME));
+    _encoder.execute(_drain);
+  }
+
+  /**
+   * Queues a checkpoint for writing. Never blocks.
+   * @param checkpoint Must hold an image snapshot, not the image being
+   * rendered into.
+   * @param fileName
+   */
+  public void checkpoint(Checkpoint checkpoint, String fileName)
+  {
+    _checkpointFileName = fileName;
+    _pendingCheckpoint.set(checkpoint);
+    _encoder.execute(_drain);
+  }
+
+  /**
+   * Writes whatever is still queued and stops the encoder thread.
+   */
+  public void close()
+  {
+    _encoder.shutdown();
+    try
+    {
+      while (!_encoder.awaitTermination(1, TimeUnit.MINUTES))
+        System.out.println("Still waiting for the image encoder...");
+    }
+    catch (InterruptedException ex)
+    {
+      System.out.println("Interrupted while waiting for the image encoder");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static class Job
+  {
+
+    private final Image _image;
+    private final String _fileName;
+    private final boolean _asPNG;
+    private final String _hdrFileName;
+
+    public Job(Image image, String fileName, boolean asPNG,
+               String hdrFileName)
+    {
+      _image = image;
+      _fileName = fileName;
+      _asPNG = asPNG;
+      _hdrFileName = hdrFileName;
+    }
+
+    public void encode()
+    {
+      Image image = _image;
+      if (image.getFeatures() != null)
+      {
+        long startTime = System.nanoTime();
+        image = Denoiser.denoise(image);
+        LatencyHistogram.DENOISES.recordSince(startTime);
+      }
+
+      ImageSaveEvent event = new ImageSaveEvent();
+      event.begin();
+      try
+      {
+        image.saveImage(_fileName, _asPNG);
+        commit(event, _fileName, _asPNG ? "PNG" : "PPM");
+      }
+      catch (IOException ex)
+      {
+        System.out.println("Error saving image file (" + ex.getMessage()
+                           + ")");
+      }
+
+      if (_hdrFileName != null)
+        try
+        {
+          event = new ImageSaveEvent();
+          event.begin();
+          image.savePFM(_hdrFileName);
+          commit(event, _hdrFileName, "PFM");
+        }
+        catch (IOException ex)
+        {
+          System.out.println("Error saving HDR file (" + ex.getMessage()
+                             + ")");
+        }
+    }
+
+    private void commit(ImageSaveEvent event, String fileName, String format)
+    {
+      if (event.shouldCommit())
+      {
+        event.file = fileName;
+        event.format = format;
+        event.width = _image.getWidth();
+        event.height = _image.getHeight();
+        event.bytes = new File(fileName).length();
+        event.commit();
+      }
+    }
+  }
+}
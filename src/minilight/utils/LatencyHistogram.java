@@ -0,0 +1,194 @@
+package minilight.utils;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds with a fixed relative precision,
+ * in the style of HdrHistogram: values below 2^SUB_BITS get a bucket each,
+ * above that every power of two is split into 2^(SUB_BITS-1) buckets, so any
+ * recorded value is off by at most 1/2^(SUB_BITS-1) (0.8%) while the
+ * histogram covers everything a long can hold in under 60 kilobytes.
+ * Recording is a few atomic increments and safe from any thread.<br/><br/>
+ *
+ * The renderer keeps one for frames, tiles, image saves, checkpoint
+ * writes and denoising.
+ * @author Tom Eklöf
+ */
+public class LatencyHistogram
+{
+
+  public static final LatencyHistogram FRAMES = new LatencyHistogram("frame");
+  public static final LatencyHistogram TILES = new LatencyHistogram("tile");
+  public static final LatencyHistogram SAVES = new LatencyHistogram("save");
+  public static final LatencyHistogram CHECKPOINTS =
+                                       new LatencyHistogram("checkpoint");
+  public static final LatencyHistogram DENOISES =
+                                       new LatencyHistogram("denoise");
+  private static final LatencyHistogram[] ALL =
+  {
+    FRAMES, TILES, SAVES, CHECKPOINTS, DENOISES
+  };
+  private static final int SUB_BITS = 8;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int HALF_COUNT = SUB_COUNT / 2;
+  private static final double[] PERCENTILES =
+  {
+    50, 90, 99, 99.9
+  };
+  private final String _name;
+  private final AtomicLongArray _counts = new AtomicLongArray(SUB_COUNT
+                                                              + (64 - SUB_BITS)
+                                                                * HALF_COUNT);
+  private final AtomicLong _count = new AtomicLong();
+  private final AtomicLong _sum = new AtomicLong();
+  private final AtomicLong _min = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicLong _max = new AtomicLong(0);
+
+  public LatencyHistogram(String name)
+  {
+    _name = name;
+  }
+
+  /**
+   * @param nanos A duration, negative values count as 0
+   */
+  public void record(long nanos)
+  {
+    if (nanos < 0)
+      nanos = 0;
+    _counts.incrementAndGet(index(nanos));
+    _count.incrementAndGet();
+    _sum.addAndGet(nanos);
+
+    long m;
+    while (nanos < (m = _min.get()) && !_min.compareAndSet(m, nanos))
+      ;
+    while (nanos > (m = _max.get()) && !_max.compareAndSet(m, nanos))
+      ;
+  }
+
+  /**
+   * Records the time since startNanos, a value of System.nanoTime().
+   */
+  public void recordSince(long startNanos)
+  {
+    record(System.nanoTime() - startNanos);
+  }
+
+  private static int index(long value)
+  {
+    if (value < SUB_COUNT)
+      return (int) value;
+    int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    // the top SUB_BITS bits of value, the highest of which is always set
+    int top = (int) (value >>> shift);
+    return SUB_COUNT + (shift - 1) * HALF_COUNT + (top - HALF_COUNT);
+  }
+
+  /**
+   * The largest value that lands in the same bucket as the values of the
+   * given bucket.
+   */
+  private static long highestValue(int index)
+  {
+    if (index < SUB_COUNT)
+      return index;
+    int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+    long top = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+    return ((top + 1) << shift) - 1;
+  }
+
+  public long getCount()
+  {
+    return _count.get();
+  }
+
+  public long getMax()
+  {
+    return _max.get();
+  }
+
+  public long getMin()
+  {
+    long min = _min.get();
+    return min == Long.MAX_VALUE ? 0 : min;
+  }
+
+  public double getMean()
+  {
+    long count = _count.get();
+    return count == 0 ? 0 : (double) _sum.get() / count;
+  }
+
+  /**
+   * @param percentile 0-100
+   * @return A value that at least the given percentage of the recorded
+   * values are less than or equal to (within the precision of the
+   * histogram), 0 if nothing is recorded.
+   */
+  public long getValueAtPercentile(double percentile)
+  {
+    long count = _count.get();
+    if (count == 0)
+      return 0;
+    long wanted = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < _counts.length(); ++i)
+    {
+      seen += _counts.get(i);
+      if (seen >= wanted)
+        return Math.min(highestValue(i), getMax());
+    }
+    return getMax();
+  }
+
+  public void reset()
+  {
+    for (int i = 0; i < _counts.length(); ++i)
+      _counts.set(i, 0);
+    _count.set(0);
+    _sum.set(0);
+    _min.set(Long.MAX_VALUE);
+    _max.set(0);
+  }
+
+  /**
+   * One line: name, count, mean, percentiles and max in milliseconds.
+   */
+  public String format()
+  {
+    StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+        "%-10s %8d %9.3f", _name, getCount(), getMean() / 1e6));
+    for (double p : PERCENTILES)
+      sb.append(String.format(Locale.ROOT, " %9.3f", getValueAtPercentile(p)
+                                                     / 1e6));
+    sb.append(String.format(Locale.ROOT, " %9.3f", getMax() / 1e6));
+    return sb.toString();
+  }
+
+  /**
+   * A table of all the renderer's histograms that have something in them.
+   */
+  public static String report()
+  {
+    StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+        "%-10s %8s %9s", "Latency ms", "count", "mean"));
+    for (double p : PERCENTILES)
+      sb.append(String.format(Locale.ROOT, " %9s", "p" + (p == (int) p
+                                                          ? String.valueOf(
+          (int) p) : String.valueOf(p))));
+    sb.append(String.format(Locale.ROOT, " %9s", "max"));
+    for (LatencyHistogram h : ALL)
+      if (h.getCount() > 0)
+        sb.append(String.format("%n")).append(h.format());
+    return sb.toString();
+  }
+
+  public static void resetAll()
+  {
+    for (LatencyHistogram h : ALL)
+      h.reset();
+  }
+}
@@ -1,13 +1,21 @@
 package minilight.utils;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Random;
 import joptsimple.OptionException;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
+import minilight.datastructures.GeometryMemory;
+import minilight.datastructures.Spatial;
+import minilight.rendering.Integrator;
+import minilight.scene.Triangle;
+import minilight.scene.TriangleStore;
 import minilight.scene.Vector;
+import static java.util.Arrays.asList;
 
 /**
  *
@@ -18,13 +26,54 @@ public class MagicNumbers
 
   public static long RANDOM_SEED = 42;
   public static boolean PARALLEL = false;
-  public final static Random random = new Random(RANDOM_SEED);
+  public final static Random random = new SampleRandom(RANDOM_SEED);
   public static int SAVE_PERIOD = 360; // in seconds
   public static int NUM_THREADS = 4;
   public static String FILENAME;
   public static String IMAGE_FILENAME;
   public static float DISPLAY_LUMINANCE_MAX = 200.0f; // guess of average screen maximum brightness
+  public static boolean SAVE_AS_PNG = false;
+  public static int TILE_SIZE = 32; // in pixels
+  public static String CHECKPOINT_FILENAME = null;
+  public static String HDR_FILENAME = null;
+  public static String PREVIEW_TARGET = null;
+  public static float PREVIEW_FPS = 2f;
+  public static boolean RESUME = false;
+  public static String SHARED_FILM = null; // null: render alone
+  public static int COORDINATOR_PORT = 0; // 0: not coordinating workers
+  public static String WORKER_HOST = null; // null: not a worker
+  public static int WORKER_PORT = 0;
+  public static int LEASE_FRAMES = 8;
+  public static int LEASE_TIME = 60; // in seconds
   public static ModelReader mr = null;
+  // where the triangles and the octree are kept, see --offheap
+  public static GeometryMemory geometry = GeometryMemory.HEAP;
+  public static List<String> MESH_FILENAMES = new ArrayList<String>();
+  public static boolean BENCHMARK = false;
+  public static String BENCHMARK_REPORT = null; // null: to the console
+  public static int BENCHMARK_WARMUP = 5; // in seconds
+  public static int BENCHMARK_MEASURE = 10; // in seconds
+  public static List<String> MODEL_FILENAMES = new ArrayList<String>();
+  public static boolean COUNTERS = true;
+  public static String CONVERGENCE_REPORT = null;
+  public static int ITERATION_OVERRIDE = 0; // 0: as in the model file
+  public static int OCTREE_MAX_LEVELS = Spatial.DEFAULT_MAX_LEVELS;
+  public static int OCTREE_MAX_ITEMS = Spatial.DEFAULT_MAX_ITEMS;
+  public static boolean OCTREE_REPORT = false;
+  public static Integrator INTEGRATOR = Integrator.CLASSIC;
+  public static int CACHE_DEPTH = -1; // bounces, -1 for no radiance cache
+  public static float CACHE_CELL_SIZE = 0; // 0 for CACHE_CELLS_ACROSS
+  public static final int CACHE_CELLS_ACROSS = 128; // the whole scene
+  public static boolean GUIDING = false;
+  public static final float GUIDE_FRACTION = 0.5f; // the rest cosine lobe
+  public static boolean DENOISE = false;
+  public static boolean WAVEFRONT = false;
+  public static int COARSE_BUDGET = 0; // in milliseconds, 0 for none
+  public static int[] CROP = null; // x, y, width, height from the top left
+  public static boolean CROP_FULL_SIZE = false;
+  public static String REFERENCE_DIR = "references";
+  public static int REFERENCE_SAMPLES = 1024;
+  public static int STATS_PERIOD = 0; // in seconds, 0: no stats lines
 
   public static void initMagicNumbers(String[] args)
   {
@@ -32,33 +81,206 @@ public class MagicNumbers
 
     OptionParser parsa = new OptionParser();
 
-    OptionSpec<Long> seedOpt = parsa.accepts("seed", "Set random seed").
+    OptionSpec<String> meshOpt = parsa.accepts("mesh",
+        "Add the triangles of an OBJ or PLY mesh to the scene. Can be given "
+        + "several times").
+        withRequiredArg().ofType(String.class);
+
+    OptionSpec<Long> seedOpt = parsa.acceptsAll(asList("s", "seed"),
+        "Set random seed").
         withRequiredArg().ofType(Long.class).defaultsTo(42l);
 
-    OptionSpec<Integer> threadsOpt = parsa.accepts("threads",
+    OptionSpec<Integer> threadsOpt = parsa.acceptsAll(asList("t", "threads"),
         "Number of threads to use. 1 naturally means no multithreading, and "
         + "this is the default").
         withRequiredArg().ofType(Integer.class).defaultsTo(1);
 
-    OptionSpec<Integer> periodOpt = parsa.accepts("period",
-        "Set the save period (in seconds). Currently only works in single-"
-        + "threaded mode.").
+    OptionSpec<Integer> periodOpt = parsa.acceptsAll(asList("p", "period"),
+        "Set the save period (in seconds). Checkpoints are written on the "
+        + "same period.").
         withRequiredArg().ofType(Integer.class).defaultsTo(360);
 
-    OptionSpec<String> imageOpt = parsa.accepts("image",
+    OptionSpec<String> imageOpt = parsa.acceptsAll(asList("i", "image"),
         "Alternate name for image file. (Defaults to model name + \".ppm\")").
         withRequiredArg().ofType(String.class);
 
-    OptionSpec<Float> luminanceOpt = parsa.accepts("luminance",
+    OptionSpec<Void> pngOpt = parsa.accepts("png",
+        "Save images as PNG instead of PPM. Also implied by an --image name "
+        + "ending in \".png\"");
+
+    OptionSpec<String> hdrOpt = parsa.accepts("hdr",
+        "Also save the untone-mapped image as a PFM file with this name. Use "
+        + "minilight.Tonemap to make PPM/PNG images out of it").
+        withRequiredArg().ofType(String.class);
+
+    OptionSpec<String> streamOpt = parsa.accepts("stream",
+        "Stream the image to a viewer while rendering, through a named pipe "
+        + "or \"tcp:port\" on localhost").
+        withRequiredArg().ofType(String.class);
+
+    OptionSpec<Float> fpsOpt = parsa.accepts("fps",
+        "Maximum frame rate of the --stream preview").
+        withRequiredArg().ofType(Float.class).defaultsTo(2f);
+
+    OptionSpec<Float> luminanceOpt = parsa.acceptsAll(asList("l", "luminance"),
         "Sets the display luminance to be used when saving images. The lower "
         + "the number, the brighter the image.").
         withRequiredArg().ofType(Float.class).defaultsTo(200f);
 
-    OptionSpec<Integer> iterationOpt = parsa.accepts("override",
+    OptionSpec<Integer> iterationOpt = parsa.acceptsAll(asList("o", "override"),
         "Overrides the number of iterations specified in the model file.").
         withRequiredArg().ofType(Integer.class);
 
-    OptionSpec<Void> helpOpt = parsa.accepts("help", "Prints usage information");
+    OptionSpec<String> checkpointOpt = parsa.accepts("checkpoint",
+        "Write the raw render state to this file every save period, so the "
+        + "render can be resumed if it gets killed").
+        withRequiredArg().ofType(String.class);
+
+    OptionSpec<Void> resumeOpt = parsa.accepts("resume",
+        "Continue rendering from the checkpoint file if it exists. (Defaults "
+        + "to model name + \".checkpoint\" unless --checkpoint is given)");
+
+    OptionSpec<String> sharedFilmOpt = parsa.accepts("sharedfilm",
+        "Render together with other processes on this host that are given "
+        + "the same file: each claims frames and adds them into the file, "
+        + "which is mapped into memory. minilight.Tonemap can read it as a "
+        + "checkpoint at any time").
+        withRequiredArg().ofType(String.class);
+
+    OptionSpec<Integer> coordinatorOpt = parsa.accepts("coordinator",
+        "Don't render, but hand out tiles to --worker processes connecting "
+        + "to this port and save what they send back").
+        withRequiredArg().ofType(Integer.class);
+
+    OptionSpec<String> workerOpt = parsa.accepts("worker",
+        "Render tiles for the --coordinator at host:port, with the same "
+        + "model file and options, one connection per thread").
+        withRequiredArg().ofType(String.class);
+
+    OptionSpec<Integer> leaseFramesOpt = parsa.accepts("leaseframes",
+        "Frames of a tile a --worker renders in one go").
+        withRequiredArg().ofType(Integer.class).defaultsTo(8);
+
+    OptionSpec<Integer> leaseTimeOpt = parsa.accepts("leasetime",
+        "Seconds a --worker has for a tile before the coordinator gives it "
+        + "to another worker").
+        withRequiredArg().ofType(Integer.class).defaultsTo(60);
+
+    OptionSpec<Void> benchmarkOpt = parsa.accepts("benchmark",
+        "Measure the rendering speed of each model file given instead of "
+        + "making images, for 1 up to --threads threads (default: all "
+        + "processors). Results are printed as JSON");
+
+    OptionSpec<String> reportOpt = parsa.accepts("report",
+        "Write the --benchmark results to this file instead of the console").
+        withRequiredArg().ofType(String.class);
+
+    OptionSpec<Integer> warmupOpt = parsa.accepts("warmup",
+        "Seconds to render before measuring in --benchmark mode").
+        withRequiredArg().ofType(Integer.class).defaultsTo(5);
+
+    OptionSpec<Integer> measureOpt = parsa.accepts("measure",
+        "Seconds to measure for in --benchmark mode").
+        withRequiredArg().ofType(Integer.class).defaultsTo(10);
+
+    OptionSpec<String> convergenceOpt = parsa.accepts("convergence",
+        "Measure the error against a reference image of each model file given "
+        + "after 1, 2, 4... frames instead of making images, and write it "
+        + "to this CSV file").
+        withRequiredArg().ofType(String.class);
+
+    OptionSpec<String> referencesOpt = parsa.accepts("references",
+        "Directory of the --convergence reference images. Missing ones are "
+        + "rendered").
+        withRequiredArg().ofType(String.class).defaultsTo("references");
+
+    OptionSpec<Integer> refSamplesOpt = parsa.accepts("refsamples",
+        "Samples per pixel of the --convergence reference images").
+        withRequiredArg().ofType(Integer.class).defaultsTo(1024);
+
+    OptionSpec<Integer> maxLevelsOpt = parsa.accepts("maxlevels",
+        "Maximum depth of the octree").
+        withRequiredArg().ofType(Integer.class).defaultsTo(
+        Spatial.DEFAULT_MAX_LEVELS);
+
+    OptionSpec<Integer> maxItemsOpt = parsa.accepts("maxitems",
+        "Octree cells with more triangles than this are split").
+        withRequiredArg().ofType(Integer.class).defaultsTo(
+        Spatial.DEFAULT_MAX_ITEMS);
+
+    OptionSpec<Void> offHeapOpt = parsa.accepts("offheap",
+        "Keep the triangles and the octree in direct buffers outside the "
+        + "Java heap, so big scenes don't slow the garbage collector down");
+
+    OptionSpec<String> geometryFileOpt = parsa.accepts("geometryfile",
+        "Like --offheap, but in this file mapped into memory. It's scratch "
+        + "space, emptied at the start and deleted at exit").
+        withRequiredArg().ofType(String.class);
+
+    OptionSpec<Void> octreeOpt = parsa.accepts("octree",
+        "Print statistics of the octree after building it, and the average "
+        + "number of nodes visited and triangles tested per ray over some "
+        + "sample paths");
+
+    OptionSpec<String> integratorOpt = parsa.accepts("integrator",
+        "How emitters found by reflected rays count: classic (only through "
+        + "emitter samples), balance or power (multiple importance sampling "
+        + "with that heuristic, less noise)").
+        withRequiredArg().ofType(String.class).defaultsTo("classic");
+
+    OptionSpec<Integer> cacheOpt = parsa.accepts("cache",
+        "Let paths end in a radiance cache after this many bounces, for "
+        + "fewer rays at the price of some blur (default: no cache)").
+        withRequiredArg().ofType(Integer.class);
+
+    OptionSpec<Float> cacheCellOpt = parsa.accepts("cachecell",
+        "Size of the radiance cache's cells (default: 1/"
+        + CACHE_CELLS_ACROSS + " of the scene)").
+        withRequiredArg().ofType(Float.class);
+
+    OptionSpec<Void> guideOpt = parsa.accepts("guide",
+        "Learn where light comes from while rendering and send bounces "
+        + "there more often");
+
+    OptionSpec<Void> wavefrontOpt = parsa.accepts("wavefront",
+        "Trace each tile's paths together a bounce at a time, sorting the "
+        + "rays by where they start and which way they go. Bigger tiles "
+        + "sort more rays together. Not with --cache or --guide");
+
+    OptionSpec<Void> denoiseOpt = parsa.accepts("denoise",
+        "Collect the albedo, normal and distance of what the eye rays hit "
+        + "and filter the noise out of the saved images with them");
+
+    OptionSpec<Integer> coarseOpt = parsa.accepts("coarse",
+        "Before the first frame, save and stream blocky previews that get "
+        + "finer for about this many milliseconds. They are thrown away "
+        + "afterwards; 0 for none").
+        withRequiredArg().ofType(Integer.class).defaultsTo(0);
+
+    OptionSpec<String> cropOpt = parsa.accepts("crop",
+        "Render only the window x,y,width,height (pixels, from the top left "
+        + "corner) and save just that").
+        withRequiredArg().ofType(String.class);
+
+    OptionSpec<Void> fullSizeOpt = parsa.accepts("fullsize",
+        "With --crop, save an image of the full size with everything outside "
+        + "the window black");
+
+    OptionSpec<Void> noCountersOpt = parsa.accepts("nocounters",
+        "Don't count rays, octree nodes visited, triangles tested and so on. "
+        + "(The counts are available over JMX as " + RenderStats.OBJECT_NAME
+        + ")");
+
+    OptionSpec<Integer> statsOpt = parsa.accepts("stats",
+        "Print ray and sample rates every this many seconds").
+        withRequiredArg().ofType(Integer.class);
+
+    OptionSpec<Integer> tileOpt = parsa.accepts("tile",
+        "Size of the square tiles the threads render, in pixels").
+        withRequiredArg().ofType(Integer.class).defaultsTo(32);
+
+    OptionSpec<Void> helpOpt = parsa.acceptsAll(asList("h", "help"),
+        "Prints usage information");
 
     OptionSet opts = null;
 
@@ -97,27 +319,179 @@ public class MagicNumbers
 
 
 
-    FILENAME = opts.nonOptionArguments().get(0);
+    MODEL_FILENAMES = opts.nonOptionArguments();
+    FILENAME = MODEL_FILENAMES.get(0);
+    SAVE_AS_PNG = opts.has(pngOpt)
+                  || (opts.has(imageOpt)
+                      && opts.valueOf(imageOpt).toLowerCase().endsWith(".png"));
     IMAGE_FILENAME = opts.has(imageOpt) ? (String) opts.valueOf(imageOpt)
-                     : FILENAME + ".ppm";
+                     : FILENAME + (SAVE_AS_PNG ? ".png" : ".ppm");
 
     System.out.println("Model file: " + FILENAME);
     System.out.println("Image file: " + IMAGE_FILENAME);
+    if (opts.has(hdrOpt))
+    {
+      HDR_FILENAME = opts.valueOf(hdrOpt);
+      System.out.println("HDR file: " + HDR_FILENAME);
+    }
 
     RANDOM_SEED = seedOpt.value(opts);
     System.out.println("Random seed set to " + RANDOM_SEED);
     reseedRandom();
 
-    NUM_THREADS = threadsOpt.value(opts);
+    BENCHMARK = opts.has(benchmarkOpt);
+    if (BENCHMARK)
+    {
+      BENCHMARK_REPORT = opts.valueOf(reportOpt);
+      BENCHMARK_WARMUP = warmupOpt.value(opts);
+      BENCHMARK_MEASURE = measureOpt.value(opts);
+      System.out.println("Benchmark: " + BENCHMARK_WARMUP + " s warm-up, "
+                         + BENCHMARK_MEASURE + " s measurement per model and "
+                         + "thread count");
+    }
+
+    if (opts.has(convergenceOpt))
+    {
+      CONVERGENCE_REPORT = opts.valueOf(convergenceOpt);
+      REFERENCE_DIR = referencesOpt.value(opts);
+      REFERENCE_SAMPLES = refSamplesOpt.value(opts);
+      System.out.println("Convergence report: " + CONVERGENCE_REPORT
+                         + ", references in " + REFERENCE_DIR + " with "
+                         + REFERENCE_SAMPLES + " samples per pixel");
+    }
+
+    OCTREE_MAX_LEVELS = maxLevelsOpt.value(opts);
+    OCTREE_MAX_ITEMS = maxItemsOpt.value(opts);
+    if (OCTREE_MAX_LEVELS < 1 || OCTREE_MAX_ITEMS < 0)
+    {
+      System.out.println("Invalid options: octree depth must be at least 1 "
+                         + "and items per cell at least 0");
+      System.exit(2);
+    }
+    OCTREE_REPORT = opts.has(octreeOpt);
+
+    if (opts.has(geometryFileOpt))
+      try
+      {
+        geometry = GeometryMemory.mapped(opts.valueOf(geometryFileOpt));
+      }
+      catch (IOException ex)
+      {
+        System.out.println("Error opening geometry file (" + ex.getMessage()
+                           + ")");
+        System.exit(2);
+      }
+    else if (opts.has(offHeapOpt))
+      geometry = GeometryMemory.direct();
+    if (geometry != GeometryMemory.HEAP)
+      System.out.println("Geometry: " + geometry);
+
+    // the benchmark needs the ray counts
+    COUNTERS = BENCHMARK || !opts.has(noCountersOpt);
+    if (COUNTERS && opts.has(statsOpt))
+    {
+      STATS_PERIOD = statsOpt.value(opts);
+      System.out.println("Statistics period: " + STATS_PERIOD);
+    }
+    else if (!COUNTERS)
+      System.out.println("Counters: off");
+
+    NUM_THREADS = BENCHMARK && !opts.has(threadsOpt)
+                  ? Runtime.getRuntime().availableProcessors()
+                  : threadsOpt.value(opts);
     PARALLEL = NUM_THREADS > 1 ? true : false;
     System.out.println("Multithreading: " + PARALLEL);
 
+    TILE_SIZE = tileOpt.value(opts);
+    if (TILE_SIZE < 1)
+    {
+      System.out.println("Invalid options: tile size must be at least 1");
+      System.exit(2);
+    }
+    System.out.println("Tile size: " + TILE_SIZE);
+
     SAVE_PERIOD = periodOpt.value(opts);
     System.out.println("Save period: " + SAVE_PERIOD);
 
     DISPLAY_LUMINANCE_MAX = luminanceOpt.value(opts);
     System.out.println("Display luminance: " + DISPLAY_LUMINANCE_MAX);
 
+    if (opts.has(streamOpt))
+    {
+      PREVIEW_TARGET = opts.valueOf(streamOpt);
+      PREVIEW_FPS = fpsOpt.value(opts);
+      System.out.println("Preview stream: " + PREVIEW_TARGET + " at most "
+                         + PREVIEW_FPS + " frames per second");
+    }
+
+    RESUME = opts.has(resumeOpt);
+    CHECKPOINT_FILENAME = opts.has(checkpointOpt) ? opts.valueOf(checkpointOpt)
+                          : RESUME ? FILENAME + ".checkpoint" : null;
+    if (CHECKPOINT_FILENAME != null)
+      System.out.println("Checkpoint file: " + CHECKPOINT_FILENAME);
+    if (opts.has(sharedFilmOpt))
+    {
+      if (CHECKPOINT_FILENAME != null || opts.has(denoiseOpt))
+      {
+        System.out.println("Invalid options: --sharedfilm doesn't work with "
+                           + "--checkpoint, --resume or --denoise");
+        System.exit(2);
+      }
+      SHARED_FILM = opts.valueOf(sharedFilmOpt);
+      System.out.println("Shared film: " + SHARED_FILM);
+    }
+    if (opts.has(coordinatorOpt) || opts.has(workerOpt))
+    {
+      if (opts.has(coordinatorOpt) && opts.has(workerOpt))
+      {
+        System.out.println("Invalid options: a process can't be both "
+                           + "--coordinator and --worker");
+        System.exit(2);
+      }
+      if (SHARED_FILM != null || CHECKPOINT_FILENAME != null
+          || opts.has(denoiseOpt) || opts.has(guideOpt))
+      {
+        System.out.println("Invalid options: --coordinator and --worker don't "
+                           + "work with --sharedfilm, --checkpoint, --resume, "
+                           + "--denoise or --guide");
+        System.exit(2);
+      }
+      LEASE_FRAMES = leaseFramesOpt.value(opts);
+      LEASE_TIME = leaseTimeOpt.value(opts);
+      if (LEASE_FRAMES < 1 || LEASE_TIME < 1)
+      {
+        System.out.println("Invalid options: --leaseframes and --leasetime "
+                           + "must be at least 1");
+        System.exit(2);
+      }
+    }
+    if (opts.has(coordinatorOpt))
+    {
+      COORDINATOR_PORT = coordinatorOpt.value(opts);
+      System.out.println("Coordinating workers on port " + COORDINATOR_PORT
+                         + ", " + LEASE_FRAMES + " frames per lease");
+    }
+    if (opts.has(workerOpt))
+    {
+      String address = opts.valueOf(workerOpt);
+      int colon = address.lastIndexOf(':');
+      try
+      {
+        WORKER_PORT = Integer.parseInt(address.substring(colon + 1));
+      }
+      catch (NumberFormatException ex)
+      {
+        colon = -1;
+      }
+      if (colon < 1)
+      {
+        System.out.println("Invalid options: --worker needs host:port");
+        System.exit(2);
+      }
+      WORKER_HOST = address.substring(0, colon);
+      System.out.println("Worker of " + WORKER_HOST + ":" + WORKER_PORT);
+    }
+
 
 
 
@@ -131,15 +505,93 @@ public class MagicNumbers
       System.exit(2);
     }
 
+    try
+    {
+      INTEGRATOR = Integrator.valueOf(integratorOpt.value(opts).toUpperCase(
+          Locale.ROOT));
+    }
+    catch (IllegalArgumentException ex)
+    {
+      System.out.println("Invalid options: unknown integrator "
+                         + integratorOpt.value(opts));
+      System.exit(2);
+    }
+    if (opts.has(cacheOpt))
+    {
+      CACHE_DEPTH = cacheOpt.value(opts);
+      if (CACHE_DEPTH < 0)
+      {
+        System.out.println("Invalid options: --cache needs 0 or more bounces");
+        System.exit(2);
+      }
+    }
+    if (opts.has(cacheCellOpt))
+      CACHE_CELL_SIZE = cacheCellOpt.value(opts);
+    GUIDING = opts.has(guideOpt);
+    WAVEFRONT = opts.has(wavefrontOpt);
+    if (WAVEFRONT && (CACHE_DEPTH >= 0 || GUIDING))
+    {
+      System.out.println("Invalid options: --wavefront doesn't work with "
+                         + "--cache or --guide");
+      System.exit(2);
+    }
+    DENOISE = opts.has(denoiseOpt);
+    COARSE_BUDGET = coarseOpt.value(opts);
+
+    if (opts.has(cropOpt))
+    {
+      CROP = parseCrop(opts.valueOf(cropOpt));
+      CROP_FULL_SIZE = opts.has(fullSizeOpt);
+      System.out.println("Crop window: " + CROP[2] + "x" + CROP[3] + " at "
+                         + CROP[0] + "," + CROP[1]
+                         + (CROP_FULL_SIZE ? ", saved full size" : ""));
+    }
+
+    MESH_FILENAMES = meshOpt.values(opts);
+    for (String mesh : MESH_FILENAMES)
+      System.out.println("Mesh file: " + mesh);
+
     if (opts.has(iterationOpt))
     {
-      mr.setNumIterations(opts.valueOf(iterationOpt));
+      ITERATION_OVERRIDE = opts.valueOf(iterationOpt);
+      mr.setNumIterations(ITERATION_OVERRIDE);
       System.out.println("Overrode number of iterations to: "
                          + getNumIterations());
     }
 
   }
 
+  /**
+   * Parses and checks the --crop window against the image size.
+   */
+  private static int[] parseCrop(String s)
+  {
+    String[] parts = s.split(",");
+    int[] crop = new int[4];
+    try
+    {
+      if (parts.length != 4)
+        throw new NumberFormatException();
+      for (int i = 0; i < 4; ++i)
+        crop[i] = Integer.parseInt(parts[i].trim());
+    }
+    catch (NumberFormatException ex)
+    {
+      System.out.println("Invalid options: --crop needs x,y,width,height");
+      System.exit(2);
+    }
+    if (crop[0] < 0 || crop[1] < 0 || crop[2] < 1 || crop[3] < 1
+        || crop[0] + crop[2] > getPictureWidth()
+        || crop[1] + crop[3] > getPictureHeight())
+    {
+      System.out.println("Invalid options: crop window " + s
+                         + " is not inside the " + getPictureWidth() + "x"
+                         + getPictureHeight() + " image");
+      System.exit(2);
+    }
+    return crop;
+  }
+
   public static int getPictureWidth()
   {
     return mr.getPictureWidth();
@@ -185,6 +637,32 @@ public class MagicNumbers
     return mr.getModelVectors();
   }
 
+  /**
+   * Makes the triangles of the model file and reads the ones in the mesh
+   * files, packed in a new TriangleStore in the geometry memory.
+   */
+  public static List<Triangle> getTriangles()
+  {
+    TriangleStore store = new TriangleStore(geometry);
+    List<Triangle> triangles = Triangle.makeTriangles(getModelVectors(),
+        store);
+    for (String mesh : MESH_FILENAMES)
+      try
+      {
+        long startTime = System.currentTimeMillis();
+        List<Triangle> meshTriangles = MeshReader.read(mesh, store);
+        triangles.addAll(meshTriangles);
+        System.out.format("Read %d triangles from %s in %d ms%n",
+            meshTriangles.size(), mesh, System.currentTimeMillis() - startTime);
+      }
+      catch (IOException ex)
+      {
+        System.out.println("Error reading mesh file (" + ex + ")");
+        System.exit(2);
+      }
+    return triangles;
+  }
+
   public static void reseedRandom()
   {
     random.setSeed(RANDOM_SEED);
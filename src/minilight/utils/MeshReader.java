@@ -0,0 +1,519 @@
+package minilight.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import minilight.events.SceneParseEvent;
+import minilight.scene.Triangle;
+import minilight.scene.TriangleStore;
+import minilight.scene.Vector;
+
+/**
+ * Reads triangle meshes from Wavefront OBJ and PLY files.<br/><br/>
+ *
+ * The files are read as streams: the only thing kept in memory besides the
+ * triangles is a packed float array of vertex positions (and colours, for
+ * PLY), since faces refer to vertices by index.<br/><br/>
+ *
+ * OBJ: v and f statements (polygons are split into fans), plus Kd
+ * (reflectivity) and Ke (emissivity) of materials from mtllib/usemtl. PLY:
+ * ascii and binary, vertex x/y/z and optional red/green/blue, which become
+ * the reflectivity of the faces: integer colours scaled from the range of
+ * their type, float ones taken as they are. Everything else is skipped.
+ * @author Tom Eklöf
+ */
+public class MeshReader
+{
+
+  public static final Vector DEFAULT_REFLECTIVITY = new Vector(0.7f, 0.7f,
+      0.7f);
+
+  /**
+   * Reads a mesh, guessing the format from the file extension.
+   * @param fileName
+   * @param store Where to pack the triangles
+   * @return
+   * @throws IOException
+   */
+  public static List<Triangle> read(String fileName, TriangleStore store)
+      throws IOException
+  {
+    SceneParseEvent event = new SceneParseEvent();
+    event.begin();
+    String lower = fileName.toLowerCase();
+    List<Triangle> triangles;
+    if (lower.endsWith(".obj"))
+      triangles = readOBJ(fileName, store);
+    else if (lower.endsWith(".ply"))
+      triangles = readPLY(fileName, store);
+    else
+      throw new IOException("Unknown mesh format: " + fileName);
+
+    if (event.shouldCommit())
+    {
+      event.file = fileName;
+      event.format = lower.endsWith(".obj") ? "OBJ" : "PLY";
+      event.triangles = triangles.size();
+      event.bytes = new File(fileName).length();
+      event.commit();
+    }
+    return triangles;
+  }
+
+  /**
+   * A growable array of floats, so vertices don't each need a Vector.
+   */
+  private static class FloatList
+  {
+
+    private float[] _data = new float[3 * 1024];
+    private int _size = 0;
+
+    public void add(float f)
+    {
+      if (_size == _data.length)
+        _data = Arrays.copyOf(_data, _size * 2);
+      _data[_size++] = f;
+    }
+
+    public float get(int i)
+    {
+      return _data[i];
+    }
+
+    public int size()
+    {
+      return _size;
+    }
+  }
+
+  ///////////
+  /// OBJ
+  ///////////
+  public static List<Triangle> readOBJ(String fileName, TriangleStore store)
+      throws IOException
+  {
+    File file = new File(fileName);
+    BufferedReader in = new BufferedReader(new FileReader(file), 1 << 16);
+    FloatList verts = new FloatList();
+    List<Triangle> triangles = new ArrayList<Triangle>();
+    Map<String, Vector[]> materials = new HashMap<String, Vector[]>();
+    Vector[] material =
+    {
+      DEFAULT_REFLECTIVITY, Vector.ZERO
+    };
+    int lineNo = 0;
+
+    try
+    {
+      String line;
+      int[] face = new int[16];
+      while ((line = in.readLine()) != null)
+      {
+        ++lineNo;
+        String[] tokens = line.trim().split("\\s+");
+        String keyword = tokens[0];
+
+        if (keyword.equals("v"))
+        {
+          verts.add(Float.parseFloat(tokens[1]));
+          verts.add(Float.parseFloat(tokens[2]));
+          verts.add(Float.parseFloat(tokens[3]));
+        }
+        else if (keyword.equals("f"))
+        {
+          int n = tokens.length - 1;
+          if (face.length < n)
+            face = new int[n];
+          for (int i = 0; i < n; ++i)
+          {
+            String t = tokens[i + 1];
+            int slash = t.indexOf('/');
+            int index = Integer.parseInt(slash < 0 ? t : t.substring(0, slash));
+            // negative indices count back from the latest vertex
+            face[i] = index < 0 ? verts.size() / 3 + index : index - 1;
+            if (face[i] < 0 || face[i] >= verts.size() / 3)
+              throw new IOException("vertex index " + index + " out of range");
+          }
+          for (int i = 2; i < n; ++i)
+            triangles.add(makeTriangle(store, verts, face[0], face[i - 1],
+                face[i], material[0], material[1]));
+        }
+        else if (keyword.equals("usemtl"))
+        {
+          material = materials.get(tokens[1]);
+          if (material == null)
+          {
+            System.out.println("Unknown material " + tokens[1] + " in "
+                               + fileName + ", using default");
+            material = new Vector[]
+                {
+                  DEFAULT_REFLECTIVITY, Vector.ZERO
+                };
+          }
+        }
+        else if (keyword.equals("mtllib"))
+          for (int i = 1; i < tokens.length; ++i)
+            readMTL(new File(file.getAbsoluteFile().getParentFile(),
+                tokens[i]), materials);
+        // everything else (normals, texture coordinates, groups...) is ignored
+      }
+    }
+    catch (RuntimeException ex)
+    {
+      throw new IOException("Malformed OBJ file " + fileName + " at line "
+                            + lineNo, ex);
+    }
+    finally
+    {
+      in.close();
+    }
+    return triangles;
+  }
+
+  /**
+   * Reads the materials from an OBJ material library: {reflectivity,
+   * emissivity} for each material name.
+   */
+  private static void readMTL(File file, Map<String, Vector[]> materials)
+      throws IOException
+  {
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    try
+    {
+      String line;
+      Vector[] current = null;
+      while ((line = in.readLine()) != null)
+      {
+        String[] tokens = line.trim().split("\\s+");
+        if (tokens[0].equals("newmtl"))
+        {
+          current = new Vector[]
+              {
+                DEFAULT_REFLECTIVITY, Vector.ZERO
+              };
+          materials.put(tokens[1], current);
+        }
+        else if (current != null && tokens[0].equals("Kd"))
+          current[0] = parseColour(tokens);
+        else if (current != null && tokens[0].equals("Ke"))
+          current[1] = parseColour(tokens);
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  private static Vector parseColour(String[] tokens)
+  {
+    float r = Float.parseFloat(tokens[1]);
+    // a single value means grey
+    if (tokens.length < 4)
+      return new Vector(r, r, r);
+    return new Vector(r, Float.parseFloat(tokens[2]),
+        Float.parseFloat(tokens[3]));
+  }
+
+  private static Triangle makeTriangle(TriangleStore store, FloatList verts,
+                                       int a, int b, int c,
+                                       Vector reflectivity,
+                                       Vector emissivity)
+  {
+    return store.add(new Vector[]
+        {
+          new Vector(verts.get(a * 3), verts.get(a * 3 + 1),
+          verts.get(a * 3 + 2)),
+          new Vector(verts.get(b * 3), verts.get(b * 3 + 1),
+          verts.get(b * 3 + 2)),
+          new Vector(verts.get(c * 3), verts.get(c * 3 + 1),
+          verts.get(c * 3 + 2)),
+          reflectivity, emissivity
+        });
+  }
+
+  ///////////
+  /// PLY
+  ///////////
+  /**
+   * One property of a PLY element. List properties have a count type too.
+   */
+  private static class Property
+  {
+
+    private final String _name;
+    private final String _type;
+    private final String _countType; // null if not a list
+
+    public Property(String name, String type, String countType)
+    {
+      _name = name;
+      _type = type;
+      _countType = countType;
+    }
+
+    /**
+     * @return What a colour of this type is multiplied by to get 0..1.
+     * Integer colours go up to the largest value of their type, float ones
+     * are 0..1 already.
+     */
+    public float getColourScale()
+    {
+      if (_type.equals("char") || _type.equals("int8"))
+        return 1f / Byte.MAX_VALUE;
+      if (_type.equals("uchar") || _type.equals("uint8"))
+        return 1f / 0xff;
+      if (_type.equals("short") || _type.equals("int16"))
+        return 1f / Short.MAX_VALUE;
+      if (_type.equals("ushort") || _type.equals("uint16"))
+        return 1f / 0xffff;
+      if (_type.equals("int") || _type.equals("int32"))
+        return 1f / Integer.MAX_VALUE;
+      if (_type.equals("uint") || _type.equals("uint32"))
+        return 1f / 0xffffffffL;
+      return 1f;
+    }
+  }
+
+  private static class Element
+  {
+
+    private final String _name;
+    private final int _count;
+    private final List<Property> _properties = new ArrayList<Property>();
+
+    public Element(String name, int count)
+    {
+      _name = name;
+      _count = count;
+    }
+
+    public int indexOf(String propertyName)
+    {
+      for (int i = 0; i < _properties.size(); ++i)
+        if (_properties.get(i)._name.equals(propertyName))
+          return i;
+      return -1;
+    }
+  }
+
+  /**
+   * Reads the numbers of a PLY body, from either an ascii or a binary file.
+   */
+  private static class PlyInput
+  {
+
+    private final DataInputStream _in;
+    private final boolean _ascii, _littleEndian;
+    private final StringBuilder _sb = new StringBuilder();
+
+    public PlyInput(DataInputStream in, String format)
+    {
+      _in = in;
+      _ascii = format.equals("ascii");
+      _littleEndian = format.equals("binary_little_endian");
+    }
+
+    public double read(String type) throws IOException
+    {
+      if (_ascii)
+        return Double.parseDouble(nextToken());
+
+      if (type.equals("char") || type.equals("int8"))
+        return _in.readByte();
+      if (type.equals("uchar") || type.equals("uint8"))
+        return _in.readUnsignedByte();
+      if (type.equals("short") || type.equals("int16"))
+        return _littleEndian ? Short.reverseBytes(_in.readShort())
+               : _in.readShort();
+      if (type.equals("ushort") || type.equals("uint16"))
+        return (_littleEndian ? Short.reverseBytes(_in.readShort())
+                : _in.readShort()) & 0xffff;
+      if (type.equals("int") || type.equals("int32"))
+        return _littleEndian ? Integer.reverseBytes(_in.readInt())
+               : _in.readInt();
+      if (type.equals("uint") || type.equals("uint32"))
+        return (_littleEndian ? Integer.reverseBytes(_in.readInt())
+                : _in.readInt()) & 0xffffffffL;
+      if (type.equals("float") || type.equals("float32"))
+        return Float.intBitsToFloat(_littleEndian ? Integer.reverseBytes(
+            _in.readInt()) : _in.readInt());
+      if (type.equals("double") || type.equals("float64"))
+        return Double.longBitsToDouble(_littleEndian ? Long.reverseBytes(
+            _in.readLong()) : _in.readLong());
+      throw new IOException("Unknown PLY property type " + type);
+    }
+
+    private String nextToken() throws IOException
+    {
+      _sb.setLength(0);
+      int c;
+      while (Character.isWhitespace(c = _in.read()));
+      if (c < 0)
+        throw new EOFException();
+      do
+        _sb.append((char) c);
+      while ((c = _in.read()) >= 0 && !Character.isWhitespace(c));
+      return _sb.toString();
+    }
+  }
+
+  public static List<Triangle> readPLY(String fileName, TriangleStore store)
+      throws IOException
+  {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(fileName), 1 << 16));
+    try
+    {
+      if (!"ply".equals(readLine(in)))
+        throw new IOException(fileName + " is not a PLY file");
+
+      String format = null;
+      List<Element> elements = new ArrayList<Element>();
+      String line;
+      while (!(line = readLine(in)).equals("end_header"))
+      {
+        String[] tokens = line.trim().split("\\s+");
+        if (tokens[0].equals("format"))
+          format = tokens[1];
+        else if (tokens[0].equals("element"))
+          elements.add(new Element(tokens[1], Integer.parseInt(tokens[2])));
+        else if (tokens[0].equals("property"))
+          elements.get(elements.size() - 1)._properties.add(
+              tokens[1].equals("list")
+              ? new Property(tokens[4], tokens[3], tokens[2])
+              : new Property(tokens[2], tokens[1], null));
+      }
+      if (format == null)
+        throw new IOException("No format in PLY header");
+
+      PlyInput input = new PlyInput(in, format);
+      FloatList verts = new FloatList();
+      FloatList colours = null;
+      List<Triangle> triangles = new ArrayList<Triangle>();
+      int[] face = new int[16];
+
+      for (Element e : elements)
+      {
+        int numProps = e._properties.size();
+        double[] values = new double[numProps];
+        int x = e.indexOf("x"), y = e.indexOf("y"), z = e.indexOf("z");
+        int r = e.indexOf("red"), g = e.indexOf("green"), b = e.indexOf("blue");
+        int indices = Math.max(e.indexOf("vertex_indices"),
+            e.indexOf("vertex_index"));
+        boolean isVertex = e._name.equals("vertex");
+        boolean isFace = e._name.equals("face");
+        float[] colourScales = null;
+        if (isVertex && r >= 0 && g >= 0 && b >= 0)
+        {
+          colours = new FloatList();
+          colourScales = new float[]
+              {
+                e._properties.get(r).getColourScale(),
+                e._properties.get(g).getColourScale(),
+                e._properties.get(b).getColourScale()
+              };
+        }
+
+        for (int n = 0; n < e._count; ++n)
+        {
+          int faceSize = 0;
+          for (int p = 0; p < numProps; ++p)
+          {
+            Property prop = e._properties.get(p);
+            if (prop._countType == null)
+            {
+              values[p] = input.read(prop._type);
+              continue;
+            }
+            int count = (int) input.read(prop._countType);
+            if (isFace && p == indices)
+            {
+              if (face.length < count)
+                face = new int[count];
+              for (int i = 0; i < count; ++i)
+                face[i] = (int) input.read(prop._type);
+              faceSize = count;
+            }
+            else
+              for (int i = 0; i < count; ++i)
+                input.read(prop._type);
+          }
+
+          if (isVertex)
+          {
+            verts.add((float) values[x]);
+            verts.add((float) values[y]);
+            verts.add((float) values[z]);
+            if (colours != null)
+            {
+              colours.add((float) values[r] * colourScales[0]);
+              colours.add((float) values[g] * colourScales[1]);
+              colours.add((float) values[b] * colourScales[2]);
+            }
+          }
+          else if (isFace)
+            for (int i = 2; i < faceSize; ++i)
+            {
+              int v0 = face[0], v1 = face[i - 1], v2 = face[i];
+              if (Math.max(v0, Math.max(v1, v2)) >= verts.size() / 3
+                  || Math.min(v0, Math.min(v1, v2)) < 0)
+                throw new IOException("Vertex index out of range in face "
+                                      + n);
+              triangles.add(makeTriangle(store, verts, v0, v1, v2,
+                  colours == null ? DEFAULT_REFLECTIVITY
+                  : averageColour(colours, v0, v1, v2), Vector.ZERO));
+            }
+        }
+      }
+      return triangles;
+    }
+    catch (RuntimeException ex)
+    {
+      throw new IOException("Malformed PLY file " + fileName, ex);
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  private static Vector averageColour(FloatList colours, int a, int b, int c)
+  {
+    float third = 1f / 3f;
+    return new Vector(
+        (colours.get(a * 3) + colours.get(b * 3) + colours.get(c * 3)) * third,
+        (colours.get(a * 3 + 1) + colours.get(b * 3 + 1)
+         + colours.get(c * 3 + 1)) * third,
+        (colours.get(a * 3 + 2) + colours.get(b * 3 + 2)
+         + colours.get(c * 3 + 2)) * third);
+  }
+
+  /**
+   * Reads a line of the header, which is ascii even in binary files.
+   */
+  private static String readLine(DataInputStream in) throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\n')
+    {
+      if (c < 0)
+        throw new EOFException("Unexpected end of PLY header");
+      if (c != '\r')
+        sb.append((char) c);
+    }
+    return sb.toString();
+  }
+}
@@ -6,6 +6,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Scanner;
 import java.util.regex.Pattern;
+import minilight.events.SceneParseEvent;
 import minilight.scene.Vector;
 
 /**
@@ -46,6 +47,8 @@ public class ModelReader
 
   public ModelReader(String path) throws IllegalStateException
   {
+    SceneParseEvent event = new SceneParseEvent();
+    event.begin();
     File f = new File(path);
     Scanner s;
     try
@@ -104,6 +107,15 @@ public class ModelReader
                                        + "divisible by 5: " + vectors.size();
 
       _modelVectors = vectors;
+
+      if (event.shouldCommit())
+      {
+        event.file = path;
+        event.format = "MiniLight";
+        event.triangles = vectors.size() / 5;
+        event.bytes = f.length();
+        event.commit();
+      }
     }
     finally
     {
@@ -0,0 +1,106 @@
+package minilight.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A shared pool of daemon threads for data-parallel loops over images
+ * (tone mapping, PNG compression). Not for rendering, which has its own
+ * threads.<br/><br/>
+ *
+ * Loops must not be nested: a chunk that starts another loop could wait for
+ * threads that are all waiting themselves.
+ * @author Tom Eklöf
+ */
+public class Parallel
+{
+
+  public static final int NUM_THREADS =
+                          Runtime.getRuntime().availableProcessors();
+  private static final ExecutorService _pool = Executors.newFixedThreadPool(
+      NUM_THREADS, new ThreadFactory()
+  {
+
+    private int _count = 0;
+
+    public synchronized Thread newThread(Runnable r)
+    {
+      Thread t = new Thread(r, "parallel-" + _count++);
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  /**
+   * The body of a loop, run for a range of indices.
+   */
+  public interface Chunk
+  {
+
+    /**
+     * @param chunk Number of the chunk, 0 <= chunk < number of chunks
+     * @param from First index, inclusive
+     * @param to Last index, exclusive
+     */
+    void run(int chunk, int from, int to);
+  }
+
+  public static ExecutorService pool()
+  {
+    return _pool;
+  }
+
+  /**
+   * How many chunks forChunks() will cut n items into.
+   */
+  public static int numChunks(int n, int minChunkSize)
+  {
+    return Math.max(1, Math.min(NUM_THREADS * 4, n / minChunkSize));
+  }
+
+  /**
+   * Runs body over [0, n) in numChunks(n, minChunkSize) consecutive chunks,
+   * and returns when all of them are done. The calling thread does the last
+   * chunk itself.
+   */
+  public static void forChunks(int n, int minChunkSize, final Chunk body)
+  {
+    final int chunks = numChunks(n, minChunkSize);
+    List<Future<?>> futures = new ArrayList<Future<?>>(chunks);
+
+    for (int c = 0; c < chunks - 1; ++c)
+    {
+      final int chunk = c;
+      final int from = (int) ((long) n * c / chunks);
+      final int to = (int) ((long) n * (c + 1) / chunks);
+      futures.add(_pool.submit(new Runnable()
+      {
+
+        public void run()
+        {
+          body.run(chunk, from, to);
+        }
+      }));
+    }
+    body.run(chunks - 1, (int) ((long) n * (chunks - 1) / chunks), n);
+
+    try
+    {
+      for (Future<?> f : futures)
+        f.get();
+    }
+    catch (InterruptedException ex)
+    {
+      throw new IllegalStateException("Interrupted in a parallel loop", ex);
+    }
+    catch (ExecutionException ex)
+    {
+      throw new IllegalStateException("Parallel loop failed", ex.getCause());
+    }
+  }
+}
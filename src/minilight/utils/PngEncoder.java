@@ -0,0 +1,216 @@
+package minilight.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 8-bit RGB images as PNG files.<br/><br/>
+ *
+ * The image is cut into strips of rows that are filtered and deflated on
+ * separate threads, pigz-style: every strip but the last ends in a sync flush
+ * so the raw deflate streams can simply be concatenated, and each strip is
+ * primed with the tail of the previous one as a dictionary so compression
+ * barely suffers. The zlib header and Adler-32 trailer are added around the
+ * whole thing.
+ * @author Tom Eklöf
+ */
+public class PngEncoder
+{
+
+  private static final byte[] SIGNATURE =
+  {
+    (byte) 137, 80, 78, 71, 13, 10, 26, 10
+  };
+  private static final int STRIP_ROWS = 64;
+  private static final int WINDOW_SIZE = 32768;
+  private static final int FILTER_SUB = 1;
+
+  /**
+   * @param fileName
+   * @param rgb RGB triplets, top row first, as returned by
+   * Image.getImageBytes()
+   * @param width
+   * @param height
+   * @throws IOException
+   */
+  public static void write(String fileName, byte[] rgb, int width, int height)
+      throws IOException
+  {
+    final int stride = width * 3 + 1; // filter type byte + RGB
+    final byte[] raw = new byte[stride * height];
+    List<Future<byte[]>> strips = new ArrayList<Future<byte[]>>();
+
+    for (int row = 0; row < height; row += STRIP_ROWS)
+      strips.add(Parallel.pool().submit(new StripDeflater(rgb, raw, width, row,
+          Math.min(row + STRIP_ROWS, height), row + STRIP_ROWS >= height)));
+
+    ByteArrayOutputStream idat = new ByteArrayOutputStream(raw.length / 2);
+    idat.write(0x78); // zlib header: deflate, 32K window
+    idat.write(0x9c); // default compression, no preset dictionary
+    try
+    {
+      for (Future<byte[]> f : strips)
+        idat.write(f.get());
+    }
+    catch (InterruptedException ex)
+    {
+      throw new IOException("Interrupted while compressing PNG data", ex);
+    }
+    catch (ExecutionException ex)
+    {
+      throw new IOException("Compressing PNG data failed", ex.getCause());
+    }
+
+    Adler32 adler = new Adler32();
+    adler.update(raw, 0, raw.length);
+    long a = adler.getValue();
+    idat.write((int) (a >>> 24));
+    idat.write((int) (a >>> 16));
+    idat.write((int) (a >>> 8));
+    idat.write((int) a);
+
+    ByteBuffer ihdr = ByteBuffer.allocate(13);
+    ihdr.putInt(width).putInt(height);
+    ihdr.put((byte) 8); // bit depth
+    ihdr.put((byte) 2); // colour type: truecolour
+    ihdr.put((byte) 0); // compression method
+    ihdr.put((byte) 0); // filter method
+    ihdr.put((byte) 0); // no interlace
+
+    FileChannel fc = new FileOutputStream(fileName).getChannel();
+    try
+    {
+      writeFully(fc, ByteBuffer.wrap(SIGNATURE));
+      writeChunk(fc, "IHDR", ihdr.array());
+      writeChunk(fc, "IDAT", idat.toByteArray());
+      writeChunk(fc, "IEND", new byte[0]);
+    }
+    finally
+    {
+      fc.close();
+    }
+  }
+
+  private static void writeChunk(FileChannel fc, String type, byte[] data)
+      throws IOException
+  {
+    byte[] typeBytes = type.getBytes("US-ASCII");
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data);
+
+    ByteBuffer head = ByteBuffer.allocate(8);
+    head.putInt(data.length).put(typeBytes).flip();
+    ByteBuffer tail = ByteBuffer.allocate(4);
+    tail.putInt((int) crc.getValue()).flip();
+
+    writeFully(fc, head);
+    writeFully(fc, ByteBuffer.wrap(data));
+    writeFully(fc, tail);
+  }
+
+  private static void writeFully(FileChannel fc, ByteBuffer b) throws
+      IOException
+  {
+    while (b.hasRemaining())
+      fc.write(b);
+  }
+
+  /**
+   * Filters the rows [first, last) into the shared raw buffer and deflates
+   * them.
+   */
+  private static class StripDeflater implements Callable<byte[]>
+  {
+
+    private final byte[] _rgb, _raw;
+    private final int _width, _first, _last;
+    private final boolean _isFinal;
+
+    public StripDeflater(byte[] rgb, byte[] raw, int width, int first,
+                         int last, boolean isFinal)
+    {
+      _rgb = rgb;
+      _raw = raw;
+      _width = width;
+      _first = first;
+      _last = last;
+      _isFinal = isFinal;
+    }
+
+    public byte[] call()
+    {
+      final int rowBytes = _width * 3;
+      final int stride = rowBytes + 1;
+
+      for (int y = _first; y < _last; ++y)
+      {
+        int in = y * rowBytes, out = y * stride;
+        _raw[out++] = FILTER_SUB;
+        for (int i = 0; i < rowBytes; ++i)
+          _raw[out + i] = (byte) (_rgb[in + i] - (i >= 3 ? _rgb[in + i - 3] : 0));
+      }
+
+      int offset = _first * stride;
+      int length = (_last - _first) * stride;
+      Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+      byte[] buf = new byte[65536];
+      int n;
+      try
+      {
+        // The previous strip is filtered by its own thread, so recompute the
+        // tail of it here rather than waiting for that thread.
+        if (_first > 0)
+        {
+          int dictRows = Math.min(_first, (WINDOW_SIZE + stride - 1) / stride);
+          byte[] dict = new byte[dictRows * stride];
+          for (int r = 0, y = _first - dictRows; r < dictRows; ++r, ++y)
+          {
+            int in = y * rowBytes, o = r * stride;
+            dict[o++] = FILTER_SUB;
+            for (int i = 0; i < rowBytes; ++i)
+              dict[o + i] = (byte) (_rgb[in + i] - (i >= 3 ? _rgb[in + i - 3]
+                                                    : 0));
+          }
+          int dictLength = Math.min(dict.length, WINDOW_SIZE);
+          d.setDictionary(dict, dict.length - dictLength, dictLength);
+        }
+
+        d.setInput(_raw, offset, length);
+        if (_isFinal)
+        {
+          d.finish();
+          while (!d.finished())
+          {
+            n = d.deflate(buf);
+            out.write(buf, 0, n);
+          }
+        }
+        else
+          do
+          {
+            n = d.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+            out.write(buf, 0, n);
+          }
+          while (n == buf.length);
+      }
+      finally
+      {
+        d.end();
+      }
+      return out.toByteArray();
+    }
+  }
+}
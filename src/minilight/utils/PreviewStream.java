@@ -0,0 +1,297 @@
+package minilight.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import minilight.datastructures.Image;
+
+/**
+ * Streams tone mapped frames to a viewer while rendering goes on, either
+ * through a file (normally a named pipe) or to a program connecting to a
+ * port on localhost.<br/><br/>
+ *
+ * The stream is a sequence of frames, all numbers big-endian ints:
+ * <pre>
+ * "MLPV" frame-number width height tile-count
+ * tile-count times:  x y w h  followed by w*h RGB byte triplets, top row
+ *                    first (x, y from the top left corner of the image)</pre>
+ * The first frame a viewer gets has all tiles, after that only tiles that
+ * changed since the previous frame are sent. Frames are dropped rather than
+ * queued if the viewer can't keep up or the frame rate limit would be
+ * exceeded, so the renderer never waits for the viewer.
+ * @author Tom Eklöf
+ */
+public class PreviewStream
+{
+
+  private static final int MAGIC = 0x4d4c5056; // "MLPV"
+  private final String _target;
+  private final long _minFrameInterval; // in nanoseconds
+  private final int _tileSize;
+  private final BlockingQueue<Frame> _frames = new ArrayBlockingQueue<Frame>(1);
+  private final Thread _sender;
+  private volatile DataOutputStream _out = null;
+  private byte[] _lastSent = null;
+  private long _lastOffer = 0;
+
+  /**
+   * @param target "tcp:port" to listen on localhost, anything else is a file
+   * name
+   * @param fps Maximum number of frames per second
+   * @param tileSize
+   */
+  public PreviewStream(String target, float fps, int tileSize)
+  {
+    _target = target;
+    _minFrameInterval = (long) (1e9 / fps);
+    _tileSize = tileSize;
+
+    Thread connector = new Thread(new Runnable()
+    {
+
+      public void run()
+      {
+        connect();
+      }
+    }, "preview-connector");
+    connector.setDaemon(true);
+    connector.start();
+
+    _sender = new Thread(new Runnable()
+    {
+
+      public void run()
+      {
+        send();
+      }
+    }, "preview-sender");
+    _sender.setDaemon(true);
+    _sender.start();
+  }
+
+  /**
+   * Hands the image to the sender thread, unless nobody is watching, the
+   * previous frame is still being sent or it's too early for another frame.
+   * Never blocks unless force is set.
+   * @param img The image being rendered into, only copied if the frame is
+   * going to be sent.
+   * @param frameNo
+   * @param force Always send this frame (the last one, for example).
+   */
+  public void offer(Image img, int frameNo, boolean force)
+  {
+    // no locking here, the sender holds the lock while writing
+    if (_out == null)
+      return;
+    long now = System.nanoTime();
+    if (!force && (now - _lastOffer < _minFrameInterval
+                   || !_frames.isEmpty()))
+      return;
+    _lastOffer = now;
+
+    Frame f = new Frame(img.snapshot(), frameNo);
+    if (force)
+      try
+      {
+        _frames.offer(f, 10, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+      }
+    else
+      _frames.offer(f);
+  }
+
+  /**
+   * Waits (a little while) for the last frame to go out.
+   */
+  public void close()
+  {
+    try
+    {
+      for (int i = 0; i < 100 && !_frames.isEmpty(); ++i)
+        Thread.sleep(100);
+      synchronized (this)
+      {
+        if (_out != null)
+          _out.flush();
+      }
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch (IOException ex)
+    {
+      // the viewer went away, nothing to do about it
+    }
+  }
+
+  /**
+   * Opens the pipe (blocks until a reader turns up) or accepts connections,
+   * and opens it again whenever the viewer goes away.
+   */
+  private void connect()
+  {
+    try
+    {
+      if (_target.startsWith("tcp:"))
+      {
+        int port = Integer.parseInt(_target.substring(4));
+        ServerSocket ss = new ServerSocket(port, 1,
+            InetAddress.getLoopbackAddress());
+        System.out.println("Preview stream listening on localhost:" + port);
+        while (true)
+        {
+          Socket s = ss.accept();
+          s.setTcpNoDelay(true);
+          setSink(s.getOutputStream()); // a new viewer replaces the old one
+        }
+      }
+      else
+        while (true)
+        {
+          setSink(new FileOutputStream(_target));
+          synchronized (this)
+          {
+            while (_out != null)
+              wait();
+          }
+        }
+    }
+    catch (Exception ex)
+    {
+      System.out.println("Preview stream stopped (" + ex.getMessage() + ")");
+    }
+  }
+
+  private synchronized void setSink(OutputStream os)
+  {
+    closeSink();
+    _out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+  }
+
+  private synchronized void closeSink()
+  {
+    if (_out != null)
+      try
+      {
+        _out.close();
+      }
+      catch (IOException ex)
+      {
+        // closing a stream that broke anyway
+      }
+    _out = null;
+    _lastSent = null; // a new viewer needs a whole frame
+    notifyAll();
+  }
+
+  private void send()
+  {
+    while (true)
+    {
+      Frame f;
+      try
+      {
+        f = _frames.take();
+      }
+      catch (InterruptedException ex)
+      {
+        return;
+      }
+
+      byte[] rgb = f._image.getImageBytes();
+      synchronized (this)
+      {
+        if (_out == null)
+          continue;
+        try
+        {
+          writeFrame(rgb, f._image.getWidth(), f._image.getHeight(),
+              f._frameNo);
+          _lastSent = rgb;
+        }
+        catch (IOException ex)
+        {
+          System.out.println("Preview viewer disconnected (" + ex.getMessage()
+                             + ")");
+          closeSink();
+        }
+      }
+    }
+  }
+
+  private void writeFrame(byte[] rgb, int width, int height, int frameNo)
+      throws IOException
+  {
+    int tilesX = (width + _tileSize - 1) / _tileSize;
+    int tilesY = (height + _tileSize - 1) / _tileSize;
+    boolean[] changed = new boolean[tilesX * tilesY];
+    int numChanged = 0;
+
+    for (int ty = 0; ty < tilesY; ++ty)
+      for (int tx = 0; tx < tilesX; ++tx)
+        if (_lastSent == null || tileChanged(rgb, width, height, tx, ty))
+        {
+          changed[tx + ty * tilesX] = true;
+          ++numChanged;
+        }
+
+    _out.writeInt(MAGIC);
+    _out.writeInt(frameNo);
+    _out.writeInt(width);
+    _out.writeInt(height);
+    _out.writeInt(numChanged);
+    for (int t = 0; t < changed.length; ++t)
+      if (changed[t])
+      {
+        int x0 = (t % tilesX) * _tileSize, y0 = (t / tilesX) * _tileSize;
+        int w = Math.min(_tileSize, width - x0);
+        int h = Math.min(_tileSize, height - y0);
+        _out.writeInt(x0);
+        _out.writeInt(y0);
+        _out.writeInt(w);
+        _out.writeInt(h);
+        for (int y = y0; y < y0 + h; ++y)
+          _out.write(rgb, (y * width + x0) * 3, w * 3);
+      }
+    _out.flush();
+  }
+
+  private boolean tileChanged(byte[] rgb, int width, int height, int tx,
+                              int ty)
+  {
+    int x0 = tx * _tileSize, y0 = ty * _tileSize;
+    int rowBytes = Math.min(_tileSize, width - x0) * 3;
+    for (int y = y0; y < Math.min(y0 + _tileSize, height); ++y)
+    {
+      for (int i = (y * width + x0) * 3, end = i + rowBytes; i < end; ++i)
+        if (rgb[i] != _lastSent[i])
+          return true;
+    }
+    return false;
+  }
+
+  private static class Frame
+  {
+
+    private final Image _image;
+    private final int _frameNo;
+
+    public Frame(Image image, int frameNo)
+    {
+      _image = image;
+      _frameNo = frameNo;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package minilight.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The totals of all Counters and the latency histograms, published over JMX
+ * as minilight:type=RenderStats (look at it with jconsole or VisualVM while
+ * rendering), and the counters optionally printed every now and then.
+ * @author Tom Eklöf
+ */
+public class RenderStats implements RenderStatsMBean
+{
+
+  public static final String OBJECT_NAME = "minilight:type=RenderStats";
+  private final long _startTime = System.nanoTime();
+
+  /**
+   * Registers a RenderStats with the platform MBean server. Rates are
+   * counted from now.
+   */
+  public static void register()
+  {
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          new RenderStats(), new ObjectName(OBJECT_NAME));
+    }
+    catch (JMException ex)
+    {
+      // only monitoring, render anyway
+      System.out.println("Could not register " + OBJECT_NAME + " ("
+                         + ex.getMessage() + ")");
+    }
+  }
+
+  /**
+   * Prints the rates over the last period every period seconds, from a
+   * daemon thread.
+   */
+  public static void startLogging(final int period)
+  {
+    Timer timer = new Timer("render-stats", true);
+    timer.schedule(new TimerTask()
+    {
+
+      private Counters _last = Counters.total();
+      private long _lastTime = System.nanoTime();
+
+      @Override
+      public void run()
+      {
+        Counters now = Counters.total();
+        long time = System.nanoTime();
+        System.out.println(format(now, _last, (time - _lastTime) / 1e9));
+        _last = now;
+        _lastTime = time;
+      }
+    }, period * 1000L, period * 1000L);
+  }
+
+  /**
+   * One line describing what happened between two readings of the counters.
+   */
+  public static String format(Counters now, Counters then, double seconds)
+  {
+    long rays = now.getRays() - then.getRays();
+    long primary = now.getPrimaryRays() - then.getPrimaryRays();
+    return String.format(Locale.ROOT,
+        "Stats: %.3f M rays/s (%.3f primary, %.3f bounce, %.3f shadow), "
+        + "%.3f M samples/s, %.1f nodes/ray, %.1f triangles/ray, "
+        + "path length %.2f",
+        rays / seconds / 1e6, primary / seconds / 1e6,
+        (now.getBounceRays() - then.getBounceRays()) / seconds / 1e6,
+        (now.getShadowRays() - then.getShadowRays()) / seconds / 1e6,
+        (now.getSamples() - then.getSamples()) / seconds / 1e6,
+        ratio(now.getNodesVisited() - then.getNodesVisited(), rays),
+        ratio(now.getTrianglesTested() - then.getTrianglesTested(), rays),
+        ratio(now.getPathVertices() - then.getPathVertices(), primary));
+  }
+
+  private static double ratio(long a, long b)
+  {
+    return b == 0 ? 0 : (double) a / b;
+  }
+
+  public long getPrimaryRays()
+  {
+    return Counters.total().getPrimaryRays();
+  }
+
+  public long getBounceRays()
+  {
+    return Counters.total().getBounceRays();
+  }
+
+  public long getShadowRays()
+  {
+    return Counters.total().getShadowRays();
+  }
+
+  public long getRays()
+  {
+    return Counters.total().getRays();
+  }
+
+  public long getNodesVisited()
+  {
+    return Counters.total().getNodesVisited();
+  }
+
+  public long getTrianglesTested()
+  {
+    return Counters.total().getTrianglesTested();
+  }
+
+  public long getSamples()
+  {
+    return Counters.total().getSamples();
+  }
+
+  public double getMeanPathLength()
+  {
+    return Counters.total().getMeanPathLength();
+  }
+
+  public double getNodesPerRay()
+  {
+    Counters c = Counters.total();
+    return ratio(c.getNodesVisited(), c.getRays());
+  }
+
+  public double getTrianglesPerRay()
+  {
+    Counters c = Counters.total();
+    return ratio(c.getTrianglesTested(), c.getRays());
+  }
+
+  public double getRaysPerSecond()
+  {
+    return Counters.total().getRays() / ((System.nanoTime() - _startTime) / 1e9);
+  }
+
+  public double getSamplesPerSecond()
+  {
+    return Counters.total().getSamples() / ((System.nanoTime() - _startTime)
+                                            / 1e9);
+  }
+
+  public String getLatencies()
+  {
+    return LatencyHistogram.report();
+  }
+
+  public void resetLatencies()
+  {
+    LatencyHistogram.resetAll();
+  }
+}
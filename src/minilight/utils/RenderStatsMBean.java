@@ -0,0 +1,46 @@
+package minilight.utils;
+
+/**
+ * Management interface of RenderStats, see there.
+ * @author Tom Eklöf
+ */
+public interface RenderStatsMBean
+{
+
+  long getPrimaryRays();
+
+  long getBounceRays();
+
+  long getShadowRays();
+
+  long getRays();
+
+  long getNodesVisited();
+
+  long getTrianglesTested();
+
+  long getSamples();
+
+  double getMeanPathLength();
+
+  double getNodesPerRay();
+
+  double getTrianglesPerRay();
+
+  /**
+   * Since the start of rendering.
+   */
+  double getRaysPerSecond();
+
+  /**
+   * Since the start of rendering.
+   */
+  double getSamplesPerSecond();
+
+  /**
+   * Frame, tile, save and checkpoint latency percentiles as a table.
+   */
+  String getLatencies();
+
+  void resetLatencies();
+}
@@ -0,0 +1,70 @@
+package minilight.utils;
+
+import java.util.Random;
+
+/**
+ * A Random whose state is kept per thread.<br/><br/>
+ *
+ * All scene classes share MagicNumbers.random. A plain java.util.Random would
+ * make every render thread fight over one seed, and the numbers a thread gets
+ * would depend on what the other threads are doing. Here setSeed() only
+ * affects the calling thread, so a render thread can reseed at the start of
+ * each tile and get the same samples no matter how many threads there are.
+ * Uses the same LCG as java.util.Random.
+ * @author Tom Eklöf
+ */
+public class SampleRandom extends Random
+{
+
+  private static final long serialVersionUID = 1L;
+  private static final long MULTIPLIER = 0x5DEECE66DL;
+  private static final long ADDEND = 0xBL;
+  private static final long MASK = (1L << 48) - 1;
+  private volatile long _defaultSeed;
+  private ThreadLocal<long[]> _state;
+
+  public SampleRandom(long seed)
+  {
+    super(seed);
+    _defaultSeed = seed;
+    _state = new ThreadLocal<long[]>()
+    {
+
+      @Override
+      protected long[] initialValue()
+      {
+        return new long[]
+            {
+              scramble(_defaultSeed)
+            };
+      }
+    };
+  }
+
+  private static long scramble(long seed)
+  {
+    return (seed ^ MULTIPLIER) & MASK;
+  }
+
+  /**
+   * Sets the seed of the calling thread's stream. Threads that haven't set a
+   * seed yet start from the last one set by any thread.
+   */
+  @Override
+  public void setSeed(long seed)
+  {
+    // called by the Random constructor before _state exists
+    if (_state == null)
+      return;
+    _defaultSeed = seed;
+    _state.get()[0] = scramble(seed);
+  }
+
+  @Override
+  protected int next(int bits)
+  {
+    long[] s = _state.get();
+    s[0] = (s[0] * MULTIPLIER + ADDEND) & MASK;
+    return (int) (s[0] >>> (48 - bits));
+  }
+}